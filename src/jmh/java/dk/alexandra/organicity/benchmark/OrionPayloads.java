@@ -0,0 +1,77 @@
+package dk.alexandra.organicity.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Notifications shaped like the ones POSTed by the Orion Context Broker, used by the benchmarks
+ *
+ */
+public final class OrionPayloads {
+
+	public static final String SUBSCRIPTION_ID = "57f7a1c2e4b0d3a1b2c3d4e5";
+	public static final String ENTITY_ID = "urn:oc:entity:aarhus:buses:bus-4711";
+	public static final String ENTITY_TYPE = "urn:oc:entityType:bus";
+
+	private OrionPayloads(){
+	}
+
+
+	/**
+	 * Creates the body of a notification
+	 * 
+	 * @param attributes The number of attributes in the element
+	 * 
+	 * @return The notification as JSON
+	 */
+	public static String notification(int attributes){
+		StringBuilder json = new StringBuilder(256+attributes*96);
+		json.append("{\"subscriptionId\":\"").append(SUBSCRIPTION_ID).append("\",")
+			.append("\"originator\":\"localhost\",")
+			.append("\"contextResponses\":[{\"contextElement\":{")
+			.append("\"type\":\"").append(ENTITY_TYPE).append("\",")
+			.append("\"isPattern\":\"false\",")
+			.append("\"id\":\"").append(ENTITY_ID).append("\",")
+			.append("\"attributes\":[");
+		for(int i=0; i<attributes; i++){
+			if(i>0){
+				json.append(',');
+			}
+			json.append("{\"name\":\"").append(attributeName(i)).append("\",")
+				.append("\"type\":\"urn:oc:attributeType:measurement\",")
+				.append("\"value\":\"").append(20.5+i).append("\",")
+				.append("\"metadatas\":[{\"name\":\"TimeInstant\",\"type\":\"ISO8601\",\"value\":\"2016-10-07T10:15:30.000Z\"}]}");
+		}
+		json.append("]},\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}]}");
+		return json.toString();
+	}
+
+
+	/**
+	 * Creates a parsed notification
+	 * 
+	 * @param attributes The number of attributes in the element
+	 * 
+	 * @return The notification
+	 */
+	public static Notification parsed(int attributes){
+		List<Attributes> list = new ArrayList<>(attributes);
+		for(int i=0; i<attributes; i++){
+			list.add(new Attributes(attributeName(i), "urn:oc:attributeType:measurement", String.valueOf(20.5+i)));
+		}
+		return new Notification(new ContextElement(ENTITY_TYPE, "false", ENTITY_ID, list), SUBSCRIPTION_ID);
+	}
+
+	private static String attributeName(int i){
+		return "urn:oc:attributeType:measurement:"+i;
+	}
+
+}
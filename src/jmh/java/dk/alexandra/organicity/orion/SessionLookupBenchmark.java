@@ -0,0 +1,83 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.alexandra.orion.websocket.transports.OrionSubscription;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Looking up the sessions of a subscription, as done for every notification, while other threads
+ * attach and detach sessions as done by register, unregister and disconnect
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionLookupBenchmark {
+
+	@Param({"100", "10000"})
+	public int subscriptions;
+
+	private SubscriptionRegistry registry;
+	private String[] subscriptionIds;
+	private String[] keys;
+
+
+	@Setup
+	public void setup(){
+		registry = new SubscriptionRegistry();
+		subscriptionIds = new String[subscriptions];
+		keys = new String[subscriptions];
+		for(int i=0; i<subscriptions; i++){
+			subscriptionIds[i] = "subscription-"+i;
+			keys[i] = "urn:oc:entity:"+i+"||";
+			registry.register(new SharedSubscription(keys[i], subscriptionIds[i], new OrionSubscription()), "session-"+i);
+		}
+	}
+
+
+	@Benchmark
+	@Group("mutated")
+	@GroupThreads(3)
+	public Set<String> lookup(){
+		return registry.getSessionIds(subscriptionIds[ThreadLocalRandom.current().nextInt(subscriptions)]);
+	}
+
+	@Benchmark
+	@Group("mutated")
+	@GroupThreads(1)
+	public int attachDetach(){
+		int i = ThreadLocalRandom.current().nextInt(subscriptions);
+		String sessionId = "churn-"+Thread.currentThread().getId();
+		registry.attach(keys[i], sessionId);
+		return registry.detach(subscriptionIds[i], sessionId);
+	}
+
+	@Benchmark
+	public Set<String> lookupOnly(){
+		return registry.getSessionIds(subscriptionIds[ThreadLocalRandom.current().nextInt(subscriptions)]);
+	}
+
+}
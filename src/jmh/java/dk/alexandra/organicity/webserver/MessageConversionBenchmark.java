@@ -0,0 +1,84 @@
+package dk.alexandra.organicity.webserver;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.AbstractMessageChannel;
+
+import dk.alexandra.organicity.benchmark.OrionPayloads;
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Creating the headers and converting a notification to a message in convertAndSendToUser
+ * The message converters are the ones Spring sets up for STOMP, the message is handed to a channel that only keeps it
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageConversionBenchmark {
+
+	private static final String SESSION_ID = "k3l4m5n6";
+
+	@Param({"1", "10", "100"})
+	public int attributes;
+
+	private SimpMessagingTemplate template;
+	private Notification notification;
+	private Message<?> sent;
+
+
+	@Setup
+	public void setup(){
+		template = new SimpMessagingTemplate(new AbstractMessageChannel() {
+
+			@Override
+			protected boolean sendInternal(Message<?> message, long timeout) {
+				sent = message;
+				return true;
+			}
+
+		});
+		template.setMessageConverter(new CompositeMessageConverter(Arrays.asList(
+				new StringMessageConverter(), new ByteArrayMessageConverter(), new MappingJackson2MessageConverter())));
+		notification = OrionPayloads.parsed(attributes);
+	}
+
+
+	@Benchmark
+	public MessageHeaders createHeaders(){
+		return OrionController.createHeaders(SESSION_ID);
+	}
+
+	@Benchmark
+	public Message<?> convertAndSendToUser(){
+		template.convertAndSendToUser(SESSION_ID, "/message/queue/orion", notification, OrionController.createHeaders(SESSION_ID));
+		return sent;
+	}
+
+}
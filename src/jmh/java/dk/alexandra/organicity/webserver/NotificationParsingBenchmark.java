@@ -0,0 +1,90 @@
+package dk.alexandra.organicity.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.organicity.benchmark.OrionPayloads;
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Parsing of a notification from the Context Broker in receiveNotification
+ * orgJson is how notifications were parsed before {@link NotificationParser}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationParsingBenchmark {
+
+	@Param({"1", "10", "100"})
+	public int attributes;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final NotificationParser parser = new NotificationParser(mapper);
+	private String payload;
+
+
+	@Setup
+	public void setup(){
+		payload = OrionPayloads.notification(attributes);
+	}
+
+
+	@Benchmark
+	public List<Notification> orgJson() throws IOException{
+		JSONObject json = new JSONObject(payload);
+		String subscriptionId = json.getString("subscriptionId");
+		JSONArray responses = json.getJSONArray("contextResponses");
+		List<Notification> notifications = new ArrayList<>(responses.length());
+		for(int i=0; i<responses.length(); i++){
+			JSONObject element = responses.getJSONObject(i).getJSONObject("contextElement");
+			notifications.add(new Notification(mapper.readValue(element.toString(), ContextElement.class), subscriptionId));
+		}
+		return notifications;
+	}
+
+	@Benchmark
+	public List<Notification> jacksonTree() throws IOException{
+		JsonNode json = mapper.readTree(payload);
+		String subscriptionId = json.get("subscriptionId").asText();
+		JsonNode responses = json.get("contextResponses");
+		List<Notification> notifications = new ArrayList<>(responses.size());
+		for(JsonNode response: responses){
+			notifications.add(new Notification(mapper.treeToValue(response.get("contextElement"), ContextElement.class), subscriptionId));
+		}
+		return notifications;
+	}
+
+	@Benchmark
+	public List<Notification> streaming() throws IOException{
+		return parser.parse(payload);
+	}
+
+}
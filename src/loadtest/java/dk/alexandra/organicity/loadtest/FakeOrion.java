@@ -0,0 +1,254 @@
+package dk.alexandra.organicity.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Stand-in for the Orion Context Broker and the OAuth2 token server, answering the calls made by the Connector
+ * Every subscription made is kept, so notifications can be sent to its reference at a fixed rate
+ * Every notification carries the time it was sent in the attribute {@link #SENT_AT}
+ *
+ */
+public class FakeOrion {
+
+	protected static final Logger LOGGER = LogManager.getLogger(FakeOrion.class);
+	public static final String SENT_AT = "loadtest:sentAt";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final HttpServer server;
+	private final ConcurrentHashMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private ScheduledExecutorService ticker;
+	private ExecutorService posters;
+
+
+	/**
+	 * Starts the server
+	 * 
+	 * @param port The port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	public FakeOrion(int port) throws IOException{
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.createContext("/realms/organicity/protocol/openid-connect/token", exchange ->
+			reply(exchange, 200, "{\"access_token\":\"loadtest\",\"expires_in\":300,\"token_type\":\"bearer\"}"));
+		server.createContext("/v2/entities", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			if(path.startsWith("/v2/entities/")){
+				reply(exchange, 200, entity(path.substring("/v2/entities/".length())));
+				return;
+			}
+			//batched check, /v2/entities?id=a,b,c
+			StringBuilder entities = new StringBuilder("[");
+			for(String id: query(exchange.getRequestURI().getQuery(), "id").split(",")){
+				if(entities.length()>1){
+					entities.append(',');
+				}
+				entities.append(entity(id));
+			}
+			reply(exchange, 200, entities.append(']').toString());
+		});
+		server.createContext("/v1/subscribeContext", exchange -> {
+			JsonNode request = mapper.readTree(read(exchange));
+			String id = String.format("%024x", nextId.incrementAndGet());
+			String entityId = request.path("entities").path(0).path("id").asText();
+			subscriptions.put(id, new Subscription(entityId, request.path("reference").asText()));
+			reply(exchange, 200, "{\"subscribeResponse\":{\"subscriptionId\":\""+id+"\",\"duration\":\"P1M\"}}");
+		});
+		server.createContext("/v1/unsubscribeContext", exchange -> {
+			JsonNode request = mapper.readTree(read(exchange));
+			String id = request.path("subscriptionId").asText();
+			subscriptions.remove(id);
+			reply(exchange, 200, "{\"subscribeResponse\":{\"subscriptionId\":\""+id+"\"}}");
+		});
+		server.setExecutor(Executors.newFixedThreadPool(8));
+		server.start();
+		LOGGER.info("Fake Orion listening on port {}", port);
+	}
+
+
+	private static String entity(String id){
+		return "{\"id\":\""+id+"\",\"type\":\"urn:oc:entityType:loadtest\","
+				+"\"access:scope\":{\"type\":\"string\",\"value\":\"public\",\"metadata\":{}}}";
+	}
+
+	private static String query(String query, String name){
+		if(query!=null){
+			for(String parameter: query.split("&")){
+				if(parameter.startsWith(name+"=")){
+					return parameter.substring(name.length()+1);
+				}
+			}
+		}
+		return "";
+	}
+
+
+	/**
+	 * Method for sending notifications to the subscriptions made, one subscription after the other
+	 * 
+	 * @param rate The number of notifications per second
+	 * @param attributes The number of attributes besides {@link #SENT_AT} in every notification
+	 * @param threads The number of threads POSTing notifications
+	 */
+	public void startNotifying(int rate, int attributes, int threads){
+		posters = Executors.newFixedThreadPool(threads);
+		ticker = Executors.newSingleThreadScheduledExecutor();
+		AtomicInteger next = new AtomicInteger();
+		//ticks every 10 ms, carrying over the fraction of a notification not sent
+		double perTick = rate/100.0;
+		double[] due = {0};
+		ticker.scheduleAtFixedRate(() -> {
+			List<String> ids = new ArrayList<>(subscriptions.keySet());
+			if(ids.isEmpty()){
+				return;
+			}
+			due[0] += perTick;
+			while(due[0]>=1){
+				due[0]--;
+				String id = ids.get(Math.floorMod(next.getAndIncrement(), ids.size()));
+				Subscription subscription = subscriptions.get(id);
+				if(subscription!=null){
+					posters.execute(() -> notify(id, subscription, attributes));
+				}
+			}
+		}, 10, 10, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void notify(String subscriptionId, Subscription subscription, int attributes){
+		StringBuilder json = new StringBuilder(256+attributes*96);
+		json.append("{\"subscriptionId\":\"").append(subscriptionId).append("\",\"originator\":\"localhost\",")
+			.append("\"contextResponses\":[{\"contextElement\":{\"type\":\"urn:oc:entityType:loadtest\",\"isPattern\":\"false\",")
+			.append("\"id\":\"").append(subscription.entityId).append("\",\"attributes\":[");
+		for(int i=0; i<attributes; i++){
+			json.append("{\"name\":\"measurement:").append(i).append("\",\"type\":\"float\",\"value\":\"").append(Math.random()).append("\"},");
+		}
+		json.append("{\"name\":\"").append(SENT_AT).append("\",\"type\":\"long\",\"value\":\"").append(System.nanoTime()).append("\"}");
+		json.append("]},\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}]}");
+
+		try{
+			HttpURLConnection connection = (HttpURLConnection) new URL(subscription.reference).openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			try(OutputStream out = connection.getOutputStream()){
+				out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			int status = connection.getResponseCode();
+			try(InputStream in = status<400 ? connection.getInputStream() : connection.getErrorStream()){
+				drain(in);
+			}
+			if(status<400){
+				sent.incrementAndGet();
+			}else{
+				failed.incrementAndGet();
+			}
+		}catch(IOException e){
+			failed.incrementAndGet();
+		}
+	}
+
+
+	private static String read(HttpExchange exchange) throws IOException{
+		try(InputStream in = exchange.getRequestBody()){
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer))>0){
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException{
+		if(in==null){
+			return;
+		}
+		byte[] buffer = new byte[4096];
+		while(in.read(buffer)>0){
+			//keep-alive needs the body read
+		}
+	}
+
+	private static void reply(HttpExchange exchange, int status, String body) throws IOException{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+
+
+	public int getSubscriptionCount(){
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return The number of notifications accepted by the middleware
+	 */
+	public long getSent(){
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of notifications not accepted by the middleware
+	 */
+	public long getFailed(){
+		return failed.get();
+	}
+
+	public void stop(){
+		if(ticker!=null){
+			ticker.shutdownNow();
+			posters.shutdownNow();
+		}
+		server.stop(0);
+	}
+
+
+
+	private static class Subscription {
+
+		final String entityId;
+		final String reference;
+
+		Subscription(String entityId, String reference){
+			this.entityId = entityId;
+			this.reference = reference;
+		}
+
+	}
+
+}
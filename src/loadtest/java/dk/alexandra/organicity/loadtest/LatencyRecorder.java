@@ -0,0 +1,89 @@
+package dk.alexandra.organicity.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Lock free histogram of latencies in microseconds
+ * Values are counted in buckets with 32 steps per power of two, so a percentile is off by at most about 3%
+ *
+ */
+public class LatencyRecorder {
+
+	private static final int STEPS = 32;
+	private static final int SHIFT = 5;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64*STEPS);
+	private final LongAdder count = new LongAdder();
+	private volatile long max = 0;
+
+
+	/**
+	 * @param micros The latency to record
+	 */
+	public void record(long micros){
+		long value = Math.max(0, micros);
+		buckets.incrementAndGet(indexOf(value));
+		count.increment();
+		if(value>max){
+			synchronized(this){
+				if(value>max){
+					max = value;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @param percentile The percentile, e.g. 99.9
+	 * 
+	 * @return The latency in microseconds below which the percentile of the values are
+	 */
+	public long percentile(double percentile){
+		long total = count.sum();
+		if(total==0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(total*percentile/100.0);
+		long seen = 0;
+		for(int i=0; i<buckets.length(); i++){
+			seen += buckets.get(i);
+			if(seen>=rank){
+				return Math.min(upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getCount(){
+		return count.sum();
+	}
+
+	public long getMax(){
+		return max;
+	}
+
+
+	private static int indexOf(long value){
+		if(value<STEPS){
+			return (int) value;
+		}
+		int exponent = 63-Long.numberOfLeadingZeros(value)-SHIFT;
+		return exponent*STEPS+(int) (value>>>exponent);
+	}
+
+	private static long upperBoundOf(int index){
+		if(index<STEPS){
+			return index;
+		}
+		int exponent = index/STEPS-1;
+		long mantissa = index%STEPS+STEPS;
+		return ((mantissa+1)<<exponent)-1;
+	}
+
+}
@@ -0,0 +1,132 @@
+package dk.alexandra.organicity.loadtest;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * A simulated client, registering to one entity and recording the latency of every notification it receives
+ *
+ */
+public class LoadClient extends StompSessionHandlerAdapter {
+
+	protected static final Logger LOGGER = LogManager.getLogger(LoadClient.class);
+
+	private final String entityId;
+	private final String token;
+	private final LatencyRecorder latencies;
+	private final AtomicLong received;
+	private final CountDownLatch registered;
+	private volatile StompSession session;
+	private volatile String error;
+
+
+	/**
+	 * @param entityId The entity to register to
+	 * @param token The token sent with the registration
+	 * @param latencies Records the latency of every notification
+	 * @param received Counts the notifications received
+	 * @param registered Counted down when the registration has been answered
+	 */
+	public LoadClient(String entityId, String token, LatencyRecorder latencies, AtomicLong received, CountDownLatch registered){
+		this.entityId = entityId;
+		this.token = token;
+		this.latencies = latencies;
+		this.received = received;
+		this.registered = registered;
+	}
+
+
+	@Override
+	public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+		this.session = session;
+		session.subscribe("/user/message/queue/orion", this);
+	}
+
+	@Override
+	public Type getPayloadType(StompHeaders headers) {
+		return JsonNode.class;
+	}
+
+	@Override
+	public void handleFrame(StompHeaders headers, Object payload) {
+		long now = System.nanoTime();
+		JsonNode json = (JsonNode) payload;
+		if(json.isArray()){
+			for(JsonNode notification: json){
+				notified(notification, now);
+			}
+		}else if(json.has("element")){
+			notified(json, now);
+		}else{
+			outOfBand(json.path("type").asText(), json.path("message").asText());
+		}
+	}
+
+
+	private void outOfBand(String type, String message){
+		if("sessionId".equals(type)){
+			//the subscription is active, so the answer to the registration will arrive
+			session.send("/app/register", "{\"entityId\":\""+entityId+"\",\"type\":\"urn:oc:entityType:loadtest\",\"isPattern\":false,"
+					+"\"attributes\":[],\"conditions\":[\""+FakeOrion.SENT_AT+"\"],\"duration\":\"P1M\",\"token\":\""+token+"\"}");
+		}else if("subscriptionId".equals(type)){
+			registered.countDown();
+		}else if("error".equals(type)){
+			if(error==null){
+				error = message;
+				registered.countDown();
+			}
+			LOGGER.error("Client {} got error: {}", entityId, message);
+		}
+	}
+
+	private void notified(JsonNode notification, long now){
+		received.incrementAndGet();
+		for(JsonNode attribute: notification.path("element").path("attributes")){
+			if(FakeOrion.SENT_AT.equals(attribute.path("name").asText())){
+				latencies.record((now-Long.parseLong(attribute.path("value").asText()))/1000);
+				return;
+			}
+		}
+	}
+
+
+	@Override
+	public void handleException(StompSession session, StompCommand command, StompHeaders headers, byte[] payload, Throwable exception) {
+		LOGGER.error("Client {} failed: {}", entityId, exception.getMessage());
+	}
+
+	@Override
+	public void handleTransportError(StompSession session, Throwable exception) {
+		LOGGER.error("Client {} lost connection: {}", entityId, exception.getMessage());
+	}
+
+
+	/**
+	 * @return The first error sent to the client, null if none
+	 */
+	public String getError(){
+		return error;
+	}
+
+	public void disconnect(){
+		StompSession current = session;
+		if(current!=null && current.isConnected()){
+			current.disconnect();
+		}
+	}
+
+}
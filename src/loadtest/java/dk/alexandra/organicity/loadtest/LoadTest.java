@@ -0,0 +1,197 @@
+package dk.alexandra.organicity.loadtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import dk.alexandra.organicity.config.Application;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Load test of one middleware node
+ * Starts a {@link FakeOrion}, connects simulated STOMP clients over SockJS that each register to an entity,
+ * and lets the fake Context Broker send notifications at a fixed rate. Reports the throughput, the latency from the
+ * POST of the Context Broker to the frame received by the client, and the heap used
+ * Unless target is given the middleware is started in this JVM, set up to use the fake Context Broker
+ * 
+ * Options, given as --name=value:
+ *   clients     number of clients (100)
+ *   entities    number of entities, clients are spread over them (clients)
+ *   rate        notifications per second sent by the Context Broker (1000)
+ *   attributes  attributes per notification (10)
+ *   duration    seconds to send notifications (60)
+ *   connectRate clients connected per second (200)
+ *   posters     threads POSTing notifications (16)
+ *   port        port of the middleware started (8090)
+ *   orionPort   port of the fake Context Broker (1026)
+ *   target      URL of a middleware already running, e.g. http://host:8090
+ *   token       JWT accepted by the middleware, sent with every registration
+ *   executor    platform or virtual, the threads the middleware started calls the Context Broker and handles HTTP on (platform)
+ *
+ */
+public class LoadTest {
+
+	protected static final Logger LOGGER = LogManager.getLogger(LoadTest.class);
+
+
+	public static void main(String[] args) throws Exception{
+		Map<String, String> options = parse(args);
+		int clients = intOption(options, "clients", 100);
+		int entities = intOption(options, "entities", clients);
+		int rate = intOption(options, "rate", 1000);
+		int attributes = intOption(options, "attributes", 10);
+		int duration = intOption(options, "duration", 60);
+		int connectRate = intOption(options, "connectRate", 200);
+		int posters = intOption(options, "posters", 16);
+		int port = intOption(options, "port", 8090);
+		int orionPort = intOption(options, "orionPort", 1026);
+		String token = options.getOrDefault("token", "");
+		String target = options.get("target");
+		String executor = options.getOrDefault("executor", "platform");
+
+		FakeOrion orion = new FakeOrion(orionPort);
+		ConfigurableApplicationContext middleware = null;
+		if(target==null){
+			System.setProperty("connection.properties", connectionProperties(port, orionPort, executor).getAbsolutePath());
+			middleware = SpringApplication.run(Application.class, "--server.port="+port, "--web.executor="+executor);
+			target = "http://localhost:"+port;
+		}else{
+			LOGGER.info("Using middleware at {}. It must use serverUrl and tokenUrl http://<this host>:{}", target, orionPort);
+		}
+
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.initialize();
+		WebSocketStompClient stompClient = new WebSocketStompClient(new SockJsClient(Arrays.asList(new WebSocketTransport(new StandardWebSocketClient()))));
+		stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+		stompClient.setTaskScheduler(scheduler);
+
+		LatencyRecorder latencies = new LatencyRecorder();
+		AtomicLong received = new AtomicLong();
+		CountDownLatch registered = new CountDownLatch(clients);
+		List<LoadClient> loadClients = new ArrayList<>(clients);
+
+		long connectStart = System.currentTimeMillis();
+		for(int i=0; i<clients; i++){
+			LoadClient client = new LoadClient("urn:oc:entity:loadtest:"+(i%entities), token, latencies, received, registered);
+			loadClients.add(client);
+			stompClient.connect(target+"/orion", client);
+			if(connectRate>0 && (i+1)%connectRate==0){
+				Thread.sleep(1000);
+			}
+		}
+		if(!registered.await(60, TimeUnit.SECONDS)){
+			LOGGER.error("{} clients did not get an answer to their registration", registered.getCount());
+		}
+		long errors = loadClients.stream().filter(client -> client.getError()!=null).count();
+		System.out.println("Connected and registered "+(clients-registered.getCount()-errors)+" of "+clients+" clients in "
+				+(System.currentTimeMillis()-connectStart)+" ms, "+orion.getSubscriptionCount()+" subscriptions at the Context Broker");
+		if(errors>0){
+			System.out.println(errors+" registrations failed, first error: "
+				+loadClients.stream().filter(client -> client.getError()!=null).findFirst().get().getError());
+		}
+
+		orion.startNotifying(rate, attributes, posters);
+		long start = System.nanoTime();
+		long lastSent = 0;
+		long lastReceived = 0;
+		for(int second=5; second<=duration; second+=5){
+			Thread.sleep(5000);
+			long sent = orion.getSent();
+			long delivered = received.get();
+			System.out.println(String.format("%4ds sent %8d/s  delivered %8d/s  p50 %6d us  p99 %6d us",
+					second, (sent-lastSent)/5, (delivered-lastReceived)/5, latencies.percentile(50), latencies.percentile(99)));
+			lastSent = sent;
+			lastReceived = delivered;
+		}
+		orion.stop();
+		//let the notifications in flight arrive
+		Thread.sleep(2000);
+		double seconds = (System.nanoTime()-start)/1e9;
+
+		System.gc();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		//the JVM figures include the clients, and the middleware as well unless target is given
+		String measured = middleware==null ? " (load test only)" : " (middleware and load test)";
+
+		System.out.println();
+		System.out.println("Clients:          "+clients+" on "+entities+" entities");
+		System.out.println("Notifications:    "+orion.getSent()+" sent, "+orion.getFailed()+" failed, "+received.get()+" delivered");
+		System.out.println(String.format("Throughput:       %.0f notifications/s in, %.0f frames/s out", orion.getSent()/seconds, received.get()/seconds));
+		System.out.println(String.format("Latency (us):     p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+				latencies.percentile(50), latencies.percentile(90), latencies.percentile(99), latencies.percentile(99.9), latencies.getMax()));
+		System.out.println(String.format("Heap (MB):        %d used after GC, %d committed, %d max%s",
+				heap.getUsed()>>20, heap.getCommitted()>>20, heap.getMax()>>20, measured));
+		System.out.println(String.format("Non-heap (MB):    %d used, %d committed%s", nonHeap.getUsed()>>20, nonHeap.getCommitted()>>20, measured));
+		System.out.println(String.format("Threads:          %d live, %d peak platform threads%s%s",
+				threads.getThreadCount(), threads.getPeakThreadCount(), measured, middleware==null ? "" : ", executor "+executor));
+
+		for(LoadClient client: loadClients){
+			client.disconnect();
+		}
+		stompClient.stop();
+		scheduler.shutdown();
+		if(middleware!=null){
+			middleware.close();
+		}
+		System.exit(0);
+	}
+
+
+	private static File connectionProperties(int port, int orionPort, String executor) throws IOException{
+		File file = File.createTempFile("loadtest-connection", ".properties");
+		file.deleteOnExit();
+		try(Writer writer = new FileWriter(file)){
+			writer.write("serverUrl=http://localhost:"+orionPort+"\n");
+			writer.write("tokenUrl=http://localhost:"+orionPort+"\n");
+			writer.write("localURI=http://localhost:"+port+"/receiveNotifications\n");
+			writer.write("clientId=loadtest\n");
+			writer.write("clientSecret=loadtest\n");
+			writer.write("orion.executor="+executor+"\n");
+		}
+		return file;
+	}
+
+	private static Map<String, String> parse(String[] args){
+		Map<String, String> options = new HashMap<>();
+		for(String arg: args){
+			if(arg.startsWith("--") && arg.contains("=")){
+				options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=')+1));
+			}
+		}
+		return options;
+	}
+
+	private static int intOption(Map<String, String> options, String name, int defaultValue){
+		String value = options.get(name);
+		return value==null ? defaultValue : Integer.parseInt(value);
+	}
+
+}
@@ -0,0 +1,96 @@
+package dk.alexandra.organicity.auth;
+
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.stereotype.Component;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Verifies the token a client sends in the token header of its CONNECT frame, or as Authorization: Bearer,
+ * and binds it to the session, so frames sent later with the same token are not verified again.
+ * Clients connecting without a token verify the token of every subscription as before. A CONNECT with a token
+ * that is not valid is refused
+ * Registered in {@link dk.alexandra.organicity.config.WebSocketConfig} as interceptor on the clientInboundChannel
+ *
+ */
+@Component
+public class ConnectAuthenticator extends ChannelInterceptorAdapter {
+
+	protected static final Logger LOGGER = LogManager.getLogger(ConnectAuthenticator.class);
+	private static final String SESSION_ATTRIBUTE = "auth.verifiedToken";
+	private static final String BEARER = "Bearer ";
+
+	@Autowired
+	private TokenVerifier verifier;
+
+
+	public ConnectAuthenticator(){
+	}
+
+	//for tests
+	ConnectAuthenticator(TokenVerifier verifier){
+		this.verifier = verifier;
+	}
+
+
+	@Override
+	public Message<?> preSend(Message<?> message, MessageChannel channel) {
+		StompHeaderAccessor headers = StompHeaderAccessor.wrap(message);
+		if(!StompCommand.CONNECT.equals(headers.getCommand())){
+			return message;
+		}
+		String token = headers.getFirstNativeHeader("token");
+		String authorization = headers.getFirstNativeHeader("Authorization");
+		if(token==null && authorization!=null && authorization.startsWith(BEARER)){
+			token = authorization.substring(BEARER.length()).trim();
+		}
+		if(token==null){
+			return message;
+		}
+
+		VerifiedToken verified = verifier.verify(token);
+		if(verified==null){
+			throw new MessageDeliveryException(message, "401 - Token not verified");
+		}
+		Map<String, Object> attributes = headers.getSessionAttributes();
+		if(attributes!=null){
+			attributes.put(SESSION_ATTRIBUTE, verified);
+			LOGGER.debug("Session {} connected as {}", headers.getSessionId(), verified.getClientId());
+		}
+		return message;
+	}
+
+
+	/**
+	 * Method for getting the id of the user sending a frame
+	 * Uses the token bound to the session if the frame carries the same token or none, and verifies the token otherwise
+	 *
+	 * @param headerAccessor The headers of the frame
+	 * @param token The token sent in the frame, may be null
+	 *
+	 * @return The id of the user, null if no valid token was given
+	 */
+	public String clientIdOf(SimpMessageHeaderAccessor headerAccessor, String token){
+		Map<String, Object> attributes = headerAccessor.getSessionAttributes();
+		VerifiedToken bound = attributes==null ? null : (VerifiedToken) attributes.get(SESSION_ATTRIBUTE);
+		if(bound!=null && !bound.isExpired() && (token==null || verifier.matches(bound, token))){
+			return bound.getClientId();
+		}
+		VerifiedToken verified = verifier.verify(token);
+		return verified==null ? null : verified.getClientId();
+	}
+
+}
@@ -0,0 +1,155 @@
+package dk.alexandra.organicity.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import dk.alexandra.organicity.config.JwtParser;
+import io.jsonwebtoken.Claims;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Verifies the tokens of users, keeping the verified claims so the signature of a token is only checked once
+ * Tokens are cached by their SHA-256 hash, at most auth.cache.maxSize of them, and a cached token is verified
+ * again once its exp claim has passed. Tokens that fail verification are not cached
+ *
+ */
+@Component
+public class TokenVerifier {
+
+	protected static final Logger LOGGER = LogManager.getLogger(TokenVerifier.class);
+
+	@Value("${auth.cache.maxSize:10000}")
+	private long maxSize;
+
+	//for tokens without exp
+	@Value("${auth.cache.ttl:3600000}")
+	private long ttl;
+
+	private Cache<String, VerifiedToken> cache;
+	private final LongAdder verifications = new LongAdder();
+
+
+	public TokenVerifier(){
+	}
+
+	//for tests
+	TokenVerifier(long maxSize, long ttl){
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		start();
+	}
+
+
+	@PostConstruct
+	void start(){
+		cache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+
+	/**
+	 * Method for verifying the token of a user
+	 *
+	 * @param token The token
+	 *
+	 * @return The verified token, null if the token is not valid
+	 */
+	public VerifiedToken verify(String token){
+		if(token==null || token.isEmpty()){
+			return null;
+		}
+		String hash = hash(token);
+		VerifiedToken verified = cache.getIfPresent(hash);
+		if(verified!=null && !verified.isExpired()){
+			return verified;
+		}
+
+		verifications.increment();
+		try {
+			Claims claim = parse(token);
+			Date expiration = claim.getExpiration();
+			long expiresAt = expiration==null ? System.currentTimeMillis()+ttl : expiration.getTime();
+			verified = new VerifiedToken(hash, claim.get("clientId").toString(), expiresAt);
+		} catch (Exception e) {
+			LOGGER.error("Client not verified: {}", e.getMessage());
+			cache.invalidate(hash);
+			return null;
+		}
+		LOGGER.debug("client verified");
+		cache.put(hash, verified);
+		return verified;
+	}
+
+
+	/**
+	 * Checks the signature of a token and reads its claims
+	 *
+	 * @param token The token
+	 *
+	 * @return The claims of the token
+	 * @throws Exception if the token is not valid
+	 */
+	Claims parse(String token) throws Exception{
+		return new JwtParser().parseJWT(token);
+	}
+
+
+	/**
+	 * Method for checking if a token is the one already verified, without verifying it again
+	 *
+	 * @param verified The token verified earlier
+	 * @param token The token
+	 *
+	 * @return true if the tokens are the same and it has not expired
+	 */
+	public boolean matches(VerifiedToken verified, String token){
+		return verified!=null && token!=null && !verified.isExpired() && verified.getHash().equals(hash(token));
+	}
+
+
+	static String hash(String token){
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		}catch(NoSuchAlgorithmException e){
+			//every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * @return The number of signatures verified
+	 */
+	public long getVerifications(){
+		return verifications.sum();
+	}
+
+	/**
+	 * @return The number of verified tokens cached
+	 */
+	public long getSize(){
+		return cache.estimatedSize();
+	}
+
+}
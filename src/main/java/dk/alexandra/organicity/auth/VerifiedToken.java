@@ -0,0 +1,43 @@
+package dk.alexandra.organicity.auth;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The result of verifying the token of a user. Only a hash of the token is kept
+ *
+ */
+public class VerifiedToken {
+
+	private final String hash;
+	private final String clientId;
+	private final long expiresAt;
+
+
+	VerifiedToken(String hash, String clientId, long expiresAt){
+		this.hash = hash;
+		this.clientId = clientId;
+		this.expiresAt = expiresAt;
+	}
+
+
+	String getHash(){
+		return hash;
+	}
+
+	/**
+	 * @return The id of the user
+	 */
+	public String getClientId(){
+		return clientId;
+	}
+
+	/**
+	 * @return true if the token has passed its exp claim
+	 */
+	public boolean isExpired(){
+		return expiresAt<=System.currentTimeMillis();
+	}
+
+}
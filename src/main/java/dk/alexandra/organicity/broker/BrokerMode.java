@@ -0,0 +1,28 @@
+package dk.alexandra.organicity.broker;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * The message broker used to deliver messages to the clients, set by broker.mode in application.properties
+ *
+ */
+public enum BrokerMode {
+
+	/**
+	 * The in-memory simple broker of Spring
+	 */
+	SIMPLE,
+
+	/**
+	 * The simple broker with a {@link DirectSubscriptionRegistry}, looking up the destination of a client in constant time
+	 */
+	DIRECT,
+
+	/**
+	 * An external STOMP broker, relayed to by Spring
+	 */
+	RELAY
+
+}
@@ -0,0 +1,128 @@
+package dk.alexandra.organicity.broker;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.broker.AbstractSubscriptionRegistry;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.PathMatcher;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Subscription registry for the simple broker with a constant time lookup of exact destinations
+ * Every client gets its own destination for /user/queue/orion (/message/queue/orion-user{sessionId}), so the default
+ * registry outgrows its destination cache with many clients and matches every subscription against every message
+ * Here exact destinations are looked up in a map, and only subscriptions with a pattern are matched one by one
+ * Selector headers are not supported
+ *
+ */
+public class DirectSubscriptionRegistry extends AbstractSubscriptionRegistry {
+
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+	//destination -> session -> subscription ids
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> exact = new ConcurrentHashMap<>();
+	//pattern -> session -> subscription ids
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> patterns = new ConcurrentHashMap<>();
+	//session -> subscription id -> destination
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> sessions = new ConcurrentHashMap<>();
+
+
+	@Override
+	protected void addSubscriptionInternal(String sessionId, String subsId, String destination, Message<?> message) {
+		sessions.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>()).put(subsId, destination);
+		indexOf(destination).compute(destination, (key, bySession) -> {
+			if(bySession==null){
+				bySession = new ConcurrentHashMap<>();
+			}
+			bySession.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(subsId);
+			return bySession;
+		});
+	}
+
+	@Override
+	protected void removeSubscriptionInternal(String sessionId, String subsId, Message<?> message) {
+		Map<String, String> subscriptions = sessions.get(sessionId);
+		if(subscriptions==null){
+			return;
+		}
+		String destination = subscriptions.remove(subsId);
+		if(destination!=null){
+			remove(destination, sessionId, subsId);
+		}
+	}
+
+	@Override
+	public void unregisterAllSubscriptions(String sessionId) {
+		Map<String, String> subscriptions = sessions.remove(sessionId);
+		if(subscriptions==null){
+			return;
+		}
+		for(Map.Entry<String, String> subscription: subscriptions.entrySet()){
+			remove(subscription.getValue(), sessionId, subscription.getKey());
+		}
+	}
+
+	@Override
+	protected MultiValueMap<String, String> findSubscriptionsInternal(String destination, Message<?> message) {
+		MultiValueMap<String, String> result = new LinkedMultiValueMap<>();
+		addAll(result, exact.get(destination));
+		if(!patterns.isEmpty()){
+			for(Map.Entry<String, ConcurrentHashMap<String, Set<String>>> pattern: patterns.entrySet()){
+				if(pathMatcher.match(pattern.getKey(), destination)){
+					addAll(result, pattern.getValue());
+				}
+			}
+		}
+		return result;
+	}
+
+
+	private void remove(String destination, String sessionId, String subsId){
+		indexOf(destination).computeIfPresent(destination, (key, bySession) -> {
+			Set<String> ids = bySession.get(sessionId);
+			if(ids!=null){
+				ids.remove(subsId);
+				if(ids.isEmpty()){
+					bySession.remove(sessionId);
+				}
+			}
+			return bySession.isEmpty() ? null : bySession;
+		});
+	}
+
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> indexOf(String destination){
+		return pathMatcher.isPattern(destination) ? patterns : exact;
+	}
+
+	private static void addAll(MultiValueMap<String, String> result, Map<String, Set<String>> bySession){
+		if(bySession==null){
+			return;
+		}
+		for(Map.Entry<String, Set<String>> entry: bySession.entrySet()){
+			for(String subsId: entry.getValue()){
+				result.add(entry.getKey(), subsId);
+			}
+		}
+	}
+
+
+	/**
+	 * @return The number of exact destinations with subscriptions
+	 */
+	public int getDestinationCount(){
+		return exact.size();
+	}
+
+	@Override
+	public String toString() {
+		return "DirectSubscriptionRegistry[destinations="+exact.size()+", patterns="+patterns.size()+", sessions="+sessions.size()+"]";
+	}
+
+}
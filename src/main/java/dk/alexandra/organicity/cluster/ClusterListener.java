@@ -0,0 +1,20 @@
+package dk.alexandra.organicity.cluster;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Receives notifications forwarded from other nodes
+ *
+ */
+public interface ClusterListener {
+
+	/**
+	 * Called when another node forwards a notification to this node
+	 * 
+	 * @param payload The notification as received from the Context Broker
+	 */
+	void notificationForwarded(String payload);
+
+}
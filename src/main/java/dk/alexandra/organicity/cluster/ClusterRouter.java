@@ -0,0 +1,156 @@
+package dk.alexandra.organicity.cluster;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dk.alexandra.organicity.orion.HttpClientPool;
+import dk.alexandra.organicity.orion.SharedSubscription;
+import dk.alexandra.organicity.orion.SubscriptionRegistry;
+import dk.alexandra.organicity.orion.SubscriptionRegistryListener;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Routes notifications from the Context Broker to the node holding the sessions of the subscription
+ * The Context Broker may POST a notification to any node behind the load balancer. A node delivers to its own
+ * sessions and forwards to the nodes the {@link RoutingTable} knows for the subscription. If the table only knows
+ * the routes of this node, the notification is forwarded to the node named in the reference of the subscription,
+ * see {@link #OWNER_PARAM}
+ * Forwarded notifications are only delivered locally, so a notification is never forwarded twice
+ *
+ */
+public class ClusterRouter implements SubscriptionRegistryListener, ClusterListener {
+
+	protected static final Logger LOGGER = LogManager.getLogger(ClusterRouter.class);
+	/** Query parameter of the reference given to the Context Broker holding the node that made the subscription */
+	public static final String OWNER_PARAM = "node";
+
+	private final String nodeId;
+	private final ClusterTransport transport;
+	private final RoutingTable routingTable;
+	private volatile Consumer<String> localDelivery;
+
+
+	/**
+	 * Creates the router
+	 * 
+	 * @param nodeId The id of this node
+	 * @param transport The transport to the other nodes
+	 * @param routingTable The routes of the subscriptions
+	 */
+	public ClusterRouter(String nodeId, ClusterTransport transport, RoutingTable routingTable){
+		this.nodeId = nodeId;
+		this.transport = transport;
+		this.routingTable = routingTable;
+	}
+
+
+	/**
+	 * Method for joining the cluster
+	 * 
+	 * @param registry The registry of this node, whose subscriptions are added to the routing table
+	 * @param httpClientPool The pool of the calls to the Context Broker, shared with the transport
+	 * @param localDelivery Delivers a notification to the sessions on this node
+	 */
+	public void start(SubscriptionRegistry registry, HttpClientPool httpClientPool, Consumer<String> localDelivery){
+		this.localDelivery = localDelivery;
+		registry.addListener(this);
+		transport.start(nodeId, httpClientPool, this);
+		LOGGER.info("Cluster node {} started", nodeId);
+	}
+
+
+	/**
+	 * Method for forwarding a notification received from the Context Broker to the other nodes needing it
+	 * 
+	 * @param subscriptionId The subscription the notification belongs to
+	 * @param payload The notification as received from the Context Broker
+	 * @param owner The node named in the reference of the subscription, null if none
+	 */
+	public void route(String subscriptionId, String payload, String owner){
+		Set<String> targets;
+		if(routingTable.isShared()){
+			targets = routingTable.getNodes(subscriptionId);
+		}else if(owner==null){
+			LOGGER.debug("No node in the reference of subscription: {}. Not forwarded", subscriptionId);
+			return;
+		}else{
+			//subscriptions are owned by the node that made them
+			targets = Collections.singleton(owner);
+		}
+		for(String target: targets){
+			if(!nodeId.equals(target)){
+				transport.forward(target, payload);
+			}
+		}
+	}
+
+
+	/**
+	 * Method for checking a request to /cluster/notifications
+	 * 
+	 * @param credentials The credentials sent along with the notification, may be null
+	 * 
+	 * @return true if the notification was forwarded by a node of the cluster
+	 */
+	public boolean authenticate(String credentials){
+		return transport.authenticate(credentials);
+	}
+
+
+	@Override
+	public void notificationForwarded(String payload) {
+		Consumer<String> delivery = localDelivery;
+		if(delivery==null){
+			LOGGER.error("Notification forwarded before the node was started. Ignoring..");
+			return;
+		}
+		delivery.accept(payload);
+	}
+
+	@Override
+	public void subscriptionAdded(SharedSubscription shared) {
+		routingTable.addRoute(shared.getSubscriptionId(), nodeId);
+	}
+
+	@Override
+	public void subscriptionRemoved(SharedSubscription shared) {
+		routingTable.removeRoute(shared.getSubscriptionId(), nodeId);
+	}
+
+
+	/**
+	 * @return true if the routing table knows the subscriptions of every node
+	 */
+	public boolean knowsAllRoutes(){
+		return routingTable.isShared();
+	}
+
+	/**
+	 * @param subscriptionId The id of the subscription
+	 *
+	 * @return true if a node in the cluster has sessions on the subscription
+	 */
+	public boolean isRouted(String subscriptionId){
+		return !routingTable.getNodes(subscriptionId).isEmpty();
+	}
+
+
+	public String getNodeId(){
+		return nodeId;
+	}
+
+	/**
+	 * Leaves the cluster
+	 */
+	public void stop(){
+		transport.stop();
+	}
+
+}
@@ -0,0 +1,54 @@
+package dk.alexandra.organicity.cluster;
+
+import java.util.Set;
+
+import dk.alexandra.organicity.orion.HttpClientPool;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Carries notifications between the nodes of a cluster
+ * Implementations decide how nodes find and reach each other
+ *
+ */
+public interface ClusterTransport {
+
+	/**
+	 * Joins the cluster
+	 * 
+	 * @param nodeId The id of this node
+	 * @param httpClientPool The pool of the calls to the Context Broker, for transports reaching the other nodes over HTTP
+	 * @param listener Receives the notifications forwarded to this node
+	 */
+	void start(String nodeId, HttpClientPool httpClientPool, ClusterListener listener);
+
+	/**
+	 * Forwards a notification from the Context Broker to another node. Must not block
+	 * 
+	 * @param nodeId The id of the receiving node
+	 * @param payload The notification as received from the Context Broker
+	 */
+	void forward(String nodeId, String payload);
+
+	/**
+	 * @return The ids of the other nodes in the cluster
+	 */
+	Set<String> getPeers();
+
+	/**
+	 * Method for checking the credentials sent along with a notification forwarded to /cluster/notifications
+	 * 
+	 * @param credentials The credentials of the request, may be null
+	 * 
+	 * @return true if the request comes from a node of the cluster
+	 */
+	boolean authenticate(String credentials);
+
+	/**
+	 * Leaves the cluster
+	 */
+	void stop();
+
+}
@@ -0,0 +1,143 @@
+package dk.alexandra.organicity.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.client.ClientProperties;
+
+import dk.alexandra.organicity.orion.HttpClientPool;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Transport between nodes reachable over HTTP
+ * Notifications are POSTed to /cluster/notifications on the receiving node along with the secret shared by the nodes,
+ * over the keep-alive connections of the {@link HttpClientPool} of the Context Broker calls
+ * Peers are given as a comma separated list of nodeId=url, e.g. nodeA=http://10.0.0.1:8090,nodeB=http://10.0.0.2:8090
+ *
+ */
+public class HttpClusterTransport implements ClusterTransport {
+
+	protected static final Logger LOGGER = LogManager.getLogger(HttpClusterTransport.class);
+	public static final String PATH = "/cluster/notifications";
+	public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+	private final Map<String, String> peers;
+	private final String secret;
+	private final int timeout;
+	private volatile Client client;
+
+
+	/**
+	 * Creates the transport
+	 * 
+	 * @param peers The peers as nodeId=url pairs, may contain this node as well
+	 * @param timeout Connect and read timeout in ms
+	 * @param secret The secret shared by the nodes
+	 */
+	public HttpClusterTransport(String peers, int timeout, String secret){
+		if(secret==null || secret.isEmpty()){
+			throw new IllegalArgumentException("cluster.secret must be set for the http transport");
+		}
+		this.peers = parsePeers(peers);
+		this.secret = secret;
+		this.timeout = timeout;
+	}
+
+
+	private static Map<String, String> parsePeers(String peers){
+		Map<String, String> parsed = new LinkedHashMap<>();
+		if(peers==null){
+			return parsed;
+		}
+		for(String peer: peers.split(",")){
+			String[] pair = peer.trim().split("=", 2);
+			if(pair.length!=2 || pair[0].isEmpty()){
+				if(!peer.trim().isEmpty()){
+					LOGGER.error("Ignoring malformed cluster peer: {}", peer);
+				}
+				continue;
+			}
+			String url = pair[1].trim();
+			parsed.put(pair[0].trim(), url.endsWith("/") ? url.substring(0, url.length()-1) : url);
+		}
+		return parsed;
+	}
+
+
+	@Override
+	public void start(String nodeId, HttpClientPool httpClientPool, ClusterListener listener) {
+		//notifications from peers arrive through the controller, see PATH
+		client = httpClientPool.getClient();
+		peers.remove(nodeId);
+		LOGGER.info("Node {} joined cluster with peers: {}", nodeId, peers.keySet());
+	}
+
+	@Override
+	public void forward(String nodeId, String payload) {
+		String url = peers.get(nodeId);
+		if(url==null){
+			LOGGER.error("Unknown node: {}", nodeId);
+			return;
+		}
+		if(client==null){
+			LOGGER.error("Notification forwarded to {} before the node was started. Ignoring..", nodeId);
+			return;
+		}
+		try{
+			client.target(url).path(PATH)
+				.property(ClientProperties.CONNECT_TIMEOUT, timeout)
+				.property(ClientProperties.READ_TIMEOUT, timeout)
+				.request().header(SECRET_HEADER, secret).async().post(Entity.entity(payload, MediaType.APPLICATION_JSON), new InvocationCallback<Response>() {
+
+				@Override
+				public void completed(Response response) {
+					if(response.getStatus()>=300){
+						LOGGER.error("Node {} answered {} to forwarded notification", nodeId, response.getStatus());
+					}
+					response.close();
+				}
+
+				@Override
+				public void failed(Throwable e) {
+					LOGGER.error("Not able to forward notification to {}: {}", nodeId, e.getMessage());
+				}
+
+			});
+		}catch(ProcessingException e){
+			LOGGER.error("Not able to forward notification to {}: {}", nodeId, e.getMessage());
+		}
+	}
+
+	@Override
+	public Set<String> getPeers() {
+		return Collections.unmodifiableSet(peers.keySet());
+	}
+
+	@Override
+	public boolean authenticate(String credentials) {
+		return credentials!=null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), credentials.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void stop() {
+		//the client is shared and closed with the pool
+		client = null;
+	}
+
+}
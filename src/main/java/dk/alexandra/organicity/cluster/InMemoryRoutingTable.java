@@ -0,0 +1,61 @@
+package dk.alexandra.organicity.cluster;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Routing table kept in memory
+ * The instance returned by {@link #jvmShared()} is shared by every node in the same JVM, so it holds the routes of
+ * the whole cluster when several nodes are run together with the {@link LoopbackClusterTransport}
+ *
+ */
+public class InMemoryRoutingTable implements RoutingTable {
+
+	private static final InMemoryRoutingTable JVM_SHARED = new InMemoryRoutingTable(true);
+
+	private final ConcurrentHashMap<String, Set<String>> routes = new ConcurrentHashMap<>();
+	private final boolean shared;
+
+
+	public InMemoryRoutingTable(boolean shared){
+		this.shared = shared;
+	}
+
+	/**
+	 * @return The table shared by every node in this JVM
+	 */
+	public static InMemoryRoutingTable jvmShared(){
+		return JVM_SHARED;
+	}
+
+
+	@Override
+	public void addRoute(String subscriptionId, String nodeId) {
+		routes.computeIfAbsent(subscriptionId, id -> ConcurrentHashMap.newKeySet()).add(nodeId);
+	}
+
+	@Override
+	public void removeRoute(String subscriptionId, String nodeId) {
+		routes.computeIfPresent(subscriptionId, (id, nodes) -> {
+			nodes.remove(nodeId);
+			return nodes.isEmpty() ? null : nodes;
+		});
+	}
+
+	@Override
+	public Set<String> getNodes(String subscriptionId) {
+		Set<String> nodes = routes.get(subscriptionId);
+		return nodes==null ? Collections.emptySet() : nodes;
+	}
+
+	@Override
+	public boolean isShared() {
+		return shared;
+	}
+
+}
@@ -0,0 +1,70 @@
+package dk.alexandra.organicity.cluster;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dk.alexandra.organicity.orion.HttpClientPool;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Transport between nodes running in the same JVM, used to run and test a cluster in one process
+ *
+ */
+public class LoopbackClusterTransport implements ClusterTransport {
+
+	protected static final Logger LOGGER = LogManager.getLogger(LoopbackClusterTransport.class);
+	private static final ConcurrentHashMap<String, ClusterListener> NODES = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "cluster-loopback");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private String nodeId;
+
+
+	@Override
+	public void start(String nodeId, HttpClientPool httpClientPool, ClusterListener listener) {
+		this.nodeId = nodeId;
+		NODES.put(nodeId, listener);
+	}
+
+	@Override
+	public void forward(String nodeId, String payload) {
+		ClusterListener listener = NODES.get(nodeId);
+		if(listener==null){
+			LOGGER.error("Unknown node: {}", nodeId);
+			return;
+		}
+		executor.execute(() -> listener.notificationForwarded(payload));
+	}
+
+	@Override
+	public Set<String> getPeers() {
+		Set<String> peers = new HashSet<>(NODES.keySet());
+		peers.remove(nodeId);
+		return peers;
+	}
+
+	@Override
+	public boolean authenticate(String credentials) {
+		//notifications are never forwarded over HTTP
+		return false;
+	}
+
+	@Override
+	public void stop() {
+		NODES.remove(nodeId);
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,31 @@
+package dk.alexandra.organicity.cluster;
+
+import java.util.Set;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Maps subscriptions at the Context Broker to the nodes with sessions attached to them
+ *
+ */
+public interface RoutingTable {
+
+	void addRoute(String subscriptionId, String nodeId);
+
+	void removeRoute(String subscriptionId, String nodeId);
+
+	/**
+	 * @param subscriptionId The id of the subscription
+	 * 
+	 * @return The nodes with sessions attached to the subscription, empty if none are known
+	 */
+	Set<String> getNodes(String subscriptionId);
+
+	/**
+	 * @return true if the table holds the routes of every node, false if it only knows the routes of this node
+	 */
+	boolean isShared();
+
+}
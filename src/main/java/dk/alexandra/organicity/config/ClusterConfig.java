@@ -0,0 +1,67 @@
+package dk.alexandra.organicity.config;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import dk.alexandra.organicity.cluster.ClusterRouter;
+import dk.alexandra.organicity.cluster.ClusterTransport;
+import dk.alexandra.organicity.cluster.HttpClusterTransport;
+import dk.alexandra.organicity.cluster.InMemoryRoutingTable;
+import dk.alexandra.organicity.cluster.LoopbackClusterTransport;
+import dk.alexandra.organicity.cluster.RoutingTable;
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Sets up cluster mode when cluster.enabled is true
+ * cluster.transport is loopback, for several nodes in one JVM, or http
+ * cluster.nodeId must be set, as the subscriptions restored from the journal keep naming the node that made them
+ *
+ */
+@Configuration
+@ConditionalOnProperty(name = "cluster.enabled", havingValue = "true")
+public class ClusterConfig {
+	
+	protected static final Logger LOGGER = LogManager.getLogger(ClusterConfig.class);
+	
+	@Value("${cluster.nodeId:}")
+	private String nodeId;
+	
+	@Value("${cluster.transport:http}")
+	private String transport;
+	
+	@Value("${cluster.peers:}")
+	private String peers;
+	
+	@Value("${cluster.timeout:2000}")
+	private int timeout;
+	
+	@Value("${cluster.secret:}")
+	private String secret;
+	
+	
+	@Bean(destroyMethod = "stop")
+	public ClusterRouter clusterRouter(){
+		String id = nodeId.trim();
+		if(id.isEmpty()){
+			throw new IllegalArgumentException("cluster.nodeId must be set and stay the same across restarts");
+		}
+		ClusterTransport clusterTransport;
+		RoutingTable routingTable;
+		if("loopback".equals(transport)){
+			clusterTransport = new LoopbackClusterTransport();
+			routingTable = InMemoryRoutingTable.jvmShared();
+		}else{
+			clusterTransport = new HttpClusterTransport(peers, timeout, secret);
+			routingTable = new InMemoryRoutingTable(false);
+		}
+		LOGGER.info("Cluster mode enabled with {} transport as node {}", transport, id);
+		return new ClusterRouter(id, clusterTransport, routingTable);
+	}
+
+}
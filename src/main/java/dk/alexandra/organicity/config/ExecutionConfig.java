@@ -0,0 +1,78 @@
+package dk.alexandra.organicity.config;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Configuration;
+
+import dk.alexandra.organicity.orion.VirtualThreads;
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Runs the HTTP requests, e.g. the notifications POSTed by the Context Broker to /receiveNotifications, on virtual threads
+ * instead of the Tomcat thread pool when web.executor=virtual and the JVM has virtual threads.
+ * At most web.virtual.maxConcurrent requests are handled at a time, the rest wait on their virtual thread
+ *
+ */
+@Configuration
+public class ExecutionConfig implements EmbeddedServletContainerCustomizer {
+	
+	protected static final Logger LOGGER = LogManager.getLogger(ExecutionConfig.class);
+	
+	@Value("${web.executor:platform}")
+	private String mode;
+	
+	@Value("${web.virtual.maxConcurrent:1000}")
+	private int maxConcurrent;
+	
+	private ExecutorService virtual;
+	
+	
+	@Override
+	public void customize(ConfigurableEmbeddedServletContainer container) {
+		if(!"virtual".equalsIgnoreCase(mode) || !(container instanceof TomcatEmbeddedServletContainerFactory)){
+			return;
+		}
+		virtual = VirtualThreads.newExecutor("http-virtual");
+		if(virtual==null){
+			LOGGER.warn("web.executor=virtual needs Java 21 or later. Using the Tomcat thread pool");
+			return;
+		}
+		Semaphore permits = new Semaphore(maxConcurrent);
+		Executor limited = request -> virtual.execute(() -> {
+			permits.acquireUninterruptibly();
+			try{
+				request.run();
+			}finally{
+				permits.release();
+			}
+		});
+		((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+			if(connector.getProtocolHandler() instanceof AbstractProtocol){
+				((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(limited);
+				LOGGER.info("Handling HTTP requests on virtual threads, at most {} at a time", maxConcurrent);
+			}
+		});
+	}
+	
+	
+	@PreDestroy
+	private void shutdown(){
+		if(virtual!=null){
+			virtual.shutdown();
+		}
+	}
+
+}
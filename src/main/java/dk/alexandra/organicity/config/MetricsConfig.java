@@ -0,0 +1,44 @@
+package dk.alexandra.organicity.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Sets up the metrics, published over JMX and scraped by Prometheus at /prometheus
+ *
+ */
+@Configuration
+public class MetricsConfig {
+	
+	@Value("${metrics.jmx.enabled:true}")
+	private boolean jmxEnabled;
+	
+	
+	@Bean
+	public PrometheusMeterRegistry prometheusMeterRegistry(){
+		return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+	}
+	
+	@Bean
+	public MiddlewareMetrics middlewareMetrics(PrometheusMeterRegistry prometheusMeterRegistry){
+		CompositeMeterRegistry registry = new CompositeMeterRegistry();
+		registry.add(prometheusMeterRegistry);
+		if(jmxEnabled){
+			registry.add(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+		}
+		return new MiddlewareMetrics(registry);
+	}
+
+}
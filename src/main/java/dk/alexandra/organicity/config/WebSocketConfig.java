@@ -1,27 +1,178 @@
 package dk.alexandra.organicity.config;
 
-import org.apache.log4j.Logger;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.AbstractWebSocketMessageBrokerConfigurer;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import dk.alexandra.organicity.auth.ConnectAuthenticator;
+import dk.alexandra.organicity.broker.BrokerMode;
+import dk.alexandra.organicity.broker.DirectSubscriptionRegistry;
+import dk.alexandra.organicity.delivery.SessionOutboundQueues;
+import dk.alexandra.organicity.wire.NegotiatedMessageConverter;
+import dk.alexandra.organicity.wire.WireFormats;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig extends AbstractWebSocketMessageBrokerConfigurer {
 	
-	protected static final Logger LOGGER = Logger.getLogger(WebSocketConfig.class);
+	protected static final Logger LOGGER = LogManager.getLogger(WebSocketConfig.class);
+	
+	@Autowired
+	private SessionOutboundQueues outboundQueues;
+	
+	@Autowired
+	private WireFormats wireFormats;
+	
+	@Autowired
+	private ConnectAuthenticator connectAuthenticator;
+	
+	@Value("${websocket.sendTimeLimit:10000}")
+	private int sendTimeLimit;
+	
+	@Value("${websocket.sendBufferSizeLimit:524288}")
+	private int sendBufferSizeLimit;
+	
+	@Value("${broker.mode:SIMPLE}")
+	private BrokerMode brokerMode;
+	
+	@Value("${broker.cacheLimit:1024}")
+	private int cacheLimit;
+	
+	@Value("${broker.relay.host:localhost}")
+	private String relayHost;
+	
+	@Value("${broker.relay.port:61613}")
+	private int relayPort;
+	
+	@Value("${broker.relay.login:guest}")
+	private String relayLogin;
+	
+	@Value("${broker.relay.passcode:guest}")
+	private String relayPasscode;
+	
+	//0 keeps the default of Spring
+	@Value("${websocket.inbound.corePoolSize:0}")
+	private int inboundCorePoolSize;
+	
+	@Value("${websocket.inbound.maxPoolSize:0}")
+	private int inboundMaxPoolSize;
+	
+	@Value("${websocket.inbound.queueCapacity:0}")
+	private int inboundQueueCapacity;
+	
+	@Value("${websocket.outbound.corePoolSize:0}")
+	private int outboundCorePoolSize;
+	
+	@Value("${websocket.outbound.maxPoolSize:0}")
+	private int outboundMaxPoolSize;
+	
+	@Value("${websocket.outbound.queueCapacity:0}")
+	private int outboundQueueCapacity;
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/message");
+    	LOGGER.info("Using {} message broker", brokerMode);
+    	if(brokerMode==BrokerMode.RELAY){
+    		//the external broker must accept /message/... destinations
+    		config.enableStompBrokerRelay("/message")
+    			.setRelayHost(relayHost)
+    			.setRelayPort(relayPort)
+    			.setClientLogin(relayLogin)
+    			.setClientPasscode(relayPasscode)
+    			.setSystemLogin(relayLogin)
+    			.setSystemPasscode(relayPasscode);
+    	}else{
+    		config.enableSimpleBroker("/message");
+    		config.setCacheLimit(cacheLimit);
+    	}
         config.setApplicationDestinationPrefixes("/app");
     }
+    
+    /**
+	 * Installs the {@link DirectSubscriptionRegistry} in the simple broker when broker.mode is DIRECT
+	 * 
+	 * @param brokerMode The broker mode
+	 * 
+	 * @return The post processor
+	 */
+    @Bean
+    public static BeanPostProcessor directSubscriptionRegistryInstaller(@Value("${broker.mode:SIMPLE}") BrokerMode brokerMode){
+    	return new BeanPostProcessor() {
+			
+			@Override
+			public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+				if(brokerMode==BrokerMode.DIRECT && bean instanceof SimpleBrokerMessageHandler){
+					((SimpleBrokerMessageHandler) bean).setSubscriptionRegistry(new DirectSubscriptionRegistry());
+				}
+				return bean;
+			}
+			
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+				return bean;
+			}
+		};
+    }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         registry.addEndpoint("/orion").withSockJS();
+        //plain WebSocket, needed for the binary wire formats
+        registry.addEndpoint("/orion-ws").addInterceptors(wireFormats);
+    }
+    
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+    	//before the default converters, which are used for JSON clients
+    	messageConverters.add(new NegotiatedMessageConverter(wireFormats));
+    	return true;
+    }
+    
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setSendTimeLimit(sendTimeLimit);
+        registration.setSendBufferSizeLimit(sendBufferSizeLimit);
+        registration.setDecoratorFactories(outboundQueues);
+    }
+    
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        configureExecutor(registration, inboundCorePoolSize, inboundMaxPoolSize, inboundQueueCapacity);
+        registration.setInterceptors(wireFormats, connectAuthenticator);
+    }
+    
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        configureExecutor(registration, outboundCorePoolSize, outboundMaxPoolSize, outboundQueueCapacity);
+        //bounds the notifications handed to the outbound channel per client
+        registration.setInterceptors(outboundQueues);
+    }
+    
+    private void configureExecutor(ChannelRegistration registration, int corePoolSize, int maxPoolSize, int queueCapacity){
+    	if(corePoolSize>0){
+    		registration.taskExecutor().corePoolSize(corePoolSize);
+    	}
+    	if(maxPoolSize>0){
+    		registration.taskExecutor().maxPoolSize(maxPoolSize);
+    	}
+    	if(queueCapacity>0){
+    		registration.taskExecutor().queueCapacity(queueCapacity);
+    	}
     }
     
 
@@ -0,0 +1,133 @@
+package dk.alexandra.organicity.delivery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The throttles set by clients with the throttle field when registering, by session and subscription
+ * Throttled notifications are merged per entity and handed to {@link SessionOutboundQueues} at the cadence
+ * asked for, driven by one {@link TimerWheel}. The Context Broker subscription is not changed
+ *
+ */
+@Component
+public class DeliveryThrottles {
+
+	@Value("${throttle.tick:50}")
+	private long tick;
+
+	@Value("${throttle.wheelSize:512}")
+	private int wheelSize;
+
+	@Autowired
+	private SessionOutboundQueues outboundQueues;
+
+	private TimerWheel wheel;
+	private final ConcurrentHashMap<String, Map<String, ThrottledDelivery>> throttles = new ConcurrentHashMap<>();
+
+
+	public DeliveryThrottles(){
+	}
+
+	//for tests
+	DeliveryThrottles(TimerWheel wheel, SessionOutboundQueues outboundQueues){
+		this.wheel = wheel;
+		this.outboundQueues = outboundQueues;
+	}
+
+
+	@PostConstruct
+	void start(){
+		wheel = new TimerWheel(tick, wheelSize);
+	}
+
+	@PreDestroy
+	void stop(){
+		wheel.stop();
+	}
+
+
+	/**
+	 * Method for throttling the notifications of a client on a subscription
+	 * The notifications held back by a throttle it replaces are sent at once
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param minInterval The minimum time between two sends in ms, 0 or less to remove the throttle
+	 */
+	public void put(String sessionId, String subscriptionId, long minInterval){
+		if(minInterval<=0){
+			remove(sessionId, subscriptionId);
+			return;
+		}
+		ThrottledDelivery throttle = new ThrottledDelivery(minInterval, wheel, notifications -> outboundQueues.enqueue(sessionId, notifications));
+		ThrottledDelivery previous = throttles.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>()).put(subscriptionId, throttle);
+		if(previous!=null){
+			previous.close();
+		}
+	}
+
+
+	/**
+	 * Method for removing the throttle of a client on a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 */
+	public void remove(String sessionId, String subscriptionId){
+		throttles.computeIfPresent(sessionId, (id, subscriptions) -> {
+			ThrottledDelivery throttle = subscriptions.remove(subscriptionId);
+			if(throttle!=null){
+				throttle.cancel();
+			}
+			return subscriptions.isEmpty() ? null : subscriptions;
+		});
+	}
+
+
+	/**
+	 * Method for removing all throttles of a client
+	 *
+	 * @param sessionId The id of the client
+	 */
+	public void removeSession(String sessionId){
+		Map<String, ThrottledDelivery> subscriptions = throttles.remove(sessionId);
+		if(subscriptions!=null){
+			for(ThrottledDelivery throttle: subscriptions.values()){
+				throttle.cancel();
+			}
+		}
+	}
+
+
+	/**
+	 * Method for sending notifications to a client, throttled if the client has asked for it
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription the notifications were received on
+	 * @param notifications The notifications to send
+	 */
+	public void send(String sessionId, String subscriptionId, List<Notification> notifications){
+		Map<String, ThrottledDelivery> subscriptions = throttles.get(sessionId);
+		ThrottledDelivery throttle = subscriptions==null ? null : subscriptions.get(subscriptionId);
+		if(throttle==null){
+			outboundQueues.enqueue(sessionId, notifications);
+		}else{
+			throttle.offer(notifications);
+		}
+	}
+
+}
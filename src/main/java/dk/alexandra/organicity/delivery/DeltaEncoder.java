@@ -0,0 +1,328 @@
+package dk.alexandra.organicity.delivery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.OutOfBandMessage;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Sends only the attributes that have changed to clients that registered with "delta": true
+ * The first notification of an entity is sent as received, later ones only with the attributes whose value differs
+ * from the last one sent, so the client keeps the state by merging every frame into it.
+ * The state sent is kept in one LRU cache for all clients, bounded by the number of attribute values in delta.maxAttributes.
+ * When the state of an entity is evicted, the client gets a resync message with the entity id and the next
+ * notification of the entity is sent in full. The resync is queued behind the notifications already queued for the client. The state of a client is dropped as well when its queue has dropped
+ * notifications, as the client may have missed a change
+ * Every client keeps an index of its entries in the cache, so its state is dropped without scanning the cache
+ *
+ */
+@Component
+public class DeltaEncoder {
+
+	protected static final Logger LOGGER = LogManager.getLogger(DeltaEncoder.class);
+
+	@Value("${delta.maxAttributes:1000000}")
+	private long maxAttributes;
+
+	@Autowired
+	private SessionOutboundQueues outboundQueues;
+
+	private Cache<Key, String[]> state;
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder resyncs = new LongAdder();
+
+
+	public DeltaEncoder(){
+	}
+
+	//for tests
+	DeltaEncoder(long maxAttributes, SessionOutboundQueues outboundQueues){
+		this.maxAttributes = maxAttributes;
+		this.outboundQueues = outboundQueues;
+	}
+
+
+	@PostConstruct
+	void start(){
+		state = Caffeine.newBuilder()
+				.maximumWeight(maxAttributes)
+				//the resync is queued by the thread evicting, before the entity can be encoded again
+				.executor(Runnable::run)
+				.weigher((Key key, String[] values) -> Math.max(1, values.length/2))
+				.removalListener((Key key, String[] values, RemovalCause cause) -> {
+					if(cause!=RemovalCause.REPLACED){
+						key.session.keys.remove(key);
+					}
+					if(cause==RemovalCause.SIZE){
+						evictions.increment();
+						resync(key);
+					}
+				})
+				.build();
+	}
+
+
+	/**
+	 * Method for turning delta encoding on for a client on a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param enabled true to send only changed attributes
+	 */
+	public void put(String sessionId, String subscriptionId, boolean enabled){
+		if(!enabled){
+			remove(sessionId, subscriptionId);
+			return;
+		}
+		sessions.computeIfAbsent(sessionId, Session::new).subscriptions.add(subscriptionId);
+	}
+
+
+	/**
+	 * Method for turning delta encoding off for a client on a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 */
+	public void remove(String sessionId, String subscriptionId){
+		Session session = sessions.get(sessionId);
+		if(session!=null){
+			session.subscriptions.remove(subscriptionId);
+			List<Key> keys = new ArrayList<>();
+			for(Key key: session.keys){
+				if(subscriptionId.equals(key.subscriptionId)){
+					keys.add(key);
+				}
+			}
+			state.invalidateAll(keys);
+		}
+	}
+
+
+	/**
+	 * Method for dropping the state of a client that has disconnected
+	 *
+	 * @param sessionId The id of the client
+	 */
+	public void removeSession(String sessionId){
+		Session session = sessions.remove(sessionId);
+		if(session!=null){
+			state.invalidateAll(new ArrayList<>(session.keys));
+		}
+	}
+
+
+	/**
+	 * Method for reducing notifications to the attributes the client does not have yet
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription the notifications were received on
+	 * @param notifications The notifications to send
+	 *
+	 * @return The notifications with only the changed attributes, the same list if the client does not use delta encoding
+	 */
+	public List<Notification> encode(String sessionId, String subscriptionId, List<Notification> notifications){
+		Session session = sessions.get(sessionId);
+		if(session==null || !session.subscriptions.contains(subscriptionId)){
+			return notifications;
+		}
+		long dropped = outboundQueues.getDropped(sessionId);
+		if(dropped!=session.dropped){
+			//a delta may have been lost, start over with full state
+			session.dropped = dropped;
+			session.epoch.incrementAndGet();
+			state.invalidateAll(new ArrayList<>(session.keys));
+		}
+
+		int epoch = session.epoch.get();
+		List<Notification> changed = new ArrayList<>(notifications.size());
+		for(Notification notification: notifications){
+			ContextElement element = notification.getElement();
+			if(element.getAttributes()==null){
+				changed.add(notification);
+				continue;
+			}
+			Key key = new Key(session, epoch, subscriptionId, element.getId());
+			List<Attributes> delta = new ArrayList<>();
+			state.asMap().compute(key, (k, last) -> diff(last, element.getAttributes(), delta));
+			session.keys.add(key);
+			if(delta.size()==element.getAttributes().size()){
+				changed.add(notification);
+			}else if(!delta.isEmpty()){
+				ContextElement copy = new ContextElement(element.getType(), element.getIsPattern(), element.getId(), delta);
+				changed.add(new Notification(copy, notification.getSubscriptionId()));
+			}
+		}
+		return changed;
+	}
+
+
+	/**
+	 * Method for finding the changed attributes
+	 *
+	 * @param last The names and values sent last, name and value after each other, null if nothing has been sent
+	 * @param attributes The attributes received
+	 * @param delta Filled with the attributes that have changed
+	 *
+	 * @return The names and values after sending the delta
+	 */
+	static String[] diff(String[] last, List<Attributes> attributes, List<Attributes> delta){
+		if(last==null){
+			delta.addAll(attributes);
+			String[] values = new String[attributes.size()*2];
+			int i = 0;
+			for(Attributes attribute: attributes){
+				values[i++] = attribute.getName();
+				values[i++] = attribute.getValue();
+			}
+			return values;
+		}
+
+		String[] values = last;
+		for(Attributes attribute: attributes){
+			int index = indexOf(values, attribute.getName());
+			if(index<0){
+				values = Arrays.copyOf(values, values.length+2);
+				values[values.length-2] = attribute.getName();
+				values[values.length-1] = attribute.getValue();
+				delta.add(attribute);
+			}else if(!equals(values[index+1], attribute.getValue())){
+				if(values==last){
+					values = last.clone();
+				}
+				values[index+1] = attribute.getValue();
+				delta.add(attribute);
+			}
+		}
+		return values;
+	}
+
+	private static int indexOf(String[] values, String name){
+		for(int i=0; i<values.length; i+=2){
+			if(values[i].equals(name)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equals(String a, String b){
+		return a==null ? b==null : a.equals(b);
+	}
+
+
+	private void resync(Key key){
+		Session session = sessions.get(key.session.sessionId);
+		if(session!=key.session || key.epoch!=session.epoch.get() || !session.subscriptions.contains(key.subscriptionId)){
+			//the client is gone or starts over anyway
+			return;
+		}
+		resyncs.increment();
+		LOGGER.debug("State of {} evicted for {}", key.entityId, session.sessionId);
+		//if dropped, the client starts over with full state anyway
+		outboundQueues.enqueueMessage(session.sessionId, new OutOfBandMessage("resync", key.entityId));
+	}
+
+
+	/**
+	 * @return The number of entities with state kept
+	 */
+	public long getEntries(){
+		return state.estimatedSize();
+	}
+
+	/**
+	 * @return The number of attribute values kept
+	 */
+	public long getAttributes(){
+		return state.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+	}
+
+	/**
+	 * @return The number of entities whose state has been evicted
+	 */
+	public long getEvictions(){
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The number of resync messages sent
+	 */
+	public long getResyncs(){
+		return resyncs.sum();
+	}
+
+
+
+	private static class Session {
+
+		final String sessionId;
+		final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+		//the entries of the client in the state, removed again when evicted
+		final Set<Key> keys = ConcurrentHashMap.newKeySet();
+		final AtomicInteger epoch = new AtomicInteger();
+		volatile long dropped = 0;
+
+		Session(String sessionId){
+			this.sessionId = sessionId;
+		}
+
+	}
+
+
+	private static class Key {
+
+		final Session session;
+		final int epoch;
+		final String subscriptionId;
+		final String entityId;
+
+		Key(Session session, int epoch, String subscriptionId, String entityId){
+			this.session = session;
+			this.epoch = epoch;
+			this.subscriptionId = subscriptionId;
+			this.entityId = entityId;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key other = (Key) o;
+			return session==other.session && epoch==other.epoch && subscriptionId.equals(other.subscriptionId) && entityId.equals(other.entityId);
+		}
+
+		@Override
+		public int hashCode(){
+			return ((System.identityHashCode(session)*31+epoch)*31+subscriptionId.hashCode())*31+entityId.hashCode();
+		}
+
+	}
+
+}
@@ -0,0 +1,29 @@
+package dk.alexandra.organicity.delivery;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * What to do when a notification is queued for a client whose outbound queue is full
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Discard the oldest queued notification
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new notification
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Merge notifications for the same entity, keeping the latest value of every attribute
+	 * Discards the oldest queued notification if the queue is still full
+	 */
+	CONFLATE
+
+}
@@ -0,0 +1,316 @@
+package dk.alexandra.organicity.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Bounded queue of notifications waiting to be sent to one client
+ * Messages to the client about its notifications, e.g. a resync, are queued in between, so they keep their order.
+ * They are sent alone, and notifications queued before them are no longer conflated
+ *
+ */
+class SessionOutboundQueue {
+
+	private final String sessionId;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+	private final Map<String, Entry> pending = new HashMap<>();
+	private final Map<Long, InFlight> inFlight = new HashMap<>();
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private long lastFrame = 0;
+	private long dropped = 0;
+	private long conflated = 0;
+	private long overLimitSince = 0;
+
+
+	SessionOutboundQueue(String sessionId, int capacity, OverflowPolicy policy){
+		this.sessionId = sessionId;
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+
+	/**
+	 * Queues a notification according to the overflow policy
+	 *
+	 * @param notification The notification to queue
+	 *
+	 * @return false if the notification was dropped
+	 */
+	synchronized boolean offer(Notification notification){
+		String key = keyOf(notification);
+		if(policy==OverflowPolicy.CONFLATE){
+			Entry entry = pending.get(key);
+			if(entry!=null){
+				entry.payload = merge((Notification) entry.payload, notification);
+				conflated++;
+				return true;
+			}
+		}
+		if(!add(new Entry(key, notification))){
+			return false;
+		}
+		pending.put(key, queue.peekLast());
+		return true;
+	}
+
+
+	/**
+	 * Queues a message after the notifications queued so far according to the overflow policy
+	 *
+	 * @param message The message to queue
+	 *
+	 * @return false if the message was dropped
+	 */
+	synchronized boolean offerMessage(Object message){
+		if(!add(new Entry(null, message))){
+			return false;
+		}
+		//a notification merged into one queued before would overtake the message
+		pending.clear();
+		return true;
+	}
+
+
+	private boolean add(Entry entry){
+		if(isFull()){
+			dropped++;
+			if(overLimitSince==0){
+				overLimitSince = System.currentTimeMillis();
+			}
+			if(policy==OverflowPolicy.DROP_NEWEST){
+				return false;
+			}
+			remove(queue.pollFirst());
+		}
+		queue.addLast(entry);
+		return true;
+	}
+
+
+	/**
+	 * Takes up to maxBatch notifications from the head of the queue, or the message at its head
+	 *
+	 * @param maxBatch The maximum number of notifications to take
+	 *
+	 * @return The notifications or the message, empty if the queue is empty
+	 */
+	synchronized List<Object> poll(int maxBatch){
+		List<Object> batch = new ArrayList<>(Math.min(maxBatch, queue.size()));
+		while(batch.size()<maxBatch && !queue.isEmpty()){
+			boolean message = queue.peekFirst().key==null;
+			if(message && !batch.isEmpty()){
+				break;
+			}
+			Entry entry = queue.pollFirst();
+			remove(entry);
+			batch.add(entry.payload);
+			if(message){
+				break;
+			}
+		}
+		if(!isFull()){
+			overLimitSince = 0;
+		}
+		return batch;
+	}
+
+
+	private void remove(Entry entry){
+		if(entry.key!=null){
+			pending.remove(entry.key, entry);
+		}
+	}
+
+	private boolean isFull(){
+		return queue.size()>=capacity;
+	}
+
+	/**
+	 * @return true if the queue is at its limit
+	 */
+	synchronized boolean isAtLimit(){
+		return isFull();
+	}
+
+	private static String keyOf(Notification notification){
+		return notification.getSubscriptionId()+"|"+notification.getElement().getId();
+	}
+
+
+	/**
+	 * Merges two notifications for the same entity without changing either of them,
+	 * as the same notification object is shared between all sessions on a subscription
+	 *
+	 * @param older The queued notification
+	 * @param newer The notification received
+	 *
+	 * @return A notification with the latest value of every attribute in both
+	 */
+	static Notification merge(Notification older, Notification newer){
+		ContextElement olderElement = older.getElement();
+		ContextElement newerElement = newer.getElement();
+		Map<String, Attributes> attributes = new LinkedHashMap<>();
+		if(olderElement.getAttributes()!=null){
+			for(Attributes attribute: olderElement.getAttributes()){
+				attributes.put(attribute.getName(), attribute);
+			}
+		}
+		if(newerElement.getAttributes()!=null){
+			for(Attributes attribute: newerElement.getAttributes()){
+				attributes.put(attribute.getName(), attribute);
+			}
+		}
+		ContextElement merged = new ContextElement(newerElement.getType(), newerElement.getIsPattern(), newerElement.getId(), new ArrayList<>(attributes.values()));
+		return new Notification(merged, newer.getSubscriptionId());
+	}
+
+
+	String getSessionId(){
+		return sessionId;
+	}
+
+	/**
+	 * Registers a frame about to be sent to the client
+	 *
+	 * @return The id of the frame
+	 */
+	synchronized long sent(){
+		long frame = ++lastFrame;
+		inFlight.put(frame, new InFlight(System.nanoTime()));
+		return frame;
+	}
+
+	/**
+	 * Marks a frame as having reached the clientOutboundChannel
+	 *
+	 * @param frame The id of the frame
+	 */
+	synchronized void reached(long frame){
+		InFlight sent = inFlight.get(frame);
+		if(sent!=null){
+			sent.reached = true;
+		}
+	}
+
+	/**
+	 * @param frame The id of the frame
+	 *
+	 * @return false if the frame is in flight and has not reached the clientOutboundChannel
+	 */
+	synchronized boolean isReached(long frame){
+		InFlight sent = inFlight.get(frame);
+		return sent==null || sent.reached;
+	}
+
+	/**
+	 * Ends a frame, when it has been written or will never be
+	 *
+	 * @param frame The id of the frame
+	 *
+	 * @return true if the frame was in flight, false if it had already ended
+	 */
+	synchronized boolean release(long frame){
+		return inFlight.remove(frame)!=null;
+	}
+
+	/**
+	 * Ends the frames that have not reached the clientOutboundChannel in time, e.g. not returned by a relayed broker
+	 *
+	 * @param timeout The time in ns a frame may take to reach the clientOutboundChannel
+	 *
+	 * @return The number of frames ended
+	 */
+	synchronized int expire(long timeout){
+		long now = System.nanoTime();
+		int expired = 0;
+		for(Iterator<InFlight> it = inFlight.values().iterator(); it.hasNext();){
+			InFlight sent = it.next();
+			if(!sent.reached && now-sent.sent>timeout){
+				it.remove();
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return The number of frames sent and not yet written to the socket
+	 */
+	synchronized int getInFlight(){
+		return inFlight.size();
+	}
+
+	/**
+	 * @return The lock held by the thread sending from this queue
+	 */
+	ReentrantLock getDrainLock(){
+		return drainLock;
+	}
+
+	synchronized boolean canDrain(int maxInFlight){
+		return !queue.isEmpty() && inFlight.size()<maxInFlight;
+	}
+
+	synchronized int size(){
+		return queue.size();
+	}
+
+	synchronized long getDropped(){
+		return dropped;
+	}
+
+	synchronized long getConflated(){
+		return conflated;
+	}
+
+	/**
+	 * @return Since when the queue has been at its limit, 0 if it is not
+	 */
+	synchronized long getOverLimitSince(){
+		return overLimitSince;
+	}
+
+
+
+	private static class InFlight {
+
+		final long sent;
+		boolean reached = false;
+
+		InFlight(long sent){
+			this.sent = sent;
+		}
+
+	}
+
+
+	private static class Entry {
+
+		//null for a message
+		final String key;
+		Object payload;
+
+		Entry(String key, Object payload){
+			this.key = key;
+			this.payload = payload;
+		}
+
+	}
+
+}
@@ -0,0 +1,515 @@
+package dk.alexandra.organicity.delivery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.messaging.SubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+import dk.alexandra.organicity.broker.BrokerMode;
+import dk.alexandra.organicity.filter.ClientFilters;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Per client bounded queues between the notifications received from the Context Broker and the clientOutboundChannel
+ * Only a few frames per client are in flight at a time, the next are sent when the previous ones have been written
+ * to the socket, or have left the message cache of a SockJS session over HTTP, see {@link WrittenFrames}. A client that
+ * cannot keep up has its queue dropped or conflated according to outbound.queue.policy instead of filling the send buffer
+ * of Spring, and is disconnected if it stays at its limit too long
+ * Every frame carries its id from the queue to the STOMP handler of Spring, where it is taken off before the frame is encoded.
+ * It is a plain message header, except with a relayed broker, where it has to be a STOMP header the broker sends back.
+ * A frame the relayed broker does not send back is given up after outbound.queue.frameTimeout
+ * Registered in {@link dk.alexandra.organicity.config.WebSocketConfig} as interceptor on the clientOutboundChannel
+ * and as decorator of the WebSocket handler, and wraps the STOMP handler of Spring once all beans exist
+ *
+ */
+@Component
+public class SessionOutboundQueues extends ChannelInterceptorAdapter implements ExecutorChannelInterceptor, WebSocketHandlerDecoratorFactory, SmartInitializingSingleton {
+
+	protected static final Logger LOGGER = LogManager.getLogger(SessionOutboundQueues.class);
+
+	static final String FRAME_HEADER = "orion-frame";
+
+	@Value("${outbound.queue.capacity:256}")
+	private int capacity;
+
+	@Value("${outbound.queue.policy:CONFLATE}")
+	private OverflowPolicy policy;
+
+	@Value("${outbound.queue.maxInFlight:4}")
+	private int maxInFlight;
+
+	//above 1 the body of a frame holding more than one notification is an array
+	@Value("${outbound.queue.maxBatch:1}")
+	private int maxBatch;
+
+	@Value("${outbound.disconnectAfter:30000}")
+	private long disconnectAfter;
+
+	@Value("${outbound.queue.frameTimeout:10000}")
+	private long frameTimeout;
+
+	@Value("${outbound.queue.checkInterval:250}")
+	private long checkInterval;
+
+	@Value("${broker.mode:SIMPLE}")
+	private BrokerMode brokerMode;
+
+	@Autowired
+	@Lazy
+	private SimpMessageSendingOperations messagingTemplate;
+
+	@Autowired
+	private MiddlewareMetrics metrics;
+
+	@Autowired
+	private ClientFilters clientFilters;
+
+	private final ConcurrentHashMap<String, SessionOutboundQueue> queues = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, WrittenFrames> sessions = new ConcurrentHashMap<>();
+	private final LongAdder droppedClosed = new LongAdder();
+	private volatile WebSocketHandler handler;
+	private volatile boolean tracking = false;
+	private ScheduledExecutorService checker;
+
+
+	public SessionOutboundQueues(){
+	}
+
+	//for tests, without the check of frames in flight
+	SessionOutboundQueues(int capacity, OverflowPolicy policy, int maxInFlight, long frameTimeout, BrokerMode brokerMode,
+			SimpMessageSendingOperations messagingTemplate, MiddlewareMetrics metrics, ClientFilters clientFilters){
+		this.capacity = capacity;
+		this.policy = policy;
+		this.maxInFlight = maxInFlight;
+		this.maxBatch = 1;
+		this.frameTimeout = frameTimeout;
+		this.brokerMode = brokerMode;
+		this.messagingTemplate = messagingTemplate;
+		this.metrics = metrics;
+		this.clientFilters = clientFilters;
+	}
+
+
+	@PostConstruct
+	private void start(){
+		checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "outbound-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	private void stop(){
+		checker.shutdownNow();
+	}
+
+
+	/**
+	 * Wraps the STOMP handler of Spring, which is added to the WebSocket handler after it has been decorated
+	 */
+	@Override
+	public void afterSingletonsInstantiated() {
+		WebSocketHandler last = handler==null ? null : WebSocketHandlerDecorator.unwrap(handler);
+		if(!(last instanceof SubProtocolWebSocketHandler)){
+			LOGGER.warn("No STOMP handler found, frames of the outbound queues count as written when handed to Spring");
+			return;
+		}
+		SubProtocolWebSocketHandler stomp = (SubProtocolWebSocketHandler) last;
+		SubProtocolHandler defaultHandler = stomp.getDefaultProtocolHandler();
+		List<SubProtocolHandler> tracked = new ArrayList<>();
+		for(SubProtocolHandler protocolHandler: stomp.getProtocolHandlers()){
+			SubProtocolHandler trackedHandler = track(protocolHandler);
+			tracked.add(trackedHandler);
+			if(protocolHandler==defaultHandler){
+				stomp.setDefaultProtocolHandler(trackedHandler);
+			}
+		}
+		stomp.setProtocolHandlers(tracked);
+	}
+
+
+	/**
+	 * Queues notifications for a client and sends as many as its window allows
+	 *
+	 * @param sessionId The id of the client
+	 * @param notifications The notifications to send
+	 */
+	public void enqueue(String sessionId, List<Notification> notifications){
+		SessionOutboundQueue queue = queues.get(sessionId);
+		if(queue==null){
+			//session already closed
+			return;
+		}
+		for(Notification notification: notifications){
+			if(queue.offer(notification)){
+				//the values queued are the baseline of the delta filters of the client
+				clientFilters.delivered(sessionId, notification);
+			}
+		}
+		if(disconnectAfter>0 && queue.isAtLimit()){
+			long overLimitSince = queue.getOverLimitSince();
+			if(overLimitSince>0 && System.currentTimeMillis()-overLimitSince>disconnectAfter){
+				disconnect(sessionId);
+				return;
+			}
+		}
+		drain(queue);
+	}
+
+
+	/**
+	 * Queues a message for a client after the notifications queued so far, e.g. a resync that must not overtake them
+	 *
+	 * @param sessionId The id of the client
+	 * @param message The message to send
+	 *
+	 * @return false if the client is gone or the message was dropped
+	 */
+	public boolean enqueueMessage(String sessionId, Object message){
+		SessionOutboundQueue queue = queues.get(sessionId);
+		if(queue==null || !queue.offerMessage(message)){
+			return false;
+		}
+		drain(queue);
+		return true;
+	}
+
+
+	private void drain(SessionOutboundQueue queue){
+		while(queue.getDrainLock().tryLock()){
+			try{
+				drainLocked(queue);
+			}finally{
+				queue.getDrainLock().unlock();
+			}
+			//a frame may have been handled while the lock was held
+			if(!queue.canDrain(maxInFlight)){
+				return;
+			}
+		}
+	}
+
+	private void drainLocked(SessionOutboundQueue queue){
+		while(queue.getInFlight()<maxInFlight){
+			List<Object> batch = queue.poll(maxBatch);
+			if(batch.isEmpty()){
+				return;
+			}
+			Object payload = batch.size()==1 ? batch.get(0) : batch;
+			String sessionId = queue.getSessionId();
+			long frame = queue.sent();
+			long start = System.nanoTime();
+			try{
+				messagingTemplate.convertAndSendToUser(sessionId, "/message/queue/orion", payload, createHeaders(sessionId, frame));
+			}catch(RuntimeException e){
+				LOGGER.error("Not able to send to {}: {}", sessionId, e.getMessage());
+				queue.release(frame);
+			}
+			metrics.outboundSent(start);
+			if(brokerMode!=BrokerMode.RELAY && !queue.isReached(frame)){
+				//the simple broker passes frames on from this thread, so the client is not subscribed
+				queue.release(frame);
+			}
+		}
+	}
+
+
+	private MessageHeaders createHeaders(String sessionId, long frame) {
+		SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+		headerAccessor.setSessionId(sessionId);
+		if(brokerMode==BrokerMode.RELAY){
+			//only STOMP headers come back from a relayed broker
+			headerAccessor.setNativeHeader(FRAME_HEADER, Long.toString(frame));
+		}else{
+			headerAccessor.setHeader(FRAME_HEADER, frame);
+		}
+		headerAccessor.setLeaveMutable(true);
+		return headerAccessor.getMessageHeaders();
+	}
+
+
+	/**
+	 * Releases the frames that have left the message cache of SockJS sessions, and gives up the frames
+	 * that have not reached the clientOutboundChannel in time
+	 */
+	void check(){
+		long timeout = TimeUnit.MILLISECONDS.toNanos(frameTimeout);
+		for(Map.Entry<String, WrittenFrames> session: sessions.entrySet()){
+			session.getValue().flushed();
+			SessionOutboundQueue queue = queues.get(session.getKey());
+			if(queue!=null){
+				int expired = queue.expire(timeout);
+				if(expired>0){
+					LOGGER.debug("{} frames to {} did not reach the clientOutboundChannel in {} ms", expired, session.getKey(), frameTimeout);
+					drain(queue);
+				}
+			}
+		}
+	}
+
+
+	private void disconnect(String sessionId){
+		WebSocketSession session = sessions.get(sessionId);
+		LOGGER.info("Client {} could not keep up for {} ms. Disconnecting", sessionId, disconnectAfter);
+		if(session!=null){
+			try{
+				session.close(CloseStatus.SESSION_NOT_RELIABLE);
+			}catch(IOException e){
+				LOGGER.error("Not able to close session {}: {}", sessionId, e.getMessage());
+			}
+		}
+	}
+
+
+	@Override
+	public Message<?> preSend(Message<?> message, MessageChannel channel) {
+		Long frame = frameOf(message);
+		SessionOutboundQueue queue = frame==null ? null : queueOf(message);
+		if(queue!=null){
+			queue.reached(frame);
+		}
+		return message;
+	}
+
+	@Override
+	public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+		return message;
+	}
+
+	@Override
+	public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+		Long frame = ex==null && tracking ? null : frameOf(message);
+		SessionOutboundQueue queue = frame==null ? null : queueOf(message);
+		if(queue!=null){
+			//the frame will never be written, or is not followed further
+			written(queue, frame);
+		}
+	}
+
+	private void written(SessionOutboundQueue queue, long frame){
+		if(queue.release(frame)){
+			drain(queue);
+		}
+	}
+
+	private SessionOutboundQueue queueOf(Message<?> message){
+		String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+		return sessionId==null ? null : queues.get(sessionId);
+	}
+
+	private static Long frameOf(Message<?> message){
+		Object frame = message.getHeaders().get(FRAME_HEADER);
+		if(frame instanceof Long){
+			return (Long) frame;
+		}
+		String relayed = NativeMessageHeaderAccessor.getFirstNativeHeader(FRAME_HEADER, message.getHeaders());
+		try{
+			return relayed==null ? null : Long.valueOf(relayed);
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+	private static Message<?> withoutFrameHeader(Message<?> message){
+		if(NativeMessageHeaderAccessor.getFirstNativeHeader(FRAME_HEADER, message.getHeaders())==null){
+			return message;
+		}
+		StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+		accessor.removeNativeHeader(FRAME_HEADER);
+		return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+	}
+
+
+	@Override
+	public WebSocketHandler decorate(WebSocketHandler handler) {
+		WebSocketHandler decorated = new WebSocketHandlerDecorator(handler){
+
+			@Override
+			public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+				SessionOutboundQueue queue = new SessionOutboundQueue(session.getId(), capacity, policy);
+				WrittenFrames written = new WrittenFrames(session, frame -> written(queue, frame));
+				sessions.put(session.getId(), written);
+				queues.put(session.getId(), queue);
+				//the session given to Spring, which buffers frames in front of it
+				super.afterConnectionEstablished(written);
+			}
+
+			@Override
+			public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+				sessions.remove(session.getId());
+				SessionOutboundQueue queue = queues.remove(session.getId());
+				if(queue!=null){
+					droppedClosed.add(queue.getDropped());
+				}
+				super.afterConnectionClosed(session, closeStatus);
+			}
+
+		};
+		this.handler = decorated;
+		return decorated;
+	}
+
+
+	/**
+	 * Wraps a sub protocol handler, so the frames it sends from the queues are followed to the socket
+	 *
+	 * @param protocolHandler The STOMP handler of Spring
+	 *
+	 * @return The wrapped handler
+	 */
+	SubProtocolHandler track(SubProtocolHandler protocolHandler){
+		tracking = true;
+		return new SubProtocolHandler() {
+
+			@Override
+			public void handleMessageToClient(WebSocketSession session, Message<?> message) throws Exception {
+				Long frame = frameOf(message);
+				WrittenFrames written = frame==null ? null : sessions.get(session.getId());
+				if(written==null){
+					protocolHandler.handleMessageToClient(session, message);
+					return;
+				}
+				WrittenFrames.Frame buffered = written.frame(session, frame);
+				try{
+					protocolHandler.handleMessageToClient(buffered, withoutFrameHeader(message));
+				}finally{
+					SessionOutboundQueue queue = queues.get(session.getId());
+					if(!buffered.isSent() && queue!=null){
+						//not sent, e.g. it could not be encoded
+						written(queue, frame);
+					}
+				}
+			}
+
+			@Override
+			public List<String> getSupportedProtocols() {
+				return protocolHandler.getSupportedProtocols();
+			}
+
+			@Override
+			public void handleMessageFromClient(WebSocketSession session, WebSocketMessage<?> message, MessageChannel outputChannel) throws Exception {
+				protocolHandler.handleMessageFromClient(session, message, outputChannel);
+			}
+
+			@Override
+			public String resolveSessionId(Message<?> message) {
+				return protocolHandler.resolveSessionId(message);
+			}
+
+			@Override
+			public void afterSessionStarted(WebSocketSession session, MessageChannel outputChannel) throws Exception {
+				protocolHandler.afterSessionStarted(session, outputChannel);
+			}
+
+			@Override
+			public void afterSessionEnded(WebSocketSession session, CloseStatus closeStatus, MessageChannel outputChannel) throws Exception {
+				protocolHandler.afterSessionEnded(session, closeStatus, outputChannel);
+			}
+
+		};
+	}
+
+
+	/**
+	 * @param sessionId The id of the client
+	 *
+	 * @return The number of notifications waiting to be sent to the client
+	 */
+	public int getLag(String sessionId){
+		SessionOutboundQueue queue = queues.get(sessionId);
+		return queue==null ? 0 : queue.size();
+	}
+
+	/**
+	 * @param sessionId The id of the client
+	 *
+	 * @return The number of frames sent to the client and not yet written
+	 */
+	public int getInFlight(String sessionId){
+		SessionOutboundQueue queue = queues.get(sessionId);
+		return queue==null ? 0 : queue.getInFlight();
+	}
+
+	/**
+	 * @param sessionId The id of the client
+	 *
+	 * @return The number of notifications dropped for the client
+	 */
+	public long getDropped(String sessionId){
+		SessionOutboundQueue queue = queues.get(sessionId);
+		return queue==null ? 0 : queue.getDropped();
+	}
+
+	/**
+	 * @return The number of notifications waiting to be sent to all clients
+	 */
+	public long getTotalLag(){
+		long lag = 0;
+		for(SessionOutboundQueue queue: queues.values()){
+			lag += queue.size();
+		}
+		return lag;
+	}
+
+	/**
+	 * @return The number of notifications dropped for all clients since the start
+	 */
+	public long getTotalDropped(){
+		long dropped = droppedClosed.sum();
+		for(SessionOutboundQueue queue: queues.values()){
+			dropped += queue.getDropped();
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return The number of connected clients
+	 */
+	public int getSessionCount(){
+		return queues.size();
+	}
+
+}
@@ -0,0 +1,106 @@
+package dk.alexandra.organicity.delivery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The notifications of one client on one subscription, sent at most once every minInterval ms
+ * The first notification after a quiet period is sent at once. Notifications received within the interval
+ * are merged per entity, and the latest state is sent when the interval has passed
+ *
+ */
+class ThrottledDelivery {
+
+	private final long minInterval;
+	private final TimerWheel wheel;
+	private final Consumer<List<Notification>> send;
+	private final Map<String, Notification> pending = new LinkedHashMap<>();
+	private long lastSent = 0;
+	private boolean scheduled = false;
+	private volatile boolean cancelled = false;
+
+
+	ThrottledDelivery(long minInterval, TimerWheel wheel, Consumer<List<Notification>> send){
+		this.minInterval = minInterval;
+		this.wheel = wheel;
+		this.send = send;
+	}
+
+
+	/**
+	 * Method for handing notifications to the throttle
+	 *
+	 * @param notifications The notifications received for the client
+	 */
+	void offer(List<Notification> notifications){
+		List<Notification> now;
+		synchronized(this){
+			for(Notification notification: notifications){
+				pending.merge(notification.getElement().getId(), notification, SessionOutboundQueue::merge);
+			}
+			if(scheduled){
+				return;
+			}
+			long wait = lastSent+minInterval-System.currentTimeMillis();
+			if(wait>0){
+				scheduled = true;
+				wheel.schedule(this::flush, wait);
+				return;
+			}
+			now = take();
+		}
+		send.accept(now);
+	}
+
+
+	private void flush(){
+		List<Notification> due;
+		synchronized(this){
+			scheduled = false;
+			due = take();
+		}
+		if(!cancelled && !due.isEmpty()){
+			send.accept(due);
+		}
+	}
+
+	private List<Notification> take(){
+		List<Notification> due = new ArrayList<>(pending.values());
+		pending.clear();
+		lastSent = System.currentTimeMillis();
+		return due;
+	}
+
+
+	/**
+	 * Drops the pending notifications, as the client is gone or has unsubscribed
+	 */
+	void cancel(){
+		cancelled = true;
+	}
+
+
+	/**
+	 * Sends the pending notifications at once and stops the throttle, as it is replaced by another one
+	 */
+	void close(){
+		List<Notification> due;
+		synchronized(this){
+			cancelled = true;
+			due = take();
+		}
+		if(!due.isEmpty()){
+			send.accept(due);
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package dk.alexandra.organicity.delivery;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Hashed timer wheel running delayed tasks on one thread with a resolution of one tick
+ * Scheduling is a queue insert regardless of how many tasks are waiting, so every throttled client can have
+ * a task waiting without a scheduled future each
+ *
+ */
+class TimerWheel {
+
+	protected static final Logger LOGGER = LogManager.getLogger(TimerWheel.class);
+
+	private final long tickNanos;
+	private final List<Timeout>[] slots;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService ticker;
+	private final LongSupplier clock;
+	private final long startTime;
+	private long currentTick = 0;
+
+
+	/**
+	 * Creates the wheel and starts its thread
+	 *
+	 * @param tick The resolution in ms
+	 * @param wheelSize The number of slots, rounded up to a power of two
+	 */
+	TimerWheel(long tick, int wheelSize){
+		this(tick, wheelSize, System::nanoTime);
+		ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	//for tests, ticked by hand
+	@SuppressWarnings("unchecked")
+	TimerWheel(long tick, int wheelSize, LongSupplier clock){
+		this.clock = clock;
+		this.startTime = clock.getAsLong();
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick));
+		int size = Integer.highestOneBit(Math.max(2, wheelSize)-1)<<1;
+		slots = new List[size];
+		for(int i=0; i<size; i++){
+			slots[i] = new ArrayList<>();
+		}
+		mask = size-1;
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "throttle-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Method for running a task after a delay
+	 *
+	 * @param task The task to run on the thread of the wheel
+	 * @param delay The delay in ms, rounded up to whole ticks
+	 */
+	void schedule(Runnable task, long delay){
+		long deadline = clock.getAsLong()-startTime+TimeUnit.MILLISECONDS.toNanos(delay);
+		added.add(new Timeout(task, (deadline+tickNanos-1)/tickNanos));
+	}
+
+
+	void tick(){
+		currentTick++;
+		Timeout timeout;
+		while((timeout = added.poll())!=null){
+			if(timeout.deadlineTick<=currentTick){
+				run(timeout);
+			}else{
+				slots[(int) (timeout.deadlineTick & mask)].add(timeout);
+			}
+		}
+		Iterator<Timeout> due = slots[(int) (currentTick & mask)].iterator();
+		while(due.hasNext()){
+			timeout = due.next();
+			if(timeout.deadlineTick<=currentTick){
+				due.remove();
+				run(timeout);
+			}
+		}
+	}
+
+	private void run(Timeout timeout){
+		try{
+			timeout.task.run();
+		}catch(RuntimeException e){
+			LOGGER.error("Throttled delivery failed", e);
+		}
+	}
+
+
+	/**
+	 * Stops the wheel. Waiting tasks are not run
+	 */
+	void stop(){
+		ticker.shutdownNow();
+	}
+
+
+
+	private static class Timeout {
+
+		final Runnable task;
+		final long deadlineTick;
+
+		Timeout(Runnable task, long deadlineTick){
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+	}
+
+}
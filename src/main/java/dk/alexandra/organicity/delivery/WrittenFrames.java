@@ -0,0 +1,190 @@
+package dk.alexandra.organicity.delivery;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.LongConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.session.AbstractHttpSockJsSession;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Decorates the session of a client below the send buffer of Spring, so it sees the frames when they leave the buffer
+ * Frames from a {@link SessionOutboundQueue} are recognized by the message object handed to the buffer, see {@link #frame(WebSocketSession, long)},
+ * and the queue is told once a frame has been written to the socket. The frames are not read or changed
+ * For a SockJS session over HTTP (polling or streaming) sending only puts the frame in the message cache of the session,
+ * so the queue is told when the frame has left the cache, which is checked by {@link #flushed()}
+ *
+ */
+class WrittenFrames extends WebSocketSessionDecorator {
+
+	protected static final Logger LOGGER = LogManager.getLogger(WrittenFrames.class);
+
+	private static final Method MESSAGE_CACHE = messageCacheMethod();
+
+	private final LongConsumer written;
+	private final Map<WebSocketMessage<?>, Long> frames = Collections.synchronizedMap(new IdentityHashMap<>());
+	private final Queue<String> cache;
+	private final ArrayDeque<long[]> cached = new ArrayDeque<>();
+	private long cachedCount = 0;
+
+
+	/**
+	 * @param session The session of the client
+	 * @param written Called with the id of a frame from the queue when it has been written, or could not be
+	 */
+	WrittenFrames(WebSocketSession session, LongConsumer written){
+		super(session);
+		this.written = written;
+		this.cache = messageCache(session);
+	}
+
+
+	/**
+	 * Wraps the send buffer of Spring for sending one frame from the queue
+	 *
+	 * @param buffered The session as seen by the STOMP handler of Spring, which buffers frames in front of this one
+	 * @param frame The id of the frame
+	 *
+	 * @return The session to hand the frame to
+	 */
+	Frame frame(WebSocketSession buffered, long frame){
+		return new Frame(buffered, frame);
+	}
+
+
+	@Override
+	public void sendMessage(WebSocketMessage<?> message) throws IOException {
+		Long frame = frames.remove(message);
+		boolean sent = false;
+		try{
+			super.sendMessage(message);
+			sent = true;
+		}finally{
+			if(cache==null){
+				if(frame!=null){
+					written.accept(frame);
+				}
+			}else{
+				cached(frame, sent);
+			}
+		}
+	}
+
+
+	private void cached(Long frame, boolean sent){
+		if(sent){
+			synchronized(this){
+				if(frame!=null){
+					cached.addLast(new long[]{cachedCount, frame});
+				}
+				cachedCount++;
+			}
+		}else if(frame!=null){
+			written.accept(frame);
+		}
+		//a streaming request may have taken it already
+		flushed();
+	}
+
+
+	/**
+	 * Tells the queue about the frames that have left the message cache of a SockJS session over HTTP
+	 * Every frame sent is added to the end of the cache, so the number of frames that have left it is the number
+	 * added minus the number still there
+	 */
+	void flushed(){
+		if(cache==null){
+			return;
+		}
+		List<Long> flushed = new ArrayList<>();
+		synchronized(this){
+			long left = cachedCount-cache.size();
+			while(!cached.isEmpty() && cached.peekFirst()[0]<left){
+				flushed.add(cached.pollFirst()[1]);
+			}
+		}
+		for(long frame: flushed){
+			written.accept(frame);
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static Queue<String> messageCache(WebSocketSession session){
+		if(!(session instanceof AbstractHttpSockJsSession) || MESSAGE_CACHE==null){
+			return null;
+		}
+		try{
+			return (Queue<String>) MESSAGE_CACHE.invoke(session);
+		}catch(ReflectiveOperationException e){
+			LOGGER.warn("Not able to read the message cache of SockJS session {}, its frames count as written when cached", session.getId());
+			return null;
+		}
+	}
+
+	private static Method messageCacheMethod(){
+		try{
+			//protected, for the transports of Spring
+			Method method = AbstractHttpSockJsSession.class.getDeclaredMethod("getMessageCache");
+			method.setAccessible(true);
+			return method;
+		}catch(ReflectiveOperationException | RuntimeException e){
+			LOGGER.warn("Not able to read the message cache of SockJS sessions, their frames count as written when cached: {}", e.getMessage());
+			return null;
+		}
+	}
+
+
+
+	/**
+	 * The send buffer of Spring as seen while the STOMP handler sends one frame from the queue
+	 */
+	class Frame extends WebSocketSessionDecorator {
+
+		private final long frame;
+		private boolean sent = false;
+
+		private Frame(WebSocketSession buffered, long frame){
+			super(buffered);
+			this.frame = frame;
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) throws IOException {
+			sent = true;
+			frames.put(message, frame);
+			try{
+				super.sendMessage(message);
+			}catch(IOException | RuntimeException e){
+				if(frames.remove(message)!=null){
+					written.accept(frame);
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * @return true if the STOMP handler has handed the frame to the buffer
+		 */
+		boolean isSent(){
+			return sent;
+		}
+
+	}
+
+}
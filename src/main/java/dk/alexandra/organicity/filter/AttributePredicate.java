@@ -0,0 +1,36 @@
+package dk.alexandra.organicity.filter;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * A condition on the value of one attribute, compiled from the filter sent by a client when registering
+ *
+ */
+interface AttributePredicate {
+
+	/**
+	 * @return The name of the attribute the condition is on
+	 */
+	String getAttribute();
+
+	/**
+	 * Method for testing a value received from the Context Broker
+	 *
+	 * @param entityId The id of the entity the value belongs to
+	 * @param value The value of the attribute
+	 *
+	 * @return true if the notification may be sent
+	 */
+	boolean test(String entityId, String value);
+
+	/**
+	 * Method for telling the condition that a value has been sent to the client
+	 *
+	 * @param entityId The id of the entity the value belongs to
+	 * @param value The value of the attribute
+	 */
+	void delivered(String entityId, String value);
+
+}
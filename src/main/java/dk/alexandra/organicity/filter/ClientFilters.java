@@ -0,0 +1,107 @@
+package dk.alexandra.organicity.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The compiled {@link NotificationFilter} of every client, by session and subscription
+ * Clients without a filter get the notifications as received from the Context Broker
+ *
+ */
+@Component
+public class ClientFilters {
+
+	private final ConcurrentHashMap<String, Map<String, NotificationFilter>> filters = new ConcurrentHashMap<>();
+
+
+	/**
+	 * Method for setting the filter of a client on a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param filter The compiled filter, null to remove it
+	 */
+	public void put(String sessionId, String subscriptionId, NotificationFilter filter){
+		if(filter==null){
+			remove(sessionId, subscriptionId);
+			return;
+		}
+		filters.computeIfAbsent(sessionId, id -> new ConcurrentHashMap<>()).put(subscriptionId, filter);
+	}
+
+
+	/**
+	 * Method for removing the filter of a client on a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 */
+	public void remove(String sessionId, String subscriptionId){
+		filters.computeIfPresent(sessionId, (id, subscriptions) -> {
+			subscriptions.remove(subscriptionId);
+			return subscriptions.isEmpty() ? null : subscriptions;
+		});
+	}
+
+
+	/**
+	 * Method for removing all filters of a client
+	 *
+	 * @param sessionId The id of the client
+	 */
+	public void removeSession(String sessionId){
+		filters.remove(sessionId);
+	}
+
+
+	/**
+	 * Method for filtering notifications for a client
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription the notifications were received on
+	 * @param notifications The notifications received
+	 *
+	 * @return The notifications to send, the same list if the client has no filter
+	 */
+	public List<Notification> apply(String sessionId, String subscriptionId, List<Notification> notifications){
+		Map<String, NotificationFilter> subscriptions = filters.get(sessionId);
+		NotificationFilter filter = subscriptions==null ? null : subscriptions.get(subscriptionId);
+		if(filter==null){
+			return notifications;
+		}
+		List<Notification> filtered = new ArrayList<>(notifications.size());
+		for(Notification notification: notifications){
+			Notification result = filter.apply(notification);
+			if(result!=null){
+				filtered.add(result);
+			}
+		}
+		return filtered;
+	}
+
+
+	/**
+	 * Method for telling the filter of a client that a notification has been queued for it
+	 *
+	 * @param sessionId The id of the client
+	 * @param notification The notification as queued
+	 */
+	public void delivered(String sessionId, Notification notification){
+		Map<String, NotificationFilter> subscriptions = filters.get(sessionId);
+		NotificationFilter filter = subscriptions==null ? null : subscriptions.get(notification.getSubscriptionId());
+		if(filter!=null){
+			filter.delivered(notification);
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package dk.alexandra.organicity.filter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Holds back an attribute until its value has changed by more than a fixed amount since the value last sent to the client
+ * The first value of every entity is always sent. Values that are not numbers are sent when they differ from the last one
+ * The last value sent is the one last queued for the client, see {@link NotificationFilter#delivered(dk.alexandra.orion.websocket.transports.Notification)}
+ *
+ */
+class DeltaPredicate implements AttributePredicate {
+
+	private final String attribute;
+	private final double delta;
+	private final ConcurrentHashMap<String, String> lastSent = new ConcurrentHashMap<>();
+
+
+	DeltaPredicate(String attribute, String operand){
+		Double number = ThresholdPredicate.toNumber(operand);
+		if(number==null || number<0){
+			throw new IllegalArgumentException("delta needs a positive number, got: "+operand);
+		}
+		this.attribute = attribute;
+		this.delta = number;
+	}
+
+
+	@Override
+	public String getAttribute(){
+		return attribute;
+	}
+
+	@Override
+	public boolean test(String entityId, String value){
+		String last = lastSent.get(entityId);
+		if(last==null){
+			return true;
+		}
+		Double previous = ThresholdPredicate.toNumber(last);
+		Double received = ThresholdPredicate.toNumber(value);
+		if(previous==null || received==null){
+			return !last.equals(value);
+		}
+		return Math.abs(received-previous)>delta;
+	}
+
+	@Override
+	public void delivered(String entityId, String value){
+		if(value!=null){
+			lastSent.put(entityId, value);
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package dk.alexandra.organicity.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The projection and conditions a client has asked for on one subscription, compiled once when it registers
+ * A notification is sent only if every condition on an attribute it contains holds, and only with the attributes
+ * the client subscribed to. Conditions on attributes not in the notification are not checked
+ * Conditions that depend on the values sent before are told about a notification by {@link #delivered(Notification)},
+ * once it has been queued for the client
+ *
+ */
+public class NotificationFilter {
+
+	private final Set<String> projection;
+	private final List<AttributePredicate> predicates;
+
+
+	private NotificationFilter(Set<String> projection, List<AttributePredicate> predicates){
+		this.projection = projection;
+		this.predicates = predicates;
+	}
+
+
+	/**
+	 * Method for compiling the filter of a subscription
+	 *
+	 * @param attributes The attributes the client subscribed to, null or empty for all
+	 * @param filters The optional filters field of the register payload, e.g. [{"attribute":"temperature","op":"gt","value":25}]
+	 *
+	 * @return The filter, null if the client gets every notification as received
+	 * @throws IllegalArgumentException if a filter is not valid
+	 */
+	public static NotificationFilter compile(String[] attributes, JsonNode filters){
+		Set<String> projection = null;
+		if(attributes!=null && attributes.length>0){
+			projection = new HashSet<>(Arrays.asList(attributes));
+		}
+
+		List<AttributePredicate> predicates = new ArrayList<>();
+		if(filters!=null && !filters.isNull()){
+			if(!filters.isArray()){
+				throw new IllegalArgumentException("filters must be an array");
+			}
+			for(JsonNode filter: filters){
+				AttributePredicate predicate = compilePredicate(filter);
+				if(predicate instanceof DeltaPredicate && projection!=null && !projection.contains(predicate.getAttribute())){
+					//the last value sent is the baseline, so it has to be sent
+					throw new IllegalArgumentException("delta on "+predicate.getAttribute()+" needs it in the attributes subscribed to");
+				}
+				predicates.add(predicate);
+			}
+		}
+
+		if(projection==null && predicates.isEmpty()){
+			return null;
+		}
+		return new NotificationFilter(projection, predicates);
+	}
+
+
+	private static AttributePredicate compilePredicate(JsonNode filter){
+		String attribute = filter.path("attribute").asText(null);
+		String op = filter.path("op").asText(null);
+		JsonNode value = filter.get("value");
+		if(attribute==null || op==null || value==null || value.isContainerNode()){
+			throw new IllegalArgumentException("filter needs attribute, op and value: "+filter);
+		}
+		if("delta".equals(op)){
+			return new DeltaPredicate(attribute, value.asText());
+		}
+		return new ThresholdPredicate(attribute, op, value.asText());
+	}
+
+
+	/**
+	 * Method for filtering a notification for the client
+	 * The notification is not changed, as it is shared between all clients on the subscription
+	 *
+	 * @param notification The notification received from the Context Broker
+	 *
+	 * @return The notification to send, null if nothing should be sent
+	 */
+	public Notification apply(Notification notification){
+		ContextElement element = notification.getElement();
+		List<Attributes> attributes = element.getAttributes();
+		if(attributes==null){
+			return projection==null ? notification : null;
+		}
+
+		if(!predicates.isEmpty()){
+			Map<String, String> values = valuesOf(attributes);
+			for(AttributePredicate predicate: predicates){
+				String attribute = predicate.getAttribute();
+				if(values.containsKey(attribute) && !predicate.test(element.getId(), values.get(attribute))){
+					return null;
+				}
+			}
+		}
+
+		return project(notification);
+	}
+
+
+	/**
+	 * Method for telling the conditions that a notification has been queued for the client, so a value
+	 * dropped after it passed the filter, e.g. by the delta encoding or the outbound queue, is not taken as sent
+	 *
+	 * @param notification The notification as queued
+	 */
+	public void delivered(Notification notification){
+		List<Attributes> attributes = notification.getElement().getAttributes();
+		if(predicates.isEmpty() || attributes==null){
+			return;
+		}
+		Map<String, String> values = valuesOf(attributes);
+		for(AttributePredicate predicate: predicates){
+			String attribute = predicate.getAttribute();
+			if(values.containsKey(attribute)){
+				predicate.delivered(notification.getElement().getId(), values.get(attribute));
+			}
+		}
+	}
+
+
+	private static Map<String, String> valuesOf(List<Attributes> attributes){
+		Map<String, String> values = new HashMap<>();
+		for(Attributes attribute: attributes){
+			values.put(attribute.getName(), attribute.getValue());
+		}
+		return values;
+	}
+
+
+	private Notification project(Notification notification){
+		if(projection==null){
+			return notification;
+		}
+		ContextElement element = notification.getElement();
+		List<Attributes> projected = new ArrayList<>(element.getAttributes().size());
+		for(Attributes attribute: element.getAttributes()){
+			if(projection.contains(attribute.getName())){
+				projected.add(attribute);
+			}
+		}
+		if(projected.isEmpty()){
+			return null;
+		}
+		if(projected.size()==element.getAttributes().size()){
+			return notification;
+		}
+		ContextElement copy = new ContextElement(element.getType(), element.getIsPattern(), element.getId(), projected);
+		return new Notification(copy, notification.getSubscriptionId());
+	}
+
+}
@@ -0,0 +1,89 @@
+package dk.alexandra.organicity.filter;
+
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Compares the value of an attribute with a fixed value, e.g. temperature greater than 25
+ * Values are compared as numbers, except eq and ne with a value that is not a number, which are compared as text
+ *
+ */
+class ThresholdPredicate implements AttributePredicate {
+
+	private final String attribute;
+	private final Predicate<String> condition;
+
+
+	ThresholdPredicate(String attribute, String op, String operand){
+		this.attribute = attribute;
+		Double number = toNumber(operand);
+		if(number==null){
+			if("eq".equals(op)){
+				condition = value -> operand.equals(value);
+			}else if("ne".equals(op)){
+				condition = value -> !operand.equals(value);
+			}else{
+				throw new IllegalArgumentException("Operator "+op+" needs a number, got: "+operand);
+			}
+			return;
+		}
+		DoublePredicate compare = compile(op, number);
+		condition = value -> {
+			Double received = toNumber(value);
+			return received!=null && compare.test(received);
+		};
+	}
+
+
+	private static DoublePredicate compile(String op, double operand){
+		switch(op){
+		case "gt":
+			return value -> value>operand;
+		case "gte":
+			return value -> value>=operand;
+		case "lt":
+			return value -> value<operand;
+		case "lte":
+			return value -> value<=operand;
+		case "eq":
+			return value -> value==operand;
+		case "ne":
+			return value -> value!=operand;
+		default:
+			throw new IllegalArgumentException("Unknown operator: "+op);
+		}
+	}
+
+
+	static Double toNumber(String value){
+		if(value==null){
+			return null;
+		}
+		try{
+			return Double.valueOf(value.trim());
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+
+	@Override
+	public String getAttribute(){
+		return attribute;
+	}
+
+	@Override
+	public boolean test(String entityId, String value){
+		return condition.test(value);
+	}
+
+	@Override
+	public void delivered(String entityId, String value){
+		//stateless
+	}
+
+}
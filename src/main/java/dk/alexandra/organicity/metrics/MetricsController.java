@@ -0,0 +1,39 @@
+package dk.alexandra.organicity.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Endpoint scraped by Prometheus
+ *
+ */
+@Controller
+public class MetricsController {
+
+	@Autowired
+	private PrometheusMeterRegistry prometheusRegistry;
+
+
+	/**
+	 * GET endpoint for the metrics in the Prometheus text format
+	 * 
+	 * @return The metrics
+	 */
+	@GetMapping(value = "/prometheus")
+	public ResponseEntity<String> scrape(){
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+		return new ResponseEntity<String>(prometheusRegistry.scrape(), headers, HttpStatus.OK);
+	}
+
+}
@@ -0,0 +1,208 @@
+package dk.alexandra.organicity.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dk.alexandra.organicity.delivery.DeltaEncoder;
+import dk.alexandra.organicity.delivery.SessionOutboundQueues;
+import dk.alexandra.organicity.orion.Connector;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * The metrics of the middleware
+ * Every meter is created up front, so recording only reads the clock and updates the meter. Callers pass the
+ * System.nanoTime() read when the measured work started
+ *
+ */
+public class MiddlewareMetrics {
+
+	private final MeterRegistry registry;
+	private final Timer ingest;
+	private final Counter lookups;
+	private final Counter misses;
+	private final Timer outboundSend;
+	private final Timer tokenRefresh;
+	private final Counter tokenErrors;
+	private final Map<OrionOperation, Timer> orionCalls = new EnumMap<>(OrionOperation.class);
+	private final Map<OrionOperation, Counter> orionErrors = new EnumMap<>(OrionOperation.class);
+	private final AtomicLong startupTime = new AtomicLong();
+
+
+	/**
+	 * Creates the meters
+	 * 
+	 * @param registry The registry the meters are registered in
+	 */
+	public MiddlewareMetrics(MeterRegistry registry){
+		this.registry = registry;
+		ingest = Timer.builder("orion.notifications.ingest")
+				.description("Time to parse and route a notification from the Context Broker")
+				.publishPercentileHistogram()
+				.register(registry);
+		lookups = Counter.builder("orion.routing.lookups")
+				.description("Lookups of the sessions of a subscription")
+				.register(registry);
+		misses = Counter.builder("orion.routing.misses")
+				.description("Notifications for subscriptions without sessions")
+				.register(registry);
+		outboundSend = Timer.builder("orion.outbound.send")
+				.description("Time to hand a frame to the clientOutboundChannel")
+				.publishPercentileHistogram()
+				.register(registry);
+		tokenRefresh = Timer.builder("orion.token.refresh")
+				.description("Time to get a token from the token server")
+				.register(registry);
+		tokenErrors = Counter.builder("orion.token.errors")
+				.description("Failed token requests")
+				.register(registry);
+		Gauge.builder("orion.startup.time", startupTime, AtomicLong::get)
+				.description("Milliseconds from the start of the JVM until traffic was served")
+				.register(registry);
+		for(OrionOperation operation: OrionOperation.values()){
+			orionCalls.put(operation, Timer.builder("orion.calls")
+					.description("Time of calls to the Context Broker")
+					.tag("operation", operation.getTag())
+					.publishPercentileHistogram()
+					.register(registry));
+			orionErrors.put(operation, Counter.builder("orion.calls.errors")
+					.description("Failed calls to the Context Broker")
+					.tag("operation", operation.getTag())
+					.register(registry));
+		}
+	}
+
+
+	/**
+	 * @return Metrics that are only kept in memory
+	 */
+	public static MiddlewareMetrics inMemory(){
+		return new MiddlewareMetrics(new SimpleMeterRegistry());
+	}
+
+
+	/**
+	 * Registers the gauges and counters reading the state of the middleware when scraped
+	 * 
+	 * @param connector The connection to the Context Broker
+	 * @param outboundQueues The queues of the clients
+	 * @param deltaEncoder The state kept for delta encoding
+	 */
+	public void bindGauges(Connector connector, SessionOutboundQueues outboundQueues, DeltaEncoder deltaEncoder){
+		Gauge.builder("orion.sessions.active", outboundQueues, SessionOutboundQueues::getSessionCount)
+				.description("Connected clients")
+				.register(registry);
+		Gauge.builder("orion.subscriptions.active", connector, c -> c.getRegistry().getSubscriptions().size())
+				.description("Subscriptions at the Context Broker")
+				.register(registry);
+		Gauge.builder("orion.session.subscriptions", connector, c -> {
+					int sessions = c.getRegistry().getSessionCount();
+					return sessions==0 ? 0 : (double) c.getRegistry().getAttachmentCount()/sessions;
+				})
+				.description("Mean number of subscriptions per registered client")
+				.register(registry);
+		Gauge.builder("orion.outbound.lag", outboundQueues, SessionOutboundQueues::getTotalLag)
+				.description("Notifications queued for all clients")
+				.register(registry);
+		FunctionCounter.builder("orion.outbound.dropped", outboundQueues, SessionOutboundQueues::getTotalDropped)
+				.description("Notifications dropped for the clients")
+				.register(registry);
+		Gauge.builder("orion.delta.entities", deltaEncoder, DeltaEncoder::getEntries)
+				.description("Entities with state kept for delta encoding")
+				.register(registry);
+		Gauge.builder("orion.delta.attributes", deltaEncoder, DeltaEncoder::getAttributes)
+				.description("Attribute values kept for delta encoding")
+				.register(registry);
+		FunctionCounter.builder("orion.delta.evictions", deltaEncoder, DeltaEncoder::getEvictions)
+				.description("Entity states evicted from the delta encoding state")
+				.register(registry);
+		FunctionCounter.builder("orion.delta.resyncs", deltaEncoder, DeltaEncoder::getResyncs)
+				.description("Resync messages sent to clients")
+				.register(registry);
+		Gauge.builder("orion.reaper.pending", connector, c -> c.getReaper().getPending())
+				.description("Subscriptions of disconnected clients waiting to be removed from the Context Broker")
+				.register(registry);
+		Gauge.builder("orion.executor.active", connector, c -> c.getTaskExecutor().getActive())
+				.description("Calls to the Context Broker running")
+				.register(registry);
+		Gauge.builder("orion.executor.queued", connector, c -> c.getTaskExecutor().getQueued())
+				.description("Calls to the Context Broker waiting for a thread")
+				.register(registry);
+		Gauge.builder("orion.http.leased", connector, c -> c.getHttpClientPool().getLeased())
+				.description("Pooled HTTP connections in use")
+				.register(registry);
+		Gauge.builder("orion.http.pending", connector, c -> c.getHttpClientPool().getPending())
+				.description("Requests waiting for a pooled HTTP connection")
+				.register(registry);
+		Gauge.builder("orion.entityCache.size", connector, c -> c.getEntityCache().getSize())
+				.register(registry);
+		FunctionCounter.builder("orion.entityCache.hits", connector, c -> c.getEntityCache().getHits())
+				.register(registry);
+		FunctionCounter.builder("orion.entityCache.misses", connector, c -> c.getEntityCache().getMisses())
+				.register(registry);
+		Gauge.builder("orion.lastValues.size", connector, c -> c.getLastValues().getSize())
+				.description("Entities in the last value cache")
+				.register(registry);
+		Gauge.builder("orion.journal.dormant", connector, c -> c.getJournal().getDormant())
+				.description("Subscriptions restored from the journal and not claimed yet")
+				.register(registry);
+		Gauge.builder("orion.lease.suspects", connector, c -> c.getReconciler().getSuspects())
+				.description("Subscriptions at the Context Broker suspected of being orphaned")
+				.register(registry);
+	}
+
+
+	/**
+	 * @param millis Milliseconds from the start of the JVM until traffic was served
+	 */
+	public void started(long millis){
+		startupTime.set(millis);
+	}
+
+	public void notificationIngested(long startNanos){
+		ingest.record(System.nanoTime()-startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param found true if the subscription had sessions
+	 */
+	public void routed(boolean found){
+		lookups.increment();
+		if(!found){
+			misses.increment();
+		}
+	}
+
+	public void outboundSent(long startNanos){
+		outboundSend.record(System.nanoTime()-startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void tokenRefreshed(long startNanos, boolean success){
+		tokenRefresh.record(System.nanoTime()-startNanos, TimeUnit.NANOSECONDS);
+		if(!success){
+			tokenErrors.increment();
+		}
+	}
+
+	public void orionCalled(OrionOperation operation, long startNanos, boolean success){
+		orionCalls.get(operation).record(System.nanoTime()-startNanos, TimeUnit.NANOSECONDS);
+		if(!success){
+			orionErrors.get(operation).increment();
+		}
+	}
+
+	public MeterRegistry getRegistry(){
+		return registry;
+	}
+
+}
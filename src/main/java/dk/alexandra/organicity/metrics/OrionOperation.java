@@ -0,0 +1,29 @@
+package dk.alexandra.organicity.metrics;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * The calls made to the Context Broker, used as tag on the call metrics
+ *
+ */
+public enum OrionOperation {
+
+	ENTITY("entity"),
+	SUBSCRIBE("subscribe"),
+	UNSUBSCRIBE("unsubscribe"),
+	RENEW("renew"),
+	LIST("list");
+
+	private final String tag;
+
+	OrionOperation(String tag){
+		this.tag = tag;
+	}
+
+	public String getTag(){
+		return tag;
+	}
+
+}
@@ -1,44 +1,57 @@
 package dk.alexandra.organicity.orion;
 
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import org.apache.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.amaxilatis.orion.OrionClient;
+import com.amaxilatis.orion.model.subscribe.NotifyConditions;
 import com.amaxilatis.orion.model.subscribe.OrionEntity;
+import com.amaxilatis.orion.model.subscribe.SubscribeContextAvailabilityRequest;
 import com.amaxilatis.orion.model.subscribe.SubscriptionResponse;
+import com.amaxilatis.orion.model.subscribe.UnSubscribeContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
-import dk.alexandra.organicity.config.JwtParser;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import dk.alexandra.organicity.metrics.OrionOperation;
+import dk.alexandra.organicity.orion.EntityScopeCache.EntityScope;
 import dk.alexandra.orion.websocket.transports.OrionSubscription;
-import io.jsonwebtoken.Claims;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
 
 
 
@@ -52,20 +65,29 @@ import io.jsonwebtoken.Claims;
  */
 public class Connector {
 	
-	protected static final Logger LOGGER = Logger.getLogger(Connector.class);
+	protected static final Logger LOGGER = LogManager.getLogger(Connector.class);
+	private static final int LIST_PAGE_SIZE = 1000;
+	private static final Consumer<String> NO_SETUP = subscriptionId -> {};
 	
-    private OrionClient client;
+    private HttpClientPool httpClientPool;
+    private OrionTaskExecutor taskExecutor;
+    private EntityScopeCache entityCache;
+    private LastValueCache lastValues;
+    private final MiddlewareMetrics metrics;
+    private final ObjectMapper mapper = new ObjectMapper();
     private SimpleDateFormat df;
     private Properties properties;
     private String localURI;
-    private HashMap<String, OrionSubscription> subscriptions = new HashMap<>();
-    private HashMap<String, ArrayList<String>> clientIndexedSubscriptions = new HashMap<>();
+    private volatile String reference;
+    private final SubscriptionRegistry registry = new SubscriptionRegistry();
     private String serverUrl;
-    private String tokenUrl = null;
-    private String token = null;
-    private String wsClientId;
-    private String wsClientSecret;
-    private int delay = 0;
+    private TokenManager tokenManager;
+    private DisconnectReaper reaper;
+    private SubscriptionReconciler reconciler;
+    private SubscriptionJournal journal;
+    private String leaseDuration;
+    private int batchConcurrency;
+    private int entityBatchSize;
 
     
     
@@ -75,10 +97,20 @@ public class Connector {
     }
     
     /**
-	 * Initiates the connection to the Context Broker
+	 * Initiates the connection to the Context Broker, keeping the metrics in memory only
 	 * 
 	 */
 	public Connector(){
+		this(MiddlewareMetrics.inMemory());
+	}
+	
+    /**
+	 * Initiates the connection to the Context Broker
+	 * 
+	 * @param metrics The metrics the calls to the Context Broker and the token server are recorded in
+	 */
+	public Connector(MiddlewareMetrics metrics){
+		this.metrics = metrics;
         TimeZone tz = TimeZone.getTimeZone("UTC");
         df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
         df.setTimeZone(tz);
@@ -88,13 +120,19 @@ public class Connector {
         
         try{
         	properties = new Properties();
-            properties.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("connection.properties"));
-            //serverUrl = properties.getProperty("serverUrl");
+            //a file given with -Dconnection.properties=... replaces the one on the classpath
+            String location = System.getProperty("connection.properties");
+            if(location==null){
+            	properties.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("connection.properties"));
+            }else{
+            	try(InputStream in = new FileInputStream(location)){
+            		properties.load(in);
+            	}
+            }
+            serverUrl = properties.getProperty("serverUrl", serverUrl);
             
             localURI = properties.getProperty("localURI");
-            tokenUrl = properties.getProperty("tokenUrl");
-            wsClientId = properties.getProperty("clientId");
-            wsClientSecret = properties.getProperty("clientSecret");
+            reference = localURI;
         }catch(IOException e){
         	e.printStackTrace();
         	LOGGER.error("not able to use properties. Continuing with default values");
@@ -102,69 +140,31 @@ public class Connector {
         }
         
         
-        token = getClientCredentialGrantToken(tokenUrl, wsClientId, wsClientSecret);
+        SSLContext sc = null;
+        try{
+        	sc = SSLContext.getInstance("SSL"); 
+        	sc.init(null, getTrustManager(), new java.security.SecureRandom());
+        }catch(NoSuchAlgorithmException|KeyManagementException e){
+        	LOGGER.error("Exception thrown while setting up certificats", e);
+        	System.exit(1);
+        }
+        httpClientPool = new HttpClientPool(properties, sc);
+        taskExecutor = new OrionTaskExecutor(properties);
+        entityCache = new EntityScopeCache(properties);
+        lastValues = new LastValueCache(properties);
+        reaper = new DisconnectReaper(properties, taskExecutor, this::unsubscribe);
+        leaseDuration = properties.getProperty("lease.duration", "PT1H");
+        journal = new SubscriptionJournal(properties, mapper);
+        registry.addListener(journal);
+        reconciler = new SubscriptionReconciler(properties, registry, reaper, this::renewSubscriptionAsync, this::listSubscriptions, journal::isDormant);
+        batchConcurrency = Integer.parseInt(properties.getProperty("batch.concurrency", "8"));
+        entityBatchSize = Integer.parseInt(properties.getProperty("entityCache.batchSize", "100"));
         
-        LOGGER.info("Connecting to server url: "+serverUrl);
-        client = new OrionClient(serverUrl,token, "organicity", "/");
+        tokenManager = new TokenManager(properties, httpClientPool, metrics);
+        tokenManager.start(Long.parseLong(properties.getProperty("token.startTimeout", "10000")));
+        restoreSubscriptions();
         
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        //continously update token when it expires
-        Runnable task = () -> {
-            token = getClientCredentialGrantToken(tokenUrl, wsClientId, wsClientSecret);
-            client = new OrionClient(serverUrl,token, "organicity", "/");
-            LOGGER.info("Updated token from OAuth2 server");
-        };
-
-        executor.scheduleWithFixedDelay(task, delay, delay, TimeUnit.SECONDS);
-
-	}
-	
-	private String getClientCredentialGrantToken(String tokenUrl, String clientId, String clientSecret) {
-		LOGGER.info("getting new token");
-		SSLContext sc = null;
-		try{
-			sc = SSLContext.getInstance("SSL"); 
-		    sc.init(null, getTrustManager(), new java.security.SecureRandom());
-		}catch(NoSuchAlgorithmException|KeyManagementException e){
-			LOGGER.error("Exception thrown while setting up certificats: \n"+e);
-			return null;
-		}
-		
-		
-		Client c = ClientBuilder.newBuilder().sslContext(sc).build();
-		
-		String path = "/realms/organicity/protocol/openid-connect/token";
-		WebTarget webTarget = c.target(tokenUrl).path(path);
-		LOGGER.info("Connecting to token Url: "+tokenUrl+path);
-		String base64 = Base64.getEncoder().encodeToString((clientId+":"+clientSecret).getBytes());
-		
-		
-		Invocation.Builder invocationBuilder = webTarget.request(MediaType.APPLICATION_JSON_TYPE).header("Authorization","Basic "+base64);
-		
-
-		Form form = new Form();		
-		form.param("grant_type", "client_credentials");
-		
-		Entity entity =  Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE);
-		Response response = invocationBuilder.post(entity);
-		
-		JSONObject tokenEntity = new JSONObject(response.readEntity(String.class));
-		//check if middleware can be authenticated
-		String possibleError =tokenEntity.optString("error_description", null); 
-		if(possibleError!=null){
-			LOGGER.error("Not able to authentication middleware credentials");
-			LOGGER.error("Error: "+possibleError);
-			System.exit(1);	
-		}
-		
-		try{
-			String expires = tokenEntity.get("expires_in").toString();
-			delay = Integer.parseInt(expires);
-		}catch(NumberFormatException e){
-			delay = 200;
-		};
-		
-		return tokenEntity.get("access_token").toString();
+        LOGGER.info("Connecting to server url: {}", serverUrl);
 	}
 	
 	
@@ -177,39 +177,33 @@ public class Connector {
 	 * @return The subscriptionId if successful, null otherwise
 	 */
 	public String[] registerSubscription(OrionSubscription subscription, String sessionId, String clientId){
-		LOGGER.info("REGISTER SUBSCRIPTION!!!");
+		return registerSubscription(subscription, sessionId, clientId, NO_SETUP);
+	}
+	
+	/**
+	 * Registering a subscription at the Context Broker
+	 * 
+	 * @param subscription A POJO containing the subscription data needed to set a subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 * @param clientId The id of the verified user
+	 * @param setup Called with the subscriptionId before the session is attached, so its delivery options are in place for the first notification
+	 * 
+	 * @return The subscriptionId if successful, null otherwise
+	 */
+	public String[] registerSubscription(OrionSubscription subscription, String sessionId, String clientId, Consumer<String> setup){
 		String subscriptionId = null;
 		String[] methodResponse = new String[2];
 		methodResponse[0] = "error";
-		//using clean java http client, as OrionClient is non functioning with simple get
-		//Client c = ClientBuilder.newClient( new ClientConfig().register( LoggingFilter.class ) );
-		SSLContext sc = null;
-		try{
-			sc = SSLContext.getInstance("SSL"); 
-		    sc.init(null, getTrustManager(), new java.security.SecureRandom());
-		}catch(NoSuchAlgorithmException|KeyManagementException e){
-			LOGGER.error("Exception thrown while setting up certificats: \n"+e);
-			return null;
-		}
+		EntityScope scope = getEntityScope(subscription.getEntityId());
 		
-		
-		Client c = ClientBuilder.newBuilder().sslContext(sc).build();
-		WebTarget webTarget = c.target(serverUrl).path("/v2/entities/"+subscription.getEntityId());
-		
-		Invocation.Builder invocationBuilder =  webTarget.request(MediaType.APPLICATION_JSON).header("Fiware-Service", " organicity");
-		Response checkResponse = invocationBuilder.get();
-		
-		JSONObject checkEntity = new JSONObject(checkResponse.readEntity(String.class));
-		
-		
-		if(checkEntity.has("error")){
+		if(!scope.isAvailable()){
 			//entity does not exist
 			subscriptionId = "Sorry, entity not available"; 
-			LOGGER.info("Client tried to access unknown entity: "+subscription.getEntityId());
-		}else if(checkEntity.has("access:scope") && ((JSONObject)(checkEntity.get("access:scope"))).has("value") && ((JSONObject)(checkEntity.get("access:scope"))).get("value").equals("private") && !subscription.getEntityId().contains(clientId)){
+			LOGGER.info("Client tried to access unknown entity: {}", subscription.getEntityId());
+		}else if(scope.isPrivate() && !subscription.getEntityId().contains(clientId)){
 			//entity is private and user does not have access
 			subscriptionId = "Sorry, entity not available";
-			LOGGER.info("Client tried to access private entity: "+subscription.getEntityId());
+			LOGGER.info("Client tried to access private entity: {}", subscription.getEntityId());
 		}
 		
 		
@@ -220,41 +214,269 @@ public class Connector {
 			
 		
 		
+		//reuse the subscription at the Context Broker if another session already watches the same data
+		String key = SharedSubscription.keyOf(subscription);
+		try{
+			SharedSubscription shared = registry.attachOrCreate(key, sessionId, () -> newSubscription(key, subscription), setup);
+			if(shared!=null){
+				LOGGER.debug("Session {} attached to subscription: {}", sessionId, shared.getSubscriptionId());
+				journal.attached(sessionId, shared.getSubscriptionId(), clientId);
+				methodResponse[0] = "subscriptionId";
+				subscriptionId = shared.getSubscriptionId();
+			}else{
+				subscriptionId = "Not able to subscribe at the moment. Please try again";
+			}
+		}catch(IOException e){
+			LOGGER.error("Not able to add subscription", e);
+			subscriptionId = "Something went wrong when trying to subscribe. Please try again";
+		}
+		methodResponse[1] = subscriptionId;
+		return methodResponse;
+	}
+	
+	
+	/**
+	 * Makes a new subscription, reusing one restored from the journal if there is one for the key
+	 * Called by the {@link SubscriptionRegistry} without holding any lock
+	 * 
+	 * @param key The key of the subscription
+	 * @param subscription The subscription requested, null to only reuse a restored subscription
+	 * 
+	 * @return The subscription, null if not able to subscribe
+	 */
+	private SharedSubscription newSubscription(String key, OrionSubscription subscription) throws IOException{
+		SharedSubscription restored = journal.claim(key);
+		if(restored!=null){
+			LOGGER.debug("Reusing restored subscription: {}", restored.getSubscriptionId());
+			return new SharedSubscription(key, restored.getSubscriptionId(), subscription==null ? restored.getSubscription() : subscription);
+		}
+		if(subscription==null){
+			return null;
+		}
 		OrionEntity entity = new OrionEntity();
 		entity.setId(subscription.getEntityId());
-		String[] attributes = subscription.getAttributes();
-		String[] conditions = subscription.getConditions();
+		SubscriptionResponse response = subscribeChange(entity, subscription.getAttributes(), subscription.getConditions());
+		if(response==null){
+			return null;
+		}
+		return new SharedSubscription(key, response.getSubscribeResponse().getSubscriptionId(), subscription);
+	}
+	
+	
+	/**
+	 * Method for getting the existence and access scope of an entity
+	 * Asks the Context Broker only if the entity is not in the cache
+	 * 
+	 * @param entityId The id of the entity
+	 * 
+	 * @return The scope of the entity
+	 */
+	private EntityScope getEntityScope(String entityId){
+		EntityScope scope = entityCache.get(entityId);
+		if(scope!=null){
+			return scope;
+		}
+		//using clean java http client, as OrionClient is non functioning with simple get
+		Client c = httpClientPool.getClient();
+		WebTarget webTarget = c.target(serverUrl).path("/v2/entities/"+entityId);
+		if(entityCache.isScopeOnly()){
+			webTarget = webTarget.queryParam("attrs", EntityScopeCache.SCOPE_ATTRIBUTE);
+		}
 		
+		Invocation.Builder invocationBuilder =  webTarget.request(MediaType.APPLICATION_JSON).header("Fiware-Service", " organicity");
+		long start = System.nanoTime();
+		boolean success = false;
 		try{
-			subscriptionId = "Not able to subscribe at the moment. Please try again";
+			Response checkResponse = invocationBuilder.get();
 			
-			SubscriptionResponse response = client.subscribeChange(entity, attributes, localURI,conditions);
-			if(response!=null){
-				subscriptionId = response.getSubscribeResponse().getSubscriptionId();
-				subscription.setSubscriberId(sessionId);
-				subscriptions.put(subscriptionId, subscription);
-				if(clientIndexedSubscriptions.get(sessionId)==null){
-					clientIndexedSubscriptions.put(sessionId, new ArrayList<String>(Arrays.asList(subscriptionId)));
-				}else{
-					List<String> subscriptions = clientIndexedSubscriptions.get(sessionId);
-					if(!subscriptions.contains(subscriptions)){
-						subscriptions.add(subscriptionId);
+			JSONObject checkEntity = new JSONObject(checkResponse.readEntity(String.class));
+			success = true;
+			return entityCache.put(entityId, checkEntity);
+		}finally{
+			metrics.orionCalled(OrionOperation.ENTITY, start, success);
+		}
+	}
+	
+	
+	/**
+	 * Method to be called for every element received from the Context Broker
+	 * Keeps the cached scope and the last value of the entity up to date
+	 * 
+	 * @param element The element received
+	 */
+	public void entityNotified(ContextElement element){
+		entityCache.onNotification(element);
+		lastValues.onNotification(element);
+	}
+	
+	
+	/**
+	 * Method for getting the current state of an entity without calling the Context Broker
+	 * Uses the last notification of the entity, or the entity fetched for the access check if it has not been notified
+	 * 
+	 * @param entityId The id of the entity
+	 * 
+	 * @return The entity, null if it is in neither cache
+	 */
+	public ContextElement getLastValue(String entityId){
+		ContextElement element = lastValues.get(entityId);
+		if(element!=null){
+			return element;
+		}
+		EntityScope scope = entityCache.get(entityId);
+		if(scope!=null && scope.getEntity()!=null){
+			return LastValueCache.fromEntity(scope.getEntity());
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Registering a subscription at the Context Broker without blocking the calling thread
+	 * If the Context Broker answers after the deadline, the session is detached again as the client has already been told it failed
+	 * 
+	 * @param subscription A POJO containing the subscription data needed to set a subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 * @param clientId The id of the verified user
+	 * @param setup Called with the subscriptionId before the session is attached
+	 * @param teardown Called with the subscriptionId if the session is detached again after the deadline, to undo the setup
+	 * 
+	 * @return A future with the same response as {@link #registerSubscription(OrionSubscription, String, String)}
+	 */
+	public CompletableFuture<String[]> registerSubscriptionAsync(OrionSubscription subscription, String sessionId, String clientId,
+			Consumer<String> setup, Consumer<String> teardown){
+		return taskExecutor.submit(() -> registerSubscription(subscription, sessionId, clientId, setup), lateResponse -> {
+			if("subscriptionId".equals(lateResponse[0])){
+				LOGGER.info("Subscription {} completed after timeout. Detaching session {}", lateResponse[1], sessionId);
+				removeSubscription(lateResponse[1], sessionId);
+				teardown.accept(lateResponse[1]);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Registering many subscriptions for a client without blocking the calling thread
+	 * The entities are first checked with one query to the Context Broker, then the subscriptions are made
+	 * with at most batch.concurrency calls at a time
+	 * 
+	 * @param subscriptions The subscriptions
+	 * @param sessionId The id of the client requesting the subscriptions
+	 * @param clientIds The id of the verified user of every subscription
+	 * @param setups Called with the subscriptionId of every subscription before the session is attached
+	 * @param teardown Called with the subscriptionId of every subscription the session is detached from again after the deadline
+	 * 
+	 * @return A future with the response of every subscription, in order, as {@link #registerSubscription(OrionSubscription, String, String)}
+	 */
+	public CompletableFuture<List<String[]>> registerSubscriptionsAsync(List<OrionSubscription> subscriptions, String sessionId, List<String> clientIds,
+			List<Consumer<String>> setups, Consumer<String> teardown){
+		List<String> entityIds = new ArrayList<>();
+		for(OrionSubscription subscription: subscriptions){
+			if(!subscription.isPattern()){
+				entityIds.add(subscription.getEntityId());
+			}
+		}
+		return taskExecutor.submit(() -> prefetchEntityScopes(entityIds), null)
+				//the entities are checked one by one if the batched query fails
+				.handle((prefetched, e) -> prefetched)
+				.thenCompose(prefetched -> OrionTaskExecutor.inParallel(subscriptions.size(), batchConcurrency,
+						i -> registerSubscriptionAsync(subscriptions.get(i), sessionId, clientIds.get(i), setups.get(i), teardown)
+							.exceptionally(e -> new String[]{"error", "Not able to subscribe at the moment. Please try again"})));
+	}
+	
+	
+	/**
+	 * Removing a client from many subscriptions without blocking the calling thread
+	 * 
+	 * @param subscriptionIds The ids of the subscriptions to remove
+	 * @param clientId The id of the client requesting the removal
+	 * 
+	 * @return A future with the response of every removal, in order, as {@link #removeSubscription(String, String)}
+	 */
+	public CompletableFuture<List<String>> removeSubscriptionsAsync(List<String> subscriptionIds, String clientId){
+		return OrionTaskExecutor.inParallel(subscriptionIds.size(), batchConcurrency,
+				i -> removeSubscriptionAsync(subscriptionIds.get(i), clientId).exceptionally(e -> null));
+	}
+	
+	
+	/**
+	 * Method for caching the existence and access scope of many entities with as few calls to the Context Broker as possible
+	 * Asks for the entities not in the cache with /v2/entities?id=..., entityCache.batchSize at a time.
+	 * Entities not returned are cached as unknown
+	 * 
+	 * @param entityIds The ids of the entities
+	 * 
+	 * @return The number of entities fetched
+	 */
+	int prefetchEntityScopes(List<String> entityIds){
+		Set<String> missing = new LinkedHashSet<>();
+		for(String entityId: entityIds){
+			//a comma would split the id in the query
+			if(entityId!=null && entityId.indexOf(',')<0 && entityCache.get(entityId)==null){
+				missing.add(entityId);
+			}
+		}
+		List<String> ids = new ArrayList<>(missing);
+		int fetched = 0;
+		for(int from=0; from<ids.size(); from+=entityBatchSize){
+			List<String> chunk = ids.subList(from, Math.min(from+entityBatchSize, ids.size()));
+			WebTarget webTarget = httpClientPool.getClient().target(serverUrl).path("/v2/entities")
+					.queryParam("id", String.join(",", chunk))
+					.queryParam("limit", chunk.size());
+			if(entityCache.isScopeOnly()){
+				webTarget = webTarget.queryParam("attrs", EntityScopeCache.SCOPE_ATTRIBUTE);
+			}
+			long start = System.nanoTime();
+			boolean success = false;
+			try{
+				Response response = webTarget.request(MediaType.APPLICATION_JSON).header("Fiware-Service", " organicity").get();
+				if(response.getStatus()!=Response.Status.OK.getStatusCode()){
+					LOGGER.error("Not able to check {} entities: {}", chunk.size(), response.getStatus());
+					response.close();
+					continue;
+				}
+				JSONArray entities = new JSONArray(response.readEntity(String.class));
+				Set<String> found = new HashSet<>();
+				for(int i=0; i<entities.length(); i++){
+					JSONObject entity = entities.getJSONObject(i);
+					String id = entity.optString("id", null);
+					if(id!=null && found.add(id)){
+						entityCache.put(id, entity);
 					}
 				}
-				methodResponse[0] = "subscriptionId";
+				for(String id: chunk){
+					if(!found.contains(id)){
+						entityCache.put(id, new JSONObject().put("error", "NotFound"));
+					}
+				}
+				fetched += found.size();
+				success = true;
+			}catch(ProcessingException | JSONException e){
+				LOGGER.error("Not able to check {} entities: {}", chunk.size(), e.getMessage());
+			}finally{
+				metrics.orionCalled(OrionOperation.ENTITY, start, success);
 			}
-			
-		}catch(IOException e){
-			LOGGER.error("Not able to add subscription: "+e.getStackTrace());
-			subscriptionId = "Something went wrong when trying to subscribe. Please try again";
 		}
-		methodResponse[1] = subscriptionId;
-		return methodResponse;
+		return fetched;
+	}
+	
+	
+	/**
+	 * Removing a client from a subscription without blocking the calling thread
+	 * 
+	 * @param subscriptionId The specific subscriptionId of the subscription wished to be removed
+	 * @param clientId The id of the client requesting the subscription
+	 * 
+	 * @return A future with the same response as {@link #removeSubscription(String, String)}
+	 */
+	public CompletableFuture<String> removeSubscriptionAsync(String subscriptionId, String clientId){
+		return taskExecutor.submit(() -> removeSubscription(subscriptionId, clientId), null);
 	}
 	
 	
 	/**
-	 * Removing a subscription from Context Broker
+	 * Removing a client from a subscription
+	 * The subscription is only removed from the Context Broker when the last client detaches
 	 * 
 	 * @param subscriptionId The specific subscriptionId of the subscription wished to be removed
 	 * @param clientId The id of the client requesting the subscription
@@ -262,81 +484,401 @@ public class Connector {
 	 * @return subscriptionId if remove is successful, null otherwise
 	 */
 	public String removeSubscription(String subscriptionId, String clientId){
+		int remaining = registry.detach(subscriptionId, clientId);
+		if(remaining<0){
+			LOGGER.error("Client {} is not attached to subscription with id: {}", clientId, subscriptionId);
+			return null;
+		}
+		journal.detached(clientId, subscriptionId);
+		if(remaining>0){
+			LOGGER.info("Session {} detached from shared subscription: {}", clientId, subscriptionId);
+			return subscriptionId;
+		}
+		return unsubscribe(subscriptionId) ? subscriptionId : null;
+	}
+	
+	
+	/**
+	 * Removes a subscription no longer used by any session from the Context Broker
+	 * 
+	 * @param subscriptionId The id of the subscription at the Context Broker
+	 * 
+	 * @return true if the subscription was removed
+	 */
+	private boolean unsubscribe(String subscriptionId){
 		try {
-			LOGGER.info("Sending request to remove subscription with id: "+subscriptionId);
-			SubscriptionResponse response = client.unSubscribeChange(subscriptionId);
+			LOGGER.info("Sending request to remove subscription with id: {}", subscriptionId);
+			SubscriptionResponse response = unSubscribeChange(subscriptionId);
 			if(response.getSubscribeError()==null){
-				subscriptions.remove(subscriptionId);
-				List<String> clientSubscriptions = clientIndexedSubscriptions.get(clientId);
-				if(clientSubscriptions!=null){
-					clientSubscriptions.remove(subscriptionId);
-				}
-				return subscriptionId;
+				return true;
 			}else{
-				LOGGER.error("Error while unscribing subscription with id: "+subscriptionId+": "+response.getSubscribeError());
+				LOGGER.error("Error while unscribing subscription with id: {}: {}", subscriptionId, response.getSubscribeError());
 			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
-			LOGGER.error("Error while unscribing subscription with id: "+subscriptionId+": "+e.getStackTrace());
+			LOGGER.error("Error while unscribing subscription with id: {}", subscriptionId, e);
 			//e.printStackTrace();
 			
 		}
-		return null;
+		return false;
 	}
 	
 	
 	/**
-	 * Method for getting a clientId from a given subscriptionId
+	 * Subscribes to changes of an entity at the Context Broker through the shared connection pool
+	 * Builds the same NGSI v1 request as {@link com.amaxilatis.orion.OrionClient}, which opens a new client for every call
+	 * 
+	 * @param entity The entity to subscribe to
+	 * @param attributes The attributes to include in notifications, all if empty
+	 * @param conditions The attributes triggering a notification when changed
+	 * 
+	 * @return The response from the Context Broker
+	 * @throws IOException if the Context Broker could not be reached
+	 */
+	private SubscriptionResponse subscribeChange(OrionEntity entity, String[] attributes, String[] conditions) throws IOException{
+		SubscribeContextAvailabilityRequest request = new SubscribeContextAvailabilityRequest();
+		request.setDuration(leaseDuration);
+		request.getEntities().add(entity);
+		if(attributes==null || attributes.length==0){
+			request.setAttributes(null);
+		}else{
+			request.getAttributes().addAll(Arrays.asList(attributes));
+		}
+		request.setReference(reference);
+		if(conditions!=null){
+			for(String condition: conditions){
+				request.getNotifyConditions().add(new NotifyConditions("ONCHANGE", condition));
+			}
+		}
+		return postToOrion(OrionOperation.SUBSCRIBE, "/v1/subscribeContext", request);
+	}
+	
+	/**
+	 * Renews the lease of a subscription at the Context Broker without blocking the calling thread
+	 * 
+	 * @param subscriptionId The id of the subscription
+	 * 
+	 * @return A future with true if the lease was renewed
+	 */
+	private CompletableFuture<Boolean> renewSubscriptionAsync(String subscriptionId){
+		return taskExecutor.submit(() -> {
+			Map<String, String> request = new LinkedHashMap<>();
+			request.put("subscriptionId", subscriptionId);
+			request.put("duration", leaseDuration);
+			try{
+				SubscriptionResponse response = postToOrion(OrionOperation.RENEW, "/v1/updateContextSubscription", request);
+				if(response.getSubscribeError()!=null){
+					LOGGER.error("Not able to renew subscription {}: {}", subscriptionId, response.getSubscribeError());
+					return false;
+				}
+				return true;
+			}catch(IOException e){
+				LOGGER.error("Not able to renew subscription {}: {}", subscriptionId, e.getMessage());
+				return false;
+			}
+		}, null);
+	}
+	
+	/**
+	 * Lists the subscriptions at the Context Broker sending notifications to the reference of this node
+	 * 
+	 * @return The ids of the subscriptions
+	 */
+	private List<String> listSubscriptions(){
+		List<String> subscriptionIds = new ArrayList<>();
+		for(int offset=0; ; offset+=LIST_PAGE_SIZE){
+			long start = System.nanoTime();
+			boolean success = false;
+			JSONArray page;
+			try{
+				Response response = httpClientPool.getClient().target(serverUrl).path("/v2/subscriptions")
+						.queryParam("limit", LIST_PAGE_SIZE)
+						.queryParam("offset", offset)
+						.request(MediaType.APPLICATION_JSON_TYPE)
+						.header("X-Auth-Token", tokenManager.getToken())
+						.header("Fiware-Service", "organicity")
+						.header("Fiware-ServicePath", "/")
+						.get();
+				if(response.getStatus()!=Response.Status.OK.getStatusCode()){
+					response.close();
+					throw new IllegalStateException("Context Broker answered "+response.getStatus());
+				}
+				page = new JSONArray(response.readEntity(String.class));
+				success = true;
+			}catch(ProcessingException | JSONException e){
+				throw new IllegalStateException(e.getMessage(), e);
+			}finally{
+				metrics.orionCalled(OrionOperation.LIST, start, success);
+			}
+			for(int i=0; i<page.length(); i++){
+				JSONObject subscription = page.getJSONObject(i);
+				JSONObject notification = subscription.optJSONObject("notification");
+				if(notification==null){
+					continue;
+				}
+				JSONObject http = notification.optJSONObject("http");
+				if(http==null){
+					http = notification.optJSONObject("httpCustom");
+				}
+				if(http!=null && reference.equals(http.optString("url"))){
+					subscriptionIds.add(subscription.getString("id"));
+				}
+			}
+			if(page.length()<LIST_PAGE_SIZE){
+				return subscriptionIds;
+			}
+		}
+	}
+	
+	private SubscriptionResponse unSubscribeChange(String subscriptionId) throws IOException{
+		return postToOrion(OrionOperation.UNSUBSCRIBE, "/v1/unsubscribeContext", new UnSubscribeContext(subscriptionId));
+	}
+	
+	private SubscriptionResponse postToOrion(OrionOperation operation, String path, Object request) throws IOException{
+		long start = System.nanoTime();
+		boolean success = false;
+		String authToken = tokenManager.getToken();
+		try{
+			Response response = httpClientPool.getClient().target(serverUrl).path(path)
+					.request(MediaType.APPLICATION_JSON_TYPE)
+					.header("X-Auth-Token", authToken)
+					.header("Fiware-Service", "organicity")
+					.header("Fiware-ServicePath", "/")
+					.post(Entity.json(mapper.writeValueAsString(request)));
+			if(response.getStatus()==Response.Status.UNAUTHORIZED.getStatusCode()){
+				//token revoked or expired early, the next call gets a new one
+				tokenManager.rejected(authToken);
+			}
+			SubscriptionResponse subscriptionResponse = mapper.readValue(response.readEntity(String.class), SubscriptionResponse.class);
+			success = subscriptionResponse.getSubscribeError()==null;
+			return subscriptionResponse;
+		}catch(ProcessingException e){
+			throw new IOException(e);
+		}finally{
+			metrics.orionCalled(operation, start, success);
+		}
+	}
+	
+	
+	/**
+	 * Method for getting the sessions attached to a given subscriptionId
 	 * 
 	 * @param subscriptionId The specific subscriptionId
 	 * 
-	 * @return The clientId from that subscription
+	 * @return The sessionIds attached to that subscription, empty if the subscription is unknown
 	 */
-	public String getSubscriptionSessionId(String subscriptionId){
-		String sessionId = subscriptions.get(subscriptionId).getSubscriberId();
-		return sessionId;
+	public Set<String> getSubscriptionSessionIds(String subscriptionId){
+		return registry.getSessionIds(subscriptionId);
 	}
 	
 	
 	/**
 	 * Get all subscriptions
 	 * 
-	 * @return The list of subscriptions
+	 * @return The subscriptions indexed by subscriptionId
 	 */
-	public HashMap<String, OrionSubscription> getSubscriptions(){
-		return subscriptions;
+	public Map<String, SharedSubscription> getSubscriptions(){
+		return registry.getSubscriptions();
 	}
 	
 	
 	/**
 	 * Method for handling cleaning up after a client disconnects
+	 * The session is removed from routing at once, and the subscriptions it leaves unused are removed
+	 * from the Context Broker in the background by the {@link DisconnectReaper}
 	 * 
 	 * @param clientId The id of the client requesting the subscription
 	 * 
-	 * @return A boolean if clean up succeded
+	 * @return The number of subscriptions queued for removal
 	 */
-	public boolean clientDisconnected(String clientId){
-		ArrayList<String> clientSubscriptions = clientIndexedSubscriptions.get(clientId);
-		if(clientSubscriptions==null){
-			//no subscriptions found. all good
-			return true;
+	public int clientDisconnected(String clientId){
+		journal.sessionClosed(clientId);
+		List<SharedSubscription> unused = registry.removeSession(clientId);
+		if(unused.isEmpty()){
+			return 0;
 		}
-		
-		List<String> subscriptions = (ArrayList)clientSubscriptions.clone();
-		
-		boolean allGood = true;
-		
-		if(subscriptions!=null){
-			for(String subscriptionId: subscriptions){
-				String res = removeSubscription(subscriptionId, clientId);
-				if(res==null){
-					allGood=false;
+		List<String> subscriptionIds = new ArrayList<>(unused.size());
+		for(SharedSubscription shared: unused){
+			subscriptionIds.add(shared.getSubscriptionId());
+		}
+		reaper.submit(subscriptionIds);
+		return subscriptionIds.size();
+	}
+	
+	/**
+	 * Method for attaching a reconnecting client to the subscriptions it had before, without calling the Context Broker
+	 * The subscriptions are the ones recorded in the {@link SubscriptionJournal} for the resume token and the user,
+	 * either still in use by other clients or restored after a restart
+	 * 
+	 * @param resumeToken The resume token given by the client
+	 * @param sessionId The id of the client
+	 * @param clientId The id of the verified user
+	 * 
+	 * @return The subscriptions the client was attached to
+	 */
+	public List<SharedSubscription> resumeSession(String resumeToken, String sessionId, String clientId){
+		List<SharedSubscription> resumed = new ArrayList<>();
+		for(String subscriptionId: journal.resume(sessionId, resumeToken, clientId)){
+			String key = journal.keyOf(subscriptionId);
+			if(key==null){
+				continue;
+			}
+			try{
+				//never subscribes, only attaches to subscriptions in use or restored
+				SharedSubscription shared = registry.attachOrCreate(key, sessionId, () -> newSubscription(key, null));
+				if(shared!=null){
+					journal.attached(sessionId, shared.getSubscriptionId(), clientId);
+					resumed.add(shared);
 				}
+			}catch(IOException e){
+				LOGGER.error("Not able to resume subscription {}: {}", subscriptionId, e.getMessage());
 			}
 		}
-		clientIndexedSubscriptions.remove(clientId);
-		
-		return allGood;
+		if(!resumed.isEmpty()){
+			LOGGER.info("Session {} resumed {} subscriptions", sessionId, resumed.size());
+		}
+		return resumed;
+	}
+	
+	
+	/**
+	 * Restores the subscriptions in the {@link SubscriptionJournal} and renews their leases
+	 * Subscriptions no longer at the Context Broker are dropped, and the ones not claimed within journal.resumeWindow
+	 * are removed by the {@link DisconnectReaper}
+	 */
+	private void restoreSubscriptions(){
+		if(!journal.isEnabled()){
+			return;
+		}
+		long start = System.currentTimeMillis();
+		List<SharedSubscription> restored = journal.load(reaper::submit);
+		if(restored.isEmpty()){
+			return;
+		}
+		//the leases may have run out while the middleware was down
+		OrionTaskExecutor.inParallel(restored.size(), batchConcurrency,
+				i -> renewSubscriptionAsync(restored.get(i).getSubscriptionId()).exceptionally(e -> false))
+			.thenAccept(renewed -> {
+				int dropped = 0;
+				for(int i=0; i<renewed.size(); i++){
+					if(!renewed.get(i)){
+						journal.drop(restored.get(i).getSubscriptionId());
+						dropped++;
+					}
+				}
+				LOGGER.info("Restored {} subscriptions from the journal in {} ms, {} no longer at the Context Broker",
+						restored.size()-dropped, System.currentTimeMillis()-start, dropped);
+			});
+	}
+	
+	
+	/**
+	 * Method for stopping the background work at shutdown
+	 * With the journal enabled, the subscriptions are kept at the Context Broker for the next start
+	 * instead of being removed when the sessions are closed
+	 */
+	public void shutdown(){
+		reconciler.shutdown();
+		if(journal.isEnabled()){
+			journal.close();
+			reaper.shutdown();
+		}
+	}
+	
+	/**
+	 * Method for getting the journal the subscriptions are recorded in
+	 * 
+	 * @return The journal
+	 */
+	public SubscriptionJournal getJournal(){
+		return journal;
+	}
+	
+	/**
+	 * Method for getting the registry routing subscriptions to sessions
+	 * 
+	 * @return The registry
+	 */
+	public SubscriptionRegistry getRegistry(){
+		return registry;
+	}
+	
+	/**
+	 * Method for getting the cache used for the access check before subscribing
+	 * 
+	 * @return The cache
+	 */
+	public EntityScopeCache getEntityCache(){
+		return entityCache;
+	}
+	
+	/**
+	 * Method for getting the cache of the last state of every entity notified, sent to newly registered clients
+	 * 
+	 * @return The cache
+	 */
+	public LastValueCache getLastValues(){
+		return lastValues;
+	}
+	
+	/**
+	 * Method for getting the executor running calls to the Context Broker
+	 * 
+	 * @return The executor
+	 */
+	public OrionTaskExecutor getTaskExecutor(){
+		return taskExecutor;
+	}
+	
+	/**
+	 * Method for getting the connection pool shared by all calls to the Context Broker and the token server
+	 * 
+	 * @return The connection pool
+	 */
+	public HttpClientPool getHttpClientPool(){
+		return httpClientPool;
+	}
+	
+	/**
+	 * Method for getting the manager of the token of the middleware
+	 * 
+	 * @return The token manager
+	 */
+	public TokenManager getTokenManager(){
+		return tokenManager;
+	}
+	
+	/**
+	 * Method for getting the reaper removing subscriptions left by disconnected clients
+	 * 
+	 * @return The reaper
+	 */
+	public DisconnectReaper getReaper(){
+		return reaper;
+	}
+	
+	/**
+	 * Method for naming this node in the reference given to the Context Broker when subscribing
+	 * In a cluster the notifications may arrive at any node, which forwards them to the node named in the reference
+	 * 
+	 * @param param The query parameter holding the node
+	 * @param nodeId The id of this node
+	 */
+	public void setReferenceNode(String param, String nodeId){
+		try{
+			reference = localURI+(localURI.contains("?") ? "&" : "?")+param+"="+URLEncoder.encode(nodeId, "UTF-8");
+		}catch(UnsupportedEncodingException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Method for getting the reconciler keeping the subscriptions at the Context Broker in line with the registry
+	 * 
+	 * @return The reconciler
+	 */
+	public SubscriptionReconciler getReconciler(){
+		return reconciler;
 	}
 	
 	/**
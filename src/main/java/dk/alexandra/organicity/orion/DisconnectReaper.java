@@ -0,0 +1,158 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Removes the subscriptions left unused by disconnected clients from the Context Broker in the background
+ * Subscriptions are queued when the last client is removed from routing, and every reaper.interval ms up to
+ * reaper.batchSize of them are unsubscribed, at most reaper.concurrency at a time, so a disconnect storm neither
+ * blocks the event threads nor takes all workers of the {@link OrionTaskExecutor}. Failed unsubscribes are retried
+ * with a doubling delay up to reaper.maxAttempts times
+ * Settings can be set in connection.properties
+ *
+ */
+public class DisconnectReaper {
+
+	protected static final Logger LOGGER = LogManager.getLogger(DisconnectReaper.class);
+
+	private final OrionTaskExecutor taskExecutor;
+	private final Predicate<String> unsubscribe;
+	private final int batchSize;
+	private final int concurrency;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+	private final Set<String> queued = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean reaping = new AtomicBoolean();
+	private final ScheduledThreadPoolExecutor timer;
+
+
+	/**
+	 * Creates the reaper and starts its thread
+	 *
+	 * @param properties The connection properties
+	 * @param taskExecutor The executor the unsubscribes run on
+	 * @param unsubscribe Removes a subscription from the Context Broker, returns true if it was removed
+	 */
+	public DisconnectReaper(Properties properties, OrionTaskExecutor taskExecutor, Predicate<String> unsubscribe){
+		this.taskExecutor = taskExecutor;
+		this.unsubscribe = unsubscribe;
+		long interval = Long.parseLong(properties.getProperty("reaper.interval", "200"));
+		batchSize = Integer.parseInt(properties.getProperty("reaper.batchSize", "500"));
+		concurrency = Integer.parseInt(properties.getProperty("reaper.concurrency", "4"));
+		maxAttempts = Integer.parseInt(properties.getProperty("reaper.maxAttempts", "5"));
+		retryDelay = Long.parseLong(properties.getProperty("reaper.retryDelay", "1000"));
+
+		timer = new ScheduledThreadPoolExecutor(1, OrionTaskExecutor.namedThreads("disconnect-reaper"));
+		timer.scheduleWithFixedDelay(this::reap, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Queues subscriptions for removal from the Context Broker
+	 *
+	 * @param subscriptionIds The ids of the subscriptions no longer used
+	 */
+	public void submit(Collection<String> subscriptionIds){
+		for(String subscriptionId: subscriptionIds){
+			if(queued.add(subscriptionId)){
+				queue.add(new Pending(subscriptionId, 1, 0));
+			}
+		}
+	}
+
+
+	void reap(){
+		if(!reaping.compareAndSet(false, true)){
+			//the previous batch is still running
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<Pending> batch = new ArrayList<>();
+		List<Pending> later = new ArrayList<>();
+		Pending pending;
+		while(batch.size()<batchSize && (pending = queue.poll())!=null){
+			if(pending.notBefore<=now){
+				batch.add(pending);
+			}else{
+				later.add(pending);
+			}
+		}
+		queue.addAll(later);
+		if(batch.isEmpty()){
+			reaping.set(false);
+			return;
+		}
+
+		LOGGER.debug("Removing {} unused subscriptions", batch.size());
+		OrionTaskExecutor.inParallel(batch.size(), concurrency,
+				i -> taskExecutor.submit(() -> unsubscribe.test(batch.get(i).subscriptionId), null).exceptionally(e -> false))
+			.whenComplete((results, e) -> {
+				for(int i=0; i<batch.size(); i++){
+					done(batch.get(i), results!=null && Boolean.TRUE.equals(results.get(i)));
+				}
+				reaping.set(false);
+			});
+	}
+
+	private void done(Pending pending, boolean removed){
+		if(removed){
+			queued.remove(pending.subscriptionId);
+		}else if(pending.attempt<maxAttempts){
+			long delay = retryDelay<<Math.min(pending.attempt-1, 16);
+			queue.add(new Pending(pending.subscriptionId, pending.attempt+1, System.currentTimeMillis()+delay));
+		}else{
+			LOGGER.error("Giving up removing subscription {} after {} attempts", pending.subscriptionId, pending.attempt);
+			queued.remove(pending.subscriptionId);
+		}
+	}
+
+
+	/**
+	 * @return The number of subscriptions waiting to be removed
+	 */
+	public int getPending(){
+		return queued.size();
+	}
+
+	/**
+	 * Stops removing subscriptions
+	 */
+	public void shutdown(){
+		timer.shutdownNow();
+	}
+
+
+
+	private static class Pending {
+
+		final String subscriptionId;
+		final int attempt;
+		final long notBefore;
+
+		Pending(String subscriptionId, int attempt, long notBefore){
+			this.subscriptionId = subscriptionId;
+			this.attempt = attempt;
+			this.notBefore = notBefore;
+		}
+
+	}
+
+}
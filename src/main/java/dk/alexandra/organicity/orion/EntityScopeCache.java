@@ -0,0 +1,177 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Bounded cache of the existence and access scope of entities, used for the access check before subscribing
+ * Unknown entities are cached as well, for a shorter time
+ * Settings can be set in connection.properties
+ *
+ */
+public class EntityScopeCache {
+
+	protected static final Logger LOGGER = LogManager.getLogger(EntityScopeCache.class);
+	public static final String SCOPE_ATTRIBUTE = "access:scope";
+
+	private final Cache<String, EntityScope> cache;
+	private final long ttl;
+	private final long negativeTtl;
+	private final boolean scopeOnly;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+
+	/**
+	 * Creates the cache
+	 *
+	 * @param properties The connection properties
+	 */
+	public EntityScopeCache(Properties properties){
+		long maxSize = Long.parseLong(properties.getProperty("entityCache.maxSize", "10000"));
+		ttl = Long.parseLong(properties.getProperty("entityCache.ttl", "60000"));
+		negativeTtl = Long.parseLong(properties.getProperty("entityCache.negativeTtl", "10000"));
+		scopeOnly = Boolean.parseBoolean(properties.getProperty("entityCache.scopeOnly", "false"));
+
+		cache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(Math.max(ttl, negativeTtl), TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+
+	/**
+	 * Method for getting the cached scope of an entity
+	 *
+	 * @param entityId The id of the entity
+	 *
+	 * @return The scope, null if not cached or expired
+	 */
+	public EntityScope get(String entityId){
+		EntityScope scope = cache.getIfPresent(entityId);
+		if(scope==null || scope.expiresAt<System.currentTimeMillis()){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return scope;
+	}
+
+
+	/**
+	 * Caches the answer from the Context Broker for an entity
+	 *
+	 * @param entityId The id of the entity
+	 * @param checkEntity The entity as returned by the Context Broker, or the error returned
+	 *
+	 * @return The scope cached
+	 */
+	public EntityScope put(String entityId, JSONObject checkEntity){
+		EntityScope scope;
+		if(checkEntity.has("error")){
+			scope = new EntityScope(false, false, null, System.currentTimeMillis()+negativeTtl);
+		}else{
+			JSONObject scopeAttribute = checkEntity.optJSONObject(SCOPE_ATTRIBUTE);
+			boolean isPrivate = scopeAttribute!=null && "private".equals(scopeAttribute.opt("value"));
+			scope = new EntityScope(true, isPrivate, scopeOnly ? null : checkEntity, System.currentTimeMillis()+ttl);
+		}
+		cache.put(entityId, scope);
+		return scope;
+	}
+
+
+	/**
+	 * Invalidates the cached scope of an entity if a notification shows its scope has changed
+	 *
+	 * @param element The element received from the Context Broker
+	 */
+	public void onNotification(ContextElement element){
+		List<Attributes> attributes = element.getAttributes();
+		if(attributes==null){
+			return;
+		}
+		for(Attributes attribute: attributes){
+			if(SCOPE_ATTRIBUTE.equals(attribute.getName())){
+				EntityScope scope = cache.getIfPresent(element.getId());
+				if(scope!=null && scope.isPrivate()!="private".equals(attribute.getValue())){
+					LOGGER.info("Scope changed for entity: {}", element.getId());
+					cache.invalidate(element.getId());
+				}
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * @return true if only the access scope attribute should be fetched from the Context Broker
+	 */
+	public boolean isScopeOnly(){
+		return scopeOnly;
+	}
+
+	public long getHits(){
+		return hits.sum();
+	}
+
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	public long getSize(){
+		return cache.estimatedSize();
+	}
+
+
+
+	/**
+	 * The existence and access scope of an entity
+	 */
+	public static class EntityScope {
+
+		private final boolean available;
+		private final boolean isPrivate;
+		private final JSONObject entity;
+		private final long expiresAt;
+
+		EntityScope(boolean available, boolean isPrivate, JSONObject entity, long expiresAt) {
+			this.available = available;
+			this.isPrivate = isPrivate;
+			this.entity = entity;
+			this.expiresAt = expiresAt;
+		}
+
+		public boolean isAvailable() {
+			return available;
+		}
+
+		public boolean isPrivate() {
+			return isPrivate;
+		}
+
+		/**
+		 * @return The full entity fetched for the check, null if only the scope was fetched
+		 */
+		public JSONObject getEntity() {
+			return entity;
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * A single, long lived JAX-RS client backed by a pool of keep-alive connections
+ * Shared by every call to the Context Broker and the token server, so a request only pays a TCP and TLS handshake
+ * when no idle connection to that host is available
+ * Settings can be set in connection.properties
+ *
+ */
+public class HttpClientPool {
+
+	protected static final Logger LOGGER = LogManager.getLogger(HttpClientPool.class);
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final Client client;
+	private final ScheduledExecutorService evictor;
+
+
+	/**
+	 * Creates the pool
+	 *
+	 * @param properties The connection properties
+	 * @param sslContext The SSL context used for https connections
+	 */
+	public HttpClientPool(Properties properties, SSLContext sslContext){
+		int maxConnections = Integer.parseInt(properties.getProperty("http.maxConnections", "200"));
+		int maxConnectionsPerRoute = Integer.parseInt(properties.getProperty("http.maxConnectionsPerRoute", "50"));
+		int connectTimeout = Integer.parseInt(properties.getProperty("http.connectTimeout", "2000"));
+		int readTimeout = Integer.parseInt(properties.getProperty("http.readTimeout", "5000"));
+		long idleTimeout = Long.parseLong(properties.getProperty("http.idleTimeout", "30000"));
+
+		//OC atm runs with self signed certs, so the host name is not verified either
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+		ClientConfig config = new ClientConfig();
+		config.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+		config.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
+		config.property(ClientProperties.READ_TIMEOUT, readTimeout);
+		config.connectorProvider(new ApacheConnectorProvider());
+		client = ClientBuilder.newClient(config);
+
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "http-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		evictor.scheduleWithFixedDelay(() -> {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+
+		LOGGER.info("HTTP connection pool created with max {} connections, {} per route", maxConnections, maxConnectionsPerRoute);
+	}
+
+
+	/**
+	 * Method for getting the shared client. Must not be closed by callers
+	 *
+	 * @return The pooled client
+	 */
+	public Client getClient(){
+		return client;
+	}
+
+
+	/**
+	 * @return The number of connections currently in use
+	 */
+	public int getLeased(){
+		return stats().getLeased();
+	}
+
+	/**
+	 * @return The number of idle connections kept alive in the pool
+	 */
+	public int getAvailable(){
+		return stats().getAvailable();
+	}
+
+	/**
+	 * @return The number of requests waiting for a connection
+	 */
+	public int getPending(){
+		return stats().getPending();
+	}
+
+	/**
+	 * @return The maximum number of connections in the pool
+	 */
+	public int getMax(){
+		return stats().getMax();
+	}
+
+	private PoolStats stats(){
+		return connectionManager.getTotalStats();
+	}
+
+
+	/**
+	 * Closes the client and every pooled connection
+	 */
+	public void close(){
+		evictor.shutdownNow();
+		client.close();
+		connectionManager.shutdown();
+	}
+
+}
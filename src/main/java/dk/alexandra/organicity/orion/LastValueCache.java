@@ -0,0 +1,114 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Bounded cache of the latest state of the entities notified by the Context Broker, sent to clients when they register
+ * Every notification is merged into the cached element, so it holds the latest value of every attribute seen
+ * Settings can be set in connection.properties
+ *
+ */
+public class LastValueCache {
+
+	private final Cache<String, ContextElement> cache;
+
+
+	/**
+	 * Creates the cache
+	 *
+	 * @param properties The connection properties
+	 */
+	public LastValueCache(Properties properties){
+		long maxSize = Long.parseLong(properties.getProperty("lastValue.maxSize", "10000"));
+		long ttl = Long.parseLong(properties.getProperty("lastValue.ttl", "3600000"));
+
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumSize(maxSize);
+		if(ttl>0){
+			builder.expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+		}
+		cache = builder.build();
+	}
+
+
+	/**
+	 * Method for merging an element received from the Context Broker into the cache
+	 * The element is not changed, as it is shared with the notifications sent to clients
+	 *
+	 * @param element The element received
+	 */
+	public void onNotification(ContextElement element){
+		if(element.getId()==null || element.getAttributes()==null){
+			return;
+		}
+		cache.asMap().merge(element.getId(), element, LastValueCache::merge);
+	}
+
+
+	private static ContextElement merge(ContextElement older, ContextElement newer){
+		Map<String, Attributes> attributes = new LinkedHashMap<>();
+		for(Attributes attribute: older.getAttributes()){
+			attributes.put(attribute.getName(), attribute);
+		}
+		for(Attributes attribute: newer.getAttributes()){
+			attributes.put(attribute.getName(), attribute);
+		}
+		return new ContextElement(newer.getType(), newer.getIsPattern(), newer.getId(), new ArrayList<>(attributes.values()));
+	}
+
+
+	/**
+	 * Method for getting the latest state of an entity
+	 *
+	 * @param entityId The id of the entity
+	 *
+	 * @return The element, null if the entity has not been notified
+	 */
+	public ContextElement get(String entityId){
+		return cache.getIfPresent(entityId);
+	}
+
+
+	/**
+	 * Method for converting an entity fetched from the Context Broker with /v2/entities
+	 *
+	 * @param entity The entity
+	 *
+	 * @return The entity as an element of a notification
+	 */
+	public static ContextElement fromEntity(JSONObject entity){
+		List<Attributes> attributes = new ArrayList<>();
+		for(String name: entity.keySet()){
+			JSONObject attribute = entity.optJSONObject(name);
+			if(attribute==null){
+				//id and type
+				continue;
+			}
+			Object value = attribute.opt("value");
+			attributes.add(new Attributes(name, attribute.optString("type", null), value==null ? null : value.toString()));
+		}
+		return new ContextElement(entity.optString("type", null), "false", entity.optString("id", null), attributes);
+	}
+
+
+	public long getSize(){
+		return cache.estimatedSize();
+	}
+
+}
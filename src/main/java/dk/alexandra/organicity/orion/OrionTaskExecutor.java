@@ -0,0 +1,238 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Runs blocking calls to the Context Broker off the STOMP inbound threads
+ * The number of calls in flight and waiting is bounded, and every call gets a deadline,
+ * so a slow Context Broker results in an error for the client instead of a hung thread
+ * With orion.executor=virtual, and a JVM with virtual threads, every call runs on its own virtual thread instead of
+ * the orion.threads pool, at most orion.virtual.maxConcurrent calls at a time to protect the Context Broker
+ * Settings can be set in connection.properties
+ *
+ */
+public class OrionTaskExecutor {
+
+	protected static final Logger LOGGER = LogManager.getLogger(OrionTaskExecutor.class);
+
+	private final ExecutorService executor;
+	private final ThreadPoolExecutor pool;
+	private final Semaphore permits;
+	private final int maxConcurrent;
+	private final int maxTasks;
+	private final AtomicInteger tasks = new AtomicInteger();
+	private final ScheduledThreadPoolExecutor timer;
+	private final long timeout;
+
+
+	/**
+	 * Creates the executor
+	 *
+	 * @param properties The connection properties
+	 */
+	public OrionTaskExecutor(Properties properties){
+		int threads = Integer.parseInt(properties.getProperty("orion.threads", "16"));
+		int maxPending = Integer.parseInt(properties.getProperty("orion.maxPending", "1000"));
+		timeout = Long.parseLong(properties.getProperty("orion.timeout", "10000"));
+
+		boolean useVirtual = "virtual".equalsIgnoreCase(properties.getProperty("orion.executor", "platform"));
+		ExecutorService virtual = useVirtual ? VirtualThreads.newExecutor("orion-worker") : null;
+		if(useVirtual && virtual==null){
+			LOGGER.warn("orion.executor=virtual needs Java 21 or later. Using {} platform threads", threads);
+		}
+		if(virtual!=null){
+			maxConcurrent = Integer.parseInt(properties.getProperty("orion.virtual.maxConcurrent", "256"));
+			maxTasks = maxConcurrent+maxPending;
+			permits = new Semaphore(maxConcurrent);
+			pool = null;
+			executor = virtual;
+			LOGGER.info("Calling the Context Broker on virtual threads, at most {} calls at a time", maxConcurrent);
+		}else{
+			maxConcurrent = threads;
+			maxTasks = 0;
+			permits = null;
+			pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(maxPending), namedThreads("orion-worker"), new ThreadPoolExecutor.AbortPolicy());
+			executor = pool;
+		}
+		timer = new ScheduledThreadPoolExecutor(1, namedThreads("orion-timeout"));
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+
+	/**
+	 * Submits a blocking call
+	 *
+	 * @param task The call to run
+	 * @param lateResult Called with the result if the call succeeds after the deadline passed, may be null
+	 *
+	 * @return A future completed with the result, or exceptionally with a {@link TimeoutException}
+	 * when the deadline passes or a {@link RejectedExecutionException} when too many calls are pending
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> task, Consumer<T> lateResult){
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try{
+			execute(() -> {
+				try{
+					T value = task.get();
+					if(!result.complete(value) && lateResult!=null){
+						lateResult.accept(value);
+					}
+				}catch(RuntimeException e){
+					result.completeExceptionally(e);
+				}
+			});
+		}catch(RejectedExecutionException e){
+			LOGGER.error("Too many pending calls to the Context Broker. Rejecting");
+			result.completeExceptionally(e);
+			return result;
+		}
+		ScheduledFuture<?> deadline = timer.schedule(() -> result.completeExceptionally(new TimeoutException("No response within "+timeout+" ms")), timeout, TimeUnit.MILLISECONDS);
+		result.whenComplete((value, e) -> deadline.cancel(false));
+		return result;
+	}
+
+
+	private void execute(Runnable call){
+		if(permits==null){
+			executor.execute(call);
+			return;
+		}
+		//the virtual threads wait for a permit, the number waiting is bounded as with the pool
+		if(tasks.incrementAndGet()>maxTasks){
+			tasks.decrementAndGet();
+			throw new RejectedExecutionException("More than "+maxTasks+" calls pending");
+		}
+		try{
+			executor.execute(() -> {
+				try{
+					permits.acquireUninterruptibly();
+					try{
+						call.run();
+					}finally{
+						permits.release();
+					}
+				}finally{
+					tasks.decrementAndGet();
+				}
+			});
+		}catch(RejectedExecutionException e){
+			tasks.decrementAndGet();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Starts a number of calls with at most concurrency of them running at a time
+	 * The next call is started when one completes, so a large batch does not fill the queue of the executor
+	 *
+	 * @param count The number of calls
+	 * @param concurrency The maximum number of calls running at a time
+	 * @param call Starts call number i, its future must not complete exceptionally
+	 *
+	 * @return A future completed with the results of all calls, in order
+	 */
+	public static <T> CompletableFuture<List<T>> inParallel(int count, int concurrency, IntFunction<CompletableFuture<T>> call){
+		AtomicReferenceArray<T> results = new AtomicReferenceArray<>(count);
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger done = new AtomicInteger();
+		CompletableFuture<List<T>> all = new CompletableFuture<>();
+		if(count==0){
+			all.complete(new ArrayList<>());
+			return all;
+		}
+		Runnable start = new Runnable(){
+			@Override
+			public void run(){
+				int i = next.getAndIncrement();
+				if(i>=count){
+					return;
+				}
+				call.apply(i).whenComplete((result, e) -> {
+					results.set(i, result);
+					if(done.incrementAndGet()==count){
+						List<T> list = new ArrayList<>(count);
+						for(int j=0; j<count; j++){
+							list.add(results.get(j));
+						}
+						all.complete(list);
+					}else{
+						run();
+					}
+				});
+			}
+		};
+		for(int i=0; i<Math.max(1, concurrency); i++){
+			start.run();
+		}
+		return all;
+	}
+
+
+	/**
+	 * @return The number of calls currently running
+	 */
+	public int getActive(){
+		return pool!=null ? pool.getActiveCount() : maxConcurrent-permits.availablePermits();
+	}
+
+	/**
+	 * @return The number of calls waiting for a thread
+	 */
+	public int getQueued(){
+		return pool!=null ? pool.getQueue().size() : Math.max(0, tasks.get()-getActive());
+	}
+
+	/**
+	 * @return true if the calls run on virtual threads
+	 */
+	public boolean isVirtual(){
+		return pool==null;
+	}
+
+
+	/**
+	 * Stops accepting calls
+	 */
+	public void shutdown(){
+		executor.shutdown();
+		timer.shutdownNow();
+	}
+
+
+	static ThreadFactory namedThreads(String name){
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, name+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
@@ -0,0 +1,77 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import dk.alexandra.orion.websocket.transports.OrionSubscription;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * A single subscription at the Context Broker, shared by every client session watching
+ * the same entity with the same attributes and conditions
+ * The attached sessions can be read without locking, changes are guarded by the {@link SubscriptionRegistry}
+ *
+ */
+public class SharedSubscription {
+
+	private final String key;
+	private final String subscriptionId;
+	private final OrionSubscription subscription;
+	private final Set<String> sessionIds = new CopyOnWriteArraySet<>();
+
+
+	public SharedSubscription(String key, String subscriptionId, OrionSubscription subscription) {
+		this.key = key;
+		this.subscriptionId = subscriptionId;
+		this.subscription = subscription;
+	}
+
+
+	/**
+	 * Creates the key used for sharing subscriptions between sessions
+	 * Attributes and conditions are sorted, so the order given by the client does not matter
+	 *
+	 * @param subscription The subscription requested by a client
+	 *
+	 * @return A key identifying (entityId, attributes, conditions)
+	 */
+	public static String keyOf(OrionSubscription subscription){
+		return subscription.getEntityId()+"|"+sorted(subscription.getAttributes())+"|"+sorted(subscription.getConditions());
+	}
+
+	private static String sorted(String[] values){
+		if(values==null){
+			return "";
+		}
+		String[] copy = values.clone();
+		Arrays.sort(copy);
+		return String.join(",", copy);
+	}
+
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getSubscriptionId() {
+		return subscriptionId;
+	}
+
+	public OrionSubscription getSubscription() {
+		return subscription;
+	}
+
+	public Set<String> getSessionIds() {
+		return sessionIds;
+	}
+
+	@Override
+	public String toString() {
+		return "SharedSubscription [key=" + key + ", subscriptionId=" + subscriptionId + ", sessionIds=" + sessionIds + "]";
+	}
+
+}
@@ -0,0 +1,540 @@
+package dk.alexandra.organicity.orion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import dk.alexandra.orion.websocket.transports.OrionSubscription;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Append-only log of the subscriptions at the Context Broker, so a restarted middleware can reuse them
+ * instead of subscribing again for every client. Disabled unless journal.file is set
+ * Every record is a JSON line, appended by the journal thread every journal.flushInterval ms, and the log is
+ * rewritten with only the live records at startup and when more than journal.compactAfter records have been appended
+ * At startup the subscriptions in the log are restored as dormant: a client registering the same subscription, or
+ * connecting with the resume token it used before, is attached to the dormant subscription without calling the
+ * Context Broker. Dormant subscriptions not claimed within journal.resumeWindow ms are removed
+ * Resume tokens are only kept hashed, together with the user they were used by, and are forgotten once none of
+ * their subscriptions is live
+ * Settings can be set in connection.properties
+ *
+ */
+public class SubscriptionJournal implements SubscriptionRegistryListener {
+
+	protected static final Logger LOGGER = LogManager.getLogger(SubscriptionJournal.class);
+
+	private final ObjectMapper mapper;
+	private final File file;
+	private final boolean sync;
+	private final long compactAfter;
+	private final long resumeWindow;
+	private final ConcurrentHashMap<String, ObjectNode> live = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SharedSubscription> dormant = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, String> dormantKeys = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Map<String, String>> resumable = new ConcurrentHashMap<>();
+	//the tokens recording every subscription in resumable, so a removed subscription is pruned without scanning them all
+	private final ConcurrentHashMap<String, Set<String>> subscriptionTokens = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, String> sessionTokens = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<ObjectNode> pending = new ConcurrentLinkedQueue<>();
+	private final ScheduledThreadPoolExecutor timer;
+	private Writer writer;
+	private FileOutputStream out;
+	private long appended;
+	private volatile boolean closed;
+
+
+	/**
+	 * Creates the journal
+	 *
+	 * @param properties The connection properties
+	 * @param mapper The mapper the subscriptions are written with
+	 */
+	public SubscriptionJournal(Properties properties, ObjectMapper mapper){
+		this.mapper = mapper;
+		String location = properties.getProperty("journal.file", "").trim();
+		file = location.isEmpty() ? null : new File(location);
+		sync = Boolean.parseBoolean(properties.getProperty("journal.sync", "false"));
+		compactAfter = Long.parseLong(properties.getProperty("journal.compactAfter", "100000"));
+		resumeWindow = Long.parseLong(properties.getProperty("journal.resumeWindow", "300000"));
+		long flushInterval = Long.parseLong(properties.getProperty("journal.flushInterval", "100"));
+
+		timer = new ScheduledThreadPoolExecutor(1, OrionTaskExecutor.namedThreads("subscription-journal"));
+		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		if(file!=null){
+			timer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * @return true if journal.file is set
+	 */
+	public boolean isEnabled(){
+		return file!=null;
+	}
+
+
+	/**
+	 * Reads the log, restores its subscriptions as dormant and compacts it
+	 *
+	 * @param expired Called with the dormant subscriptions not claimed within journal.resumeWindow ms
+	 *
+	 * @return The subscriptions restored
+	 */
+	public List<SharedSubscription> load(Consumer<List<String>> expired){
+		if(file==null){
+			return Collections.emptyList();
+		}
+		if(file.exists()){
+			try{
+				replay();
+			}catch(IOException e){
+				LOGGER.error("Not able to read subscription journal {}: {}", file, e.getMessage());
+			}
+		}
+		List<SharedSubscription> restored = new ArrayList<>();
+		for(ObjectNode record: live.values()){
+			try{
+				OrionSubscription subscription = mapper.treeToValue(record.get("subscription"), OrionSubscription.class);
+				SharedSubscription shared = new SharedSubscription(record.get("key").asText(), record.get("id").asText(), subscription);
+				dormant.put(shared.getSubscriptionId(), shared);
+				dormantKeys.put(shared.getKey(), shared.getSubscriptionId());
+				restored.add(shared);
+			}catch(IOException e){
+				LOGGER.error("Not able to restore subscription {}: {}", record.get("id"), e.getMessage());
+				live.remove(record.get("id").asText());
+			}
+		}
+		for(String subscriptionId: new ArrayList<>(subscriptionTokens.keySet())){
+			if(!live.containsKey(subscriptionId)){
+				forget(subscriptionId);
+			}
+		}
+		try{
+			timer.submit(this::compact).get();
+		}catch(Exception e){
+			LOGGER.error("Not able to compact subscription journal {}: {}", file, e.getMessage());
+		}
+		if(!restored.isEmpty()){
+			timer.schedule(() -> expired.accept(expireDormant()), resumeWindow, TimeUnit.MILLISECONDS);
+		}
+		return restored;
+	}
+
+
+	private void replay() throws IOException{
+		int records = 0;
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))){
+			String line;
+			while((line = reader.readLine())!=null){
+				if(line.isEmpty()){
+					continue;
+				}
+				JsonNode record;
+				try{
+					record = mapper.readTree(line);
+				}catch(IOException e){
+					//the last line may be cut short by a crash
+					LOGGER.error("Skipping unreadable record in subscription journal: {}", e.getMessage());
+					continue;
+				}
+				apply(record);
+				records++;
+			}
+		}
+		LOGGER.info("Replayed {} records from subscription journal {}", records, file);
+	}
+
+	private void apply(JsonNode record){
+		String op = record.path("op").asText();
+		String subscriptionId = record.path("id").asText();
+		switch(op){
+		case "add":
+			live.put(subscriptionId, (ObjectNode) record);
+			break;
+		case "remove":
+			live.remove(subscriptionId);
+			break;
+		case "attach":
+			bind(record.path("token").asText(), subscriptionId, record.path("client").asText());
+			break;
+		case "detach":
+			unbind(record.path("token").asText(), subscriptionId);
+			break;
+		default:
+			LOGGER.error("Unknown record in subscription journal: {}", op);
+		}
+	}
+
+
+	/**
+	 * Method for claiming the dormant subscription with a given key
+	 *
+	 * @param key The key of the subscription
+	 *
+	 * @return The restored subscription, null if there is none with the key
+	 */
+	public SharedSubscription claim(String key){
+		String subscriptionId = dormantKeys.remove(key);
+		return subscriptionId==null ? null : dormant.remove(subscriptionId);
+	}
+
+	/**
+	 * @param subscriptionId The id of the subscription
+	 *
+	 * @return true if the subscription was restored and has not been claimed yet
+	 */
+	public boolean isDormant(String subscriptionId){
+		return dormant.containsKey(subscriptionId);
+	}
+
+	/**
+	 * Forgets a dormant subscription, e.g. because it no longer exists at the Context Broker
+	 *
+	 * @param subscriptionId The id of the subscription
+	 */
+	public void drop(String subscriptionId){
+		SharedSubscription shared = dormant.remove(subscriptionId);
+		if(shared!=null){
+			dormantKeys.remove(shared.getKey(), subscriptionId);
+			removed(subscriptionId);
+		}
+	}
+
+	private List<String> expireDormant(){
+		List<String> subscriptionIds = new ArrayList<>(dormant.keySet());
+		for(String subscriptionId: subscriptionIds){
+			drop(subscriptionId);
+		}
+		if(!subscriptionIds.isEmpty()){
+			LOGGER.info("{} restored subscriptions were not claimed within {} ms", subscriptionIds.size(), resumeWindow);
+		}
+		return subscriptionIds;
+	}
+
+
+	/**
+	 * Binds a resume token to a session, the subscriptions the session is attached to are recorded for the token
+	 *
+	 * @param sessionId The id of the client
+	 * @param token The resume token given by the client
+	 * @param clientId The id of the verified user
+	 *
+	 * @return The ids of the subscriptions recorded for the token and the user
+	 */
+	public List<String> resume(String sessionId, String token, String clientId){
+		if(file==null){
+			return Collections.emptyList();
+		}
+		String hash = hash(token);
+		sessionTokens.put(sessionId, hash);
+		Map<String, String> subscriptionIds = resumable.get(hash);
+		List<String> resumed = new ArrayList<>();
+		if(subscriptionIds!=null){
+			for(Map.Entry<String, String> entry: subscriptionIds.entrySet()){
+				if(entry.getValue().equals(clientId)){
+					resumed.add(entry.getKey());
+				}
+			}
+		}
+		return resumed;
+	}
+
+	/**
+	 * @param subscriptionId The id of a subscription in the registry or dormant
+	 *
+	 * @return The key of the subscription, null if unknown
+	 */
+	public String keyOf(String subscriptionId){
+		ObjectNode record = live.get(subscriptionId);
+		return record==null ? null : record.path("key").asText();
+	}
+
+	/**
+	 * Records that a session has been attached to a subscription
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param clientId The id of the verified user
+	 */
+	public void attached(String sessionId, String subscriptionId, String clientId){
+		String token = sessionTokens.get(sessionId);
+		if(token==null || closed){
+			return;
+		}
+		bind(token, subscriptionId, clientId);
+		ObjectNode record = record("attach", subscriptionId);
+		record.put("token", token);
+		record.put("client", clientId);
+		pending.add(record);
+	}
+
+	/**
+	 * Records that a session has been detached from a subscription by the client
+	 *
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 */
+	public void detached(String sessionId, String subscriptionId){
+		String token = sessionTokens.get(sessionId);
+		if(token==null || closed){
+			return;
+		}
+		unbind(token, subscriptionId);
+		ObjectNode record = record("detach", subscriptionId);
+		record.put("token", token);
+		pending.add(record);
+	}
+
+	/**
+	 * Forgets the resume token of a disconnected session. The live subscriptions recorded for the token are kept,
+	 * and the token is forgotten if it has none
+	 *
+	 * @param sessionId The id of the client
+	 */
+	public void sessionClosed(String sessionId){
+		String token = sessionTokens.remove(sessionId);
+		if(token==null){
+			return;
+		}
+		Map<String, String> subscriptionIds = resumable.get(token);
+		if(subscriptionIds!=null){
+			for(String subscriptionId: new ArrayList<>(subscriptionIds.keySet())){
+				if(!live.containsKey(subscriptionId)){
+					unbind(token, subscriptionId);
+				}
+			}
+		}
+	}
+
+
+	private void bind(String token, String subscriptionId, String clientId){
+		resumable.compute(token, (t, subscriptionIds) -> {
+			Map<String, String> bound = subscriptionIds==null ? new ConcurrentHashMap<>() : subscriptionIds;
+			bound.put(subscriptionId, clientId);
+			return bound;
+		});
+		subscriptionTokens.compute(subscriptionId, (id, tokens) -> {
+			Set<String> bound = tokens==null ? ConcurrentHashMap.newKeySet() : tokens;
+			bound.add(token);
+			return bound;
+		});
+	}
+
+	private void unbind(String token, String subscriptionId){
+		resumable.computeIfPresent(token, (t, subscriptionIds) -> {
+			subscriptionIds.remove(subscriptionId);
+			return subscriptionIds.isEmpty() ? null : subscriptionIds;
+		});
+		subscriptionTokens.computeIfPresent(subscriptionId, (id, tokens) -> {
+			tokens.remove(token);
+			return tokens.isEmpty() ? null : tokens;
+		});
+	}
+
+	/**
+	 * Removes a subscription from every token it is recorded for, forgetting the tokens left without subscriptions
+	 */
+	private void forget(String subscriptionId){
+		Set<String> tokens = subscriptionTokens.remove(subscriptionId);
+		if(tokens==null){
+			return;
+		}
+		for(String token: tokens){
+			resumable.computeIfPresent(token, (t, subscriptionIds) -> {
+				subscriptionIds.remove(subscriptionId);
+				return subscriptionIds.isEmpty() ? null : subscriptionIds;
+			});
+		}
+	}
+
+
+	@Override
+	public void subscriptionAdded(SharedSubscription shared) {
+		if(file==null || closed){
+			return;
+		}
+		ObjectNode record = record("add", shared.getSubscriptionId());
+		record.put("key", shared.getKey());
+		ObjectNode subscription = mapper.valueToTree(shared.getSubscription());
+		//never write the tokens of users to disk
+		subscription.remove("token");
+		record.set("subscription", subscription);
+		live.put(shared.getSubscriptionId(), record);
+		pending.add(record);
+	}
+
+	@Override
+	public void subscriptionRemoved(SharedSubscription shared) {
+		if(file==null || closed){
+			return;
+		}
+		removed(shared.getSubscriptionId());
+	}
+
+	private void removed(String subscriptionId){
+		live.remove(subscriptionId);
+		forget(subscriptionId);
+		pending.add(record("remove", subscriptionId));
+	}
+
+	private ObjectNode record(String op, String subscriptionId){
+		ObjectNode record = mapper.createObjectNode();
+		record.put("op", op);
+		record.put("id", subscriptionId);
+		return record;
+	}
+
+
+	private void flush(){
+		if(pending.isEmpty()){
+			return;
+		}
+		try{
+			if(writer==null){
+				open();
+			}
+			ObjectNode record;
+			while((record = pending.poll())!=null){
+				writer.write(mapper.writeValueAsString(record));
+				writer.write('\n');
+				appended++;
+			}
+			writer.flush();
+			if(sync){
+				out.getFD().sync();
+			}
+			if(appended>compactAfter && appended>2L*(live.size()+resumable.size())){
+				compact();
+			}
+		}catch(IOException e){
+			LOGGER.error("Not able to write subscription journal {}: {}", file, e.getMessage());
+		}
+	}
+
+	private void open() throws IOException{
+		out = new FileOutputStream(file, true);
+		writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * Rewrites the log with the live records only. Runs on the journal thread
+	 */
+	private void compact(){
+		File compacted = new File(file.getPath()+".tmp");
+		int records = 0;
+		try{
+			try(Writer tmp = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8))){
+				for(ObjectNode record: live.values()){
+					tmp.write(mapper.writeValueAsString(record));
+					tmp.write('\n');
+					records++;
+				}
+				for(Map.Entry<String, Map<String, String>> token: resumable.entrySet()){
+					for(Map.Entry<String, String> entry: token.getValue().entrySet()){
+						ObjectNode record = record("attach", entry.getKey());
+						record.put("token", token.getKey());
+						record.put("client", entry.getValue());
+						tmp.write(mapper.writeValueAsString(record));
+						tmp.write('\n');
+						records++;
+					}
+				}
+			}
+			if(writer!=null){
+				writer.close();
+				writer = null;
+			}
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			appended = records;
+			LOGGER.info("Compacted subscription journal {} to {} records", file, records);
+		}catch(IOException e){
+			LOGGER.error("Not able to compact subscription journal {}: {}", file, e.getMessage());
+		}
+	}
+
+
+	private static String hash(String token){
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * @return The number of restored subscriptions not claimed yet
+	 */
+	public int getDormant(){
+		return dormant.size();
+	}
+
+	/**
+	 * @return The number of resume tokens with subscriptions recorded
+	 */
+	int getResumeTokens(){
+		return resumable.size();
+	}
+
+
+	/**
+	 * Stops recording and writes the records still pending
+	 * Called before the sessions are closed at shutdown, so the subscriptions are kept for the next start
+	 */
+	public void close(){
+		closed = true;
+		timer.execute(() -> {
+			flush();
+			if(writer!=null){
+				try{
+					writer.close();
+				}catch(IOException e){
+					LOGGER.error("Not able to close subscription journal {}: {}", file, e.getMessage());
+				}
+			}
+		});
+		timer.shutdown();
+		try{
+			timer.awaitTermination(5, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
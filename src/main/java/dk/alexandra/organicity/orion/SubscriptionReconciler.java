@@ -0,0 +1,227 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Keeps the subscriptions at the Context Broker in line with the registry
+ * Subscriptions are made with a lease of lease.duration, which is renewed every lease.renewInterval ms for the
+ * subscriptions in the registry, so subscriptions left by a crashed middleware expire by themselves.
+ * Every lease.reconcileInterval ms the subscriptions at the Context Broker notifying localURI are listed, and those
+ * not in the registry are suspected, as are the subscriptions of notifications nobody is registered to.
+ * A suspect still unknown after lease.orphanGrace ms is handed to the {@link DisconnectReaper} for removal, the grace
+ * covers notifications arriving before a new subscription is registered
+ * Settings can be set in connection.properties
+ *
+ */
+public class SubscriptionReconciler {
+
+	protected static final Logger LOGGER = LogManager.getLogger(SubscriptionReconciler.class);
+	private static final int MAX_SUSPECTS = 10000;
+
+	private final SubscriptionRegistry registry;
+	private final DisconnectReaper reaper;
+	private final Function<String, CompletableFuture<Boolean>> renew;
+	private final ListSubscriptions list;
+	private final Predicate<String> retained;
+	private final int concurrency;
+	private final long orphanGrace;
+	private final ConcurrentHashMap<String, Long> suspects = new ConcurrentHashMap<>();
+	private final ScheduledThreadPoolExecutor timer;
+	private final AtomicBoolean renewing = new AtomicBoolean();
+	private volatile boolean orphanRemoval = true;
+	private volatile Predicate<String> ownedElsewhere = subscriptionId -> false;
+
+
+	/**
+	 * Creates the reconciler and starts its thread
+	 *
+	 * @param properties The connection properties
+	 * @param registry The registry of the subscriptions in use
+	 * @param reaper The reaper removing orphaned subscriptions
+	 * @param renew Renews the lease of a subscription, completes with true if renewed
+	 * @param list Lists the subscriptions at the Context Broker notifying this middleware
+	 * @param retained true for subscriptions kept without being in the registry, e.g. restored from the {@link SubscriptionJournal}
+	 */
+	SubscriptionReconciler(Properties properties, SubscriptionRegistry registry, DisconnectReaper reaper,
+			Function<String, CompletableFuture<Boolean>> renew, ListSubscriptions list, Predicate<String> retained){
+		this.registry = registry;
+		this.reaper = reaper;
+		this.renew = renew;
+		this.list = list;
+		this.retained = retained;
+		concurrency = Integer.parseInt(properties.getProperty("batch.concurrency", "8"));
+		orphanGrace = Long.parseLong(properties.getProperty("lease.orphanGrace", "30000"));
+		long renewInterval = Long.parseLong(properties.getProperty("lease.renewInterval", "1200000"));
+		long reconcileInterval = Long.parseLong(properties.getProperty("lease.reconcileInterval", "600000"));
+
+		timer = new ScheduledThreadPoolExecutor(1, OrionTaskExecutor.namedThreads("lease-reconciler"));
+		if(renewInterval>0){
+			timer.scheduleWithFixedDelay(this::renewAll, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+		}
+		if(reconcileInterval>0){
+			timer.scheduleWithFixedDelay(this::reconcile, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+		}
+		long collectInterval = Math.max(1000, orphanGrace/2);
+		timer.scheduleWithFixedDelay(this::collect, collectInterval, collectInterval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Method for telling the reconciler which subscriptions it may remove
+	 * In a cluster the Context Broker notifies every node, so a subscription unknown here may be owned by another node
+	 *
+	 * @param orphanRemoval false to never remove subscriptions not in the registry
+	 * @param ownedElsewhere true for subscriptions owned by another node
+	 */
+	public void setOwnership(boolean orphanRemoval, Predicate<String> ownedElsewhere){
+		this.orphanRemoval = orphanRemoval;
+		this.ownedElsewhere = ownedElsewhere;
+	}
+
+
+	/**
+	 * Method for checking a subscription a notification has been received for
+	 * An unknown subscription is suspected, and removed if it is still unknown after the grace period
+	 * The first notification of a subscription is never ignored, as the Context Broker may send it before the subscription is registered
+	 *
+	 * @param subscriptionId The id of the subscription
+	 *
+	 * @return true if the subscription is neither in the registry nor owned by another node and already suspected, so the notification may be ignored
+	 */
+	public boolean isOrphan(String subscriptionId){
+		if(!orphanRemoval || isKnown(subscriptionId)){
+			return false;
+		}
+		return !suspect(subscriptionId);
+	}
+
+	private boolean isKnown(String subscriptionId){
+		return registry.getSubscriptions().containsKey(subscriptionId) || retained.test(subscriptionId) || ownedElsewhere.test(subscriptionId);
+	}
+
+	/**
+	 * @return true if the subscription was not already suspected
+	 */
+	private boolean suspect(String subscriptionId){
+		if(suspects.containsKey(subscriptionId)){
+			return false;
+		}
+		if(suspects.size()>=MAX_SUSPECTS){
+			//too many to track, handled by the next reconciliation
+			return false;
+		}
+		return suspects.putIfAbsent(subscriptionId, System.currentTimeMillis())==null;
+	}
+
+
+	void collect(){
+		long now = System.currentTimeMillis();
+		List<String> orphans = new ArrayList<>();
+		Iterator<Map.Entry<String, Long>> entries = suspects.entrySet().iterator();
+		while(entries.hasNext()){
+			Map.Entry<String, Long> entry = entries.next();
+			if(now-entry.getValue()<orphanGrace){
+				continue;
+			}
+			entries.remove();
+			if(orphanRemoval && !isKnown(entry.getKey())){
+				orphans.add(entry.getKey());
+			}
+		}
+		if(!orphans.isEmpty()){
+			LOGGER.info("Removing {} orphaned subscriptions from the Context Broker", orphans.size());
+			reaper.submit(orphans);
+		}
+	}
+
+
+	/**
+	 * Renews the leases of the subscriptions in the registry without waiting for the Context Broker, so the thread
+	 * of the reconciler is free to collect suspects meanwhile. A round still running when the next is due is not overlapped
+	 *
+	 * @return A future completed when the round is done, null if the previous round is still running
+	 */
+	CompletableFuture<Void> renewAll(){
+		List<String> subscriptionIds = new ArrayList<>(registry.getSubscriptions().keySet());
+		if(subscriptionIds.isEmpty() || !renewing.compareAndSet(false, true)){
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		return OrionTaskExecutor.inParallel(subscriptionIds.size(), concurrency,
+				i -> renew.apply(subscriptionIds.get(i)).exceptionally(e -> false))
+			.thenAccept(renewed -> {
+				renewing.set(false);
+				int failed = Collections.frequency(renewed, Boolean.FALSE);
+				if(failed>0){
+					LOGGER.error("Not able to renew {} of {} subscriptions", failed, subscriptionIds.size());
+				}else{
+					LOGGER.info("Renewed {} subscriptions in {} ms", subscriptionIds.size(), System.currentTimeMillis()-start);
+				}
+			});
+	}
+
+
+	void reconcile(){
+		if(!orphanRemoval){
+			return;
+		}
+		try{
+			int suspected = 0;
+			for(String subscriptionId: list.list()){
+				if(!isKnown(subscriptionId)){
+					suspect(subscriptionId);
+					suspected++;
+				}
+			}
+			LOGGER.info("Reconciled subscriptions with the Context Broker, {} not known", suspected);
+		}catch(RuntimeException e){
+			LOGGER.error("Not able to list subscriptions at the Context Broker: {}", e.getMessage());
+		}
+	}
+
+
+	/**
+	 * @return The number of subscriptions suspected of being orphaned
+	 */
+	public int getSuspects(){
+		return suspects.size();
+	}
+
+	/**
+	 * Stops reconciling
+	 */
+	public void shutdown(){
+		timer.shutdownNow();
+	}
+
+
+
+	/**
+	 * Lists the ids of the subscriptions at the Context Broker notifying this middleware
+	 */
+	interface ListSubscriptions {
+
+		List<String> list();
+
+	}
+
+}
@@ -0,0 +1,366 @@
+package dk.alexandra.organicity.orion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Thread safe registry routing subscriptions at the Context Broker to client sessions
+ * Lookups used when notifications arrive are lock free. Changes to a subscription are serialized
+ * on a lock stripe chosen by the subscription key, so unrelated subscriptions never wait for each other
+ * Subscriptions are made at the Context Broker without holding a lock, only one at a time per key
+ * The stripes are ReentrantLocks rather than monitors, so a virtual thread waiting for one does not pin its carrier
+ *
+ */
+public class SubscriptionRegistry {
+
+	private static final int STRIPES = 64;
+	private static final int MAX_ATTACH_ATTEMPTS = 3;
+	private static final Consumer<String> NO_SETUP = subscriptionId -> {};
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private final ConcurrentHashMap<String, SharedSubscription> subscriptions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SharedSubscription> sharedSubscriptions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Set<String>> clientIndexedSubscriptions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CompletableFuture<SharedSubscription>> creating = new ConcurrentHashMap<>();
+	private final List<SubscriptionRegistryListener> listeners = new CopyOnWriteArrayList<>();
+
+
+	public SubscriptionRegistry(){
+		for(int i=0;i<STRIPES;i++){
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+
+	/**
+	 * Adds a listener notified when subscriptions start or stop being routed
+	 *
+	 * @param listener The listener
+	 */
+	public void addListener(SubscriptionRegistryListener listener){
+		listeners.add(listener);
+	}
+
+
+	/**
+	 * Method for getting the lock guarding a subscription key
+	 * Must never be held while calling the Context Broker, as every key on the stripe would wait
+	 *
+	 * @param key The key of the subscription. @see {@link SharedSubscription#keyOf(dk.alexandra.orion.websocket.transports.OrionSubscription)}
+	 *
+	 * @return The lock for the stripe of the key
+	 */
+	public Lock lockFor(String key){
+		return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+	}
+
+
+	/**
+	 * Attaches a session to an existing subscription with the given key
+	 *
+	 * @param key The key of the subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 *
+	 * @return The subscription the session was attached to, null if no subscription exists for the key
+	 */
+	public SharedSubscription attach(String key, String sessionId){
+		return attach(key, sessionId, NO_SETUP);
+	}
+
+	/**
+	 * Attaches a session to an existing subscription with the given key
+	 *
+	 * @param key The key of the subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 * @param setup Called with the id of the subscription before the session is attached, holding the lock of the key
+	 *
+	 * @return The subscription the session was attached to, null if no subscription exists for the key
+	 */
+	public SharedSubscription attach(String key, String sessionId, Consumer<String> setup){
+		Lock lock = lockFor(key);
+		lock.lock();
+		try{
+			SharedSubscription shared = sharedSubscriptions.get(key);
+			if(shared!=null){
+				setup.accept(shared.getSubscriptionId());
+				shared.getSessionIds().add(sessionId);
+				indexSession(sessionId, shared.getSubscriptionId());
+			}
+			return shared;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Attaches a session to the subscription with the given key, creating the subscription if there is none
+	 * Only one subscription is created per key at a time: sessions asking for a key being created wait for it and
+	 * attach to it instead of creating their own. No lock is held while creating, so other keys are never blocked
+	 *
+	 * @param key The key of the subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 * @param factory Creates the subscription, e.g. at the Context Broker
+	 *
+	 * @return The subscription the session was attached to, null if it could not be created
+	 * @throws IOException if the factory of this session failed
+	 */
+	public SharedSubscription attachOrCreate(String key, String sessionId, SubscriptionFactory factory) throws IOException{
+		return attachOrCreate(key, sessionId, factory, NO_SETUP);
+	}
+
+	/**
+	 * Attaches a session to the subscription with the given key, creating the subscription if there is none
+	 * The setup is done before the session is attached, so notifications routed to the session find it in place
+	 *
+	 * @param key The key of the subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 * @param factory Creates the subscription, e.g. at the Context Broker
+	 * @param setup Called with the id of the subscription before the session is attached, e.g. to install its delivery options
+	 *
+	 * @return The subscription the session was attached to, null if it could not be created
+	 * @throws IOException if the factory of this session failed
+	 */
+	public SharedSubscription attachOrCreate(String key, String sessionId, SubscriptionFactory factory, Consumer<String> setup) throws IOException{
+		for(int attempt=0; attempt<MAX_ATTACH_ATTEMPTS; attempt++){
+			SharedSubscription shared = attach(key, sessionId, setup);
+			if(shared!=null){
+				return shared;
+			}
+			CompletableFuture<SharedSubscription> created = new CompletableFuture<>();
+			CompletableFuture<SharedSubscription> other = creating.putIfAbsent(key, created);
+			if(other!=null){
+				//another session is creating the subscription, attach when it is done
+				if(other.join()==null){
+					return null;
+				}
+				continue;
+			}
+			try{
+				//the subscription may have been registered since the attach above
+				shared = attach(key, sessionId, setup);
+				if(shared==null){
+					shared = factory.create();
+					if(shared!=null){
+						setup.accept(shared.getSubscriptionId());
+						register(shared, sessionId);
+					}
+				}
+				created.complete(shared);
+				return shared;
+			}catch(IOException | RuntimeException e){
+				created.complete(null);
+				throw e;
+			}finally{
+				creating.remove(key, created);
+			}
+		}
+		//the subscription was removed every time before the session could attach
+		return null;
+	}
+
+
+	/**
+	 * Adds a new subscription created at the Context Broker, with its first session
+	 *
+	 * @param shared The new subscription
+	 * @param sessionId The id of the client requesting the subscription
+	 */
+	public void register(SharedSubscription shared, String sessionId){
+		Lock lock = lockFor(shared.getKey());
+		lock.lock();
+		try{
+			shared.getSessionIds().add(sessionId);
+			subscriptions.put(shared.getSubscriptionId(), shared);
+			sharedSubscriptions.put(shared.getKey(), shared);
+			indexSession(sessionId, shared.getSubscriptionId());
+			for(SubscriptionRegistryListener listener: listeners){
+				listener.subscriptionAdded(shared);
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Detaches a session from a subscription
+	 * When the last session is detached the subscription is no longer routed
+	 *
+	 * @param subscriptionId The id of the subscription
+	 * @param sessionId The id of the client
+	 *
+	 * @return The number of sessions still attached, -1 if the session was not attached to the subscription
+	 */
+	public int detach(String subscriptionId, String sessionId){
+		SharedSubscription shared = subscriptions.get(subscriptionId);
+		if(shared==null){
+			return -1;
+		}
+		int remaining;
+		Lock lock = lockFor(shared.getKey());
+		lock.lock();
+		try{
+			if(!shared.getSessionIds().remove(sessionId)){
+				return -1;
+			}
+			remaining = shared.getSessionIds().size();
+			if(remaining==0){
+				unregister(shared);
+			}
+			Set<String> clientSubscriptions = clientIndexedSubscriptions.get(sessionId);
+			if(clientSubscriptions!=null){
+				clientSubscriptions.remove(subscriptionId);
+			}
+		}finally{
+			lock.unlock();
+		}
+		return remaining;
+	}
+
+
+	/**
+	 * Removes a session from every subscription it is attached to
+	 *
+	 * @param sessionId The id of the client
+	 *
+	 * @return The subscriptions which no longer have any sessions attached
+	 */
+	public List<SharedSubscription> removeSession(String sessionId){
+		List<SharedSubscription> unused = new ArrayList<>();
+		Set<String> clientSubscriptions = clientIndexedSubscriptions.remove(sessionId);
+		if(clientSubscriptions==null){
+			return unused;
+		}
+		for(String subscriptionId: clientSubscriptions){
+			SharedSubscription shared = subscriptions.get(subscriptionId);
+			if(shared==null){
+				continue;
+			}
+			Lock lock = lockFor(shared.getKey());
+			lock.lock();
+			try{
+				if(shared.getSessionIds().remove(sessionId) && shared.getSessionIds().isEmpty()){
+					unregister(shared);
+					unused.add(shared);
+				}
+			}finally{
+				lock.unlock();
+			}
+		}
+		return unused;
+	}
+
+
+	/**
+	 * Method for getting the sessions attached to a subscription. Does not lock
+	 *
+	 * @param subscriptionId The id of the subscription
+	 *
+	 * @return The sessions attached, empty if the subscription is unknown
+	 */
+	public Set<String> getSessionIds(String subscriptionId){
+		SharedSubscription shared = subscriptions.get(subscriptionId);
+		if(shared==null){
+			return Collections.emptySet();
+		}
+		return shared.getSessionIds();
+	}
+
+
+	/**
+	 * Method for getting the subscriptions a session is attached to
+	 *
+	 * @param sessionId The id of the client
+	 *
+	 * @return A copy of the subscriptionIds
+	 */
+	public Set<String> getSubscriptionIds(String sessionId){
+		Set<String> clientSubscriptions = clientIndexedSubscriptions.get(sessionId);
+		if(clientSubscriptions==null){
+			return Collections.emptySet();
+		}
+		return new HashSet<>(clientSubscriptions);
+	}
+
+
+	/**
+	 * Get all subscriptions
+	 *
+	 * @return A read only view of the subscriptions indexed by subscriptionId
+	 */
+	public Map<String, SharedSubscription> getSubscriptions(){
+		return Collections.unmodifiableMap(subscriptions);
+	}
+
+
+	/**
+	 * @return The number of sessions that have registered to a subscription and not disconnected
+	 */
+	public int getSessionCount(){
+		return clientIndexedSubscriptions.size();
+	}
+
+	/**
+	 * @return The number of subscriptions summed over all sessions
+	 */
+	public long getAttachmentCount(){
+		long count = 0;
+		for(Set<String> clientSubscriptions: clientIndexedSubscriptions.values()){
+			count += clientSubscriptions.size();
+		}
+		return count;
+	}
+
+
+	/**
+	 * @return The number of subscriptions being created
+	 */
+	public int getCreating(){
+		return creating.size();
+	}
+
+
+	private void indexSession(String sessionId, String subscriptionId){
+		clientIndexedSubscriptions.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(subscriptionId);
+	}
+
+	private void unregister(SharedSubscription shared){
+		subscriptions.remove(shared.getSubscriptionId());
+		sharedSubscriptions.remove(shared.getKey(), shared);
+		for(SubscriptionRegistryListener listener: listeners){
+			listener.subscriptionRemoved(shared);
+		}
+	}
+
+
+
+	/**
+	 * Creates a subscription for {@link SubscriptionRegistry#attachOrCreate(String, String, SubscriptionFactory)}
+	 */
+	public interface SubscriptionFactory {
+
+		/**
+		 * @return The new subscription, null if it could not be created
+		 * @throws IOException if the Context Broker could not be reached
+		 */
+		SharedSubscription create() throws IOException;
+
+	}
+
+}
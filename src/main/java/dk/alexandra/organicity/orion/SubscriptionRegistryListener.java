@@ -0,0 +1,28 @@
+package dk.alexandra.organicity.orion;
+
+
+/**
+ * 
+ * @author Morten Skov
+ *
+ * Notified when a subscription starts or stops being routed by the {@link SubscriptionRegistry}
+ * Called while the lock of the subscription is held, so implementations must return quickly
+ *
+ */
+public interface SubscriptionRegistryListener {
+
+	/**
+	 * Called when a subscription gets its first session
+	 * 
+	 * @param shared The subscription
+	 */
+	void subscriptionAdded(SharedSubscription shared);
+
+	/**
+	 * Called when the last session has detached from a subscription
+	 * 
+	 * @param shared The subscription
+	 */
+	void subscriptionRemoved(SharedSubscription shared);
+
+}
@@ -0,0 +1,233 @@
+package dk.alexandra.organicity.orion;
+
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Keeps the token of the middleware from the OAuth2 server
+ * The token is refreshed on its own thread when token.refreshRatio of its lifetime has passed, and a failed refresh is
+ * retried with exponential backoff while the old token is kept. Only one refresh runs at a time, reading the token
+ * never waits for one, and no refresh is started by callers while a retry is scheduled
+ * Settings can be set in connection.properties
+ *
+ */
+public class TokenManager {
+
+	protected static final Logger LOGGER = LogManager.getLogger(TokenManager.class);
+	private static final String PATH = "/realms/organicity/protocol/openid-connect/token";
+	private static final long DEFAULT_EXPIRES_IN = 200;
+
+	private final HttpClientPool httpClientPool;
+	private final MiddlewareMetrics metrics;
+	private final String tokenUrl;
+	private final String credentials;
+	private final double refreshRatio;
+	private final long retryInitial;
+	private final long retryMax;
+	private final ScheduledThreadPoolExecutor refresher;
+	private final AtomicReference<Token> token = new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<String>> inFlight = new AtomicReference<>();
+	private final AtomicLong retryDelay;
+	private volatile boolean retrying;
+
+
+	/**
+	 * Creates the manager. No token is requested before {@link #start()}
+	 *
+	 * @param properties The connection properties
+	 * @param httpClientPool The pool the token server is called through
+	 * @param metrics The metrics refreshes are recorded in
+	 */
+	public TokenManager(Properties properties, HttpClientPool httpClientPool, MiddlewareMetrics metrics){
+		this.httpClientPool = httpClientPool;
+		this.metrics = metrics;
+		tokenUrl = properties.getProperty("tokenUrl");
+		String clientId = properties.getProperty("clientId");
+		String clientSecret = properties.getProperty("clientSecret");
+		credentials = Base64.getEncoder().encodeToString((clientId+":"+clientSecret).getBytes());
+		refreshRatio = Double.parseDouble(properties.getProperty("token.refreshRatio", "0.8"));
+		retryInitial = Long.parseLong(properties.getProperty("token.retryInitial", "1000"));
+		retryMax = Long.parseLong(properties.getProperty("token.retryMax", "60000"));
+		retryDelay = new AtomicLong(retryInitial);
+
+		//one platform thread also with orion.executor=virtual, it makes a call every few minutes and the JDK has no virtual scheduled executor
+		refresher = new ScheduledThreadPoolExecutor(1, OrionTaskExecutor.namedThreads("token-refresh"));
+		refresher.setRemoveOnCancelPolicy(true);
+	}
+
+
+	/**
+	 * Gets the first token, waiting at most timeout ms for it
+	 * If it cannot be had, refreshing goes on in the background
+	 *
+	 * @param timeout The time to wait in ms
+	 */
+	public void start(long timeout){
+		try{
+			refresh().get(timeout, TimeUnit.MILLISECONDS);
+		}catch(Exception e){
+			LOGGER.error("No token from the OAuth2 server yet, retrying in the background: {}", e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Method for getting the current token without waiting
+	 * Starts a refresh if the token has expired, unless a retry of a failed refresh is scheduled
+	 *
+	 * @return The token, null if none has been received yet
+	 */
+	public String getToken(){
+		Token current = token.get();
+		if((current==null || current.expiresAt<=System.currentTimeMillis()) && !retrying){
+			refresh();
+		}
+		return current==null ? null : current.value;
+	}
+
+
+	/**
+	 * Method for telling that a token has been rejected, e.g. by the Context Broker
+	 * Starts a refresh unless the token has already been replaced or a retry of a failed refresh is scheduled
+	 *
+	 * @param rejected The token rejected
+	 */
+	public void rejected(String rejected){
+		Token current = token.get();
+		if(retrying || (current!=null && !current.value.equals(rejected))){
+			return;
+		}
+		refresh();
+	}
+
+
+	/**
+	 * Method for refreshing the token, e.g. when the Context Broker has rejected it
+	 * Joins the refresh already running, if any
+	 *
+	 * @return A future completed with the new token, or exceptionally if the refresh failed
+	 */
+	public CompletableFuture<String> refresh(){
+		CompletableFuture<String> result = new CompletableFuture<>();
+		if(!inFlight.compareAndSet(null, result)){
+			CompletableFuture<String> running = inFlight.get();
+			if(running!=null){
+				return running;
+			}
+			return refresh();
+		}
+		try{
+			refresher.execute(() -> runRefresh(result));
+		}catch(RuntimeException e){
+			//shut down
+			inFlight.set(null);
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+
+	private void runRefresh(CompletableFuture<String> result){
+		long start = System.nanoTime();
+		Token fresh = null;
+		String error = null;
+		try{
+			fresh = requestToken();
+		}catch(RuntimeException e){
+			error = e.getMessage();
+		}
+		metrics.tokenRefreshed(start, fresh!=null);
+
+		if(fresh!=null){
+			token.set(fresh);
+			retryDelay.set(retryInitial);
+			retrying = false;
+			long lifetime = fresh.expiresAt-System.currentTimeMillis();
+			schedule((long) (lifetime*refreshRatio));
+			LOGGER.info("Updated token from OAuth2 server");
+			inFlight.set(null);
+			result.complete(fresh.value);
+		}else{
+			long delay = retryDelay.getAndUpdate(current -> Math.min(current*2, retryMax));
+			LOGGER.error("Not able to get token from OAuth2 server, retrying in {} ms: {}", delay, error);
+			retrying = true;
+			schedule(delay);
+			inFlight.set(null);
+			result.completeExceptionally(new IllegalStateException(error));
+		}
+	}
+
+	private void schedule(long delay){
+		refresher.getQueue().clear();
+		refresher.schedule(() -> { refresh(); }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+
+
+	private Token requestToken(){
+		LOGGER.info("Connecting to token Url: {}{}", tokenUrl, PATH);
+		Invocation.Builder invocationBuilder = httpClientPool.getClient().target(tokenUrl).path(PATH)
+				.request(MediaType.APPLICATION_JSON_TYPE)
+				.header("Authorization", "Basic "+credentials);
+
+		Form form = new Form();
+		form.param("grant_type", "client_credentials");
+		Response response = invocationBuilder.post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+
+		JSONObject tokenEntity = new JSONObject(response.readEntity(String.class));
+		//check if middleware can be authenticated
+		String possibleError = tokenEntity.optString("error_description", null);
+		if(possibleError!=null){
+			throw new IllegalStateException("Not able to authenticate middleware credentials: "+possibleError);
+		}
+
+		long expiresIn = tokenEntity.optLong("expires_in", DEFAULT_EXPIRES_IN);
+		if(expiresIn<=0){
+			expiresIn = DEFAULT_EXPIRES_IN;
+		}
+		return new Token(tokenEntity.getString("access_token"), System.currentTimeMillis()+TimeUnit.SECONDS.toMillis(expiresIn));
+	}
+
+
+	/**
+	 * Stops refreshing
+	 */
+	public void shutdown(){
+		refresher.shutdownNow();
+	}
+
+
+
+	private static class Token {
+
+		final String value;
+		final long expiresAt;
+
+		Token(String value, long expiresAt){
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,63 @@
+package dk.alexandra.organicity.orion;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Creates executors running every task on its own virtual thread, when the JVM has them (Java 21 and later)
+ * Looked up by reflection, so the middleware is still built for and runs on Java 8
+ *
+ */
+public class VirtualThreads {
+
+	protected static final Logger LOGGER = LogManager.getLogger(VirtualThreads.class);
+
+
+	private VirtualThreads(){
+	}
+
+
+	/**
+	 * Method for creating an executor starting a new virtual thread for every task
+	 *
+	 * @param name The prefix of the names of the threads
+	 *
+	 * @return The executor, null if the JVM does not have virtual threads
+	 */
+	public static ExecutorService newExecutor(String name){
+		try{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name+"-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		}catch(ReflectiveOperationException e){
+			LOGGER.debug("Virtual threads not available: {}", e.toString());
+			return null;
+		}
+	}
+
+
+	/**
+	 * @return true if the JVM has virtual threads
+	 */
+	public static boolean isAvailable(){
+		try{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}catch(NoSuchMethodException e){
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+package dk.alexandra.organicity.webserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Reads a notification POSTed by the Context Broker in a single pass with Jackson's streaming parser
+ * Every contextElement in contextResponses is bound directly to a {@link ContextElement}, without building an intermediate tree
+ *
+ */
+public class NotificationParser {
+
+	private final ObjectMapper mapper;
+
+
+	public NotificationParser(ObjectMapper mapper){
+		this.mapper = mapper;
+	}
+
+
+	/**
+	 * Parses a notification from the Context Broker
+	 *
+	 * @param payload The body of the notification
+	 *
+	 * @return A {@link Notification} for every element in the payload, all with the subscriptionId of the payload
+	 * @throws IOException if the payload is not a valid notification
+	 */
+	public List<Notification> parse(String payload) throws IOException{
+		return parse(payload, subscriptionId -> false);
+	}
+
+
+	/**
+	 * Parses a notification from the Context Broker, unless it is for a subscription that is skipped
+	 * The Context Broker sends the subscriptionId first, so a skipped notification is answered without reading its elements
+	 *
+	 * @param payload The body of the notification
+	 * @param skipped Tells if the notifications of a subscriptionId are not wanted
+	 *
+	 * @return A {@link Notification} for every element in the payload, all with the subscriptionId of the payload, null if skipped
+	 * @throws IOException if the payload is not a valid notification
+	 */
+	public List<Notification> parse(String payload, Predicate<String> skipped) throws IOException{
+		String subscriptionId = null;
+		List<ContextElement> elements = new ArrayList<>();
+
+		try(JsonParser parser = mapper.getFactory().createParser(payload)){
+			if(parser.nextToken()!=JsonToken.START_OBJECT){
+				throw new IOException("Notification is not a JSON object");
+			}
+			while(parser.nextToken()==JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("subscriptionId".equals(field)){
+					subscriptionId = parser.getValueAsString();
+					if(subscriptionId!=null && skipped.test(subscriptionId)){
+						return null;
+					}
+				}else if("contextResponses".equals(field) && value==JsonToken.START_ARRAY){
+					readContextResponses(parser, elements);
+				}else{
+					parser.skipChildren();
+				}
+			}
+		}
+
+		if(subscriptionId==null){
+			throw new IOException("Notification without subscriptionId");
+		}
+		List<Notification> notifications = new ArrayList<>(elements.size());
+		for(ContextElement element: elements){
+			notifications.add(new Notification(element, subscriptionId));
+		}
+		return notifications;
+	}
+
+
+	private void readContextResponses(JsonParser parser, List<ContextElement> elements) throws IOException{
+		JsonToken element;
+		while((element = parser.nextToken())!=JsonToken.END_ARRAY){
+			if(element==null){
+				throw new IOException("Notification ends inside contextResponses");
+			}
+			if(element!=JsonToken.START_OBJECT){
+				//null or another value instead of a context response, the rest are still read
+				parser.skipChildren();
+				continue;
+			}
+			while(parser.nextToken()==JsonToken.FIELD_NAME){
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("contextElement".equals(field) && value==JsonToken.START_OBJECT){
+					elements.add(mapper.readValue(parser, ContextElement.class));
+				}else{
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+
+}
@@ -1,14 +1,28 @@
 package dk.alexandra.organicity.webserver;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 
-import org.apache.log4j.BasicConfigurator;
-import org.apache.log4j.Logger;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -21,19 +35,33 @@ import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 import org.springframework.web.socket.messaging.SessionSubscribeEvent;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import dk.alexandra.organicity.config.JwtParser;
+import dk.alexandra.organicity.auth.ConnectAuthenticator;
+import dk.alexandra.organicity.cluster.ClusterRouter;
+import dk.alexandra.organicity.cluster.HttpClusterTransport;
+import dk.alexandra.organicity.delivery.DeliveryThrottles;
+import dk.alexandra.organicity.delivery.DeltaEncoder;
+import dk.alexandra.organicity.delivery.SessionOutboundQueues;
+import dk.alexandra.organicity.filter.ClientFilters;
+import dk.alexandra.organicity.filter.NotificationFilter;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
 import dk.alexandra.organicity.orion.Connector;
+import dk.alexandra.organicity.orion.SharedSubscription;
+import dk.alexandra.organicity.wire.WireFormats;
 import dk.alexandra.orion.websocket.transports.Notification;
 import dk.alexandra.orion.websocket.transports.OrionSubscription;
 import dk.alexandra.orion.websocket.transports.OutOfBandMessage;
 import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
-import io.jsonwebtoken.Claims;
 
 
 /**
@@ -48,12 +76,45 @@ import io.jsonwebtoken.Claims;
 public class OrionController {
 
 	ObjectMapper mapper = new ObjectMapper();
+	private final NotificationParser notificationParser = new NotificationParser(mapper);
 	private Connector connector;
 	
-	protected static final Logger LOGGER = Logger.getLogger(OrionController.class);
+	protected static final Logger LOGGER = LogManager.getLogger(OrionController.class);
+	private static final String RESUME_TOKEN = "resume-token";
 	
 	@Autowired
     public SimpMessageSendingOperations messagingTemplate;
+    
+    @Autowired
+    private SessionOutboundQueues outboundQueues;
+    
+    @Autowired
+    private ConnectAuthenticator authenticator;
+    
+    @Autowired
+    private ClientFilters clientFilters;
+    
+    @Autowired
+    private DeliveryThrottles throttles;
+    
+    @Autowired
+    private DeltaEncoder deltaEncoder;
+    
+    @Autowired
+    private WireFormats wireFormats;
+    
+    @Autowired(required = false)
+    private ClusterRouter clusterRouter;
+    
+    @Autowired
+    private MiddlewareMetrics metrics;
+    
+    @Value("${batch.maxSize:1000}")
+    private int maxBatchSize;
+    
+    @Value("${logging.notificationSampleRate:100}")
+    private int notificationSampleRate;
+    private final AtomicLong notificationCount = new AtomicLong();
 
 
 	
@@ -68,36 +129,190 @@ public class OrionController {
         String sessionId = headerAccessor.getSessionId(); // Session ID
         
         
-        LOGGER.info("client registered with sessionID: "+sessionId);
-        LOGGER.info(sessionId+" sent following payload: "+payload);
-        OrionSubscription subscription = null;
+        LOGGER.debug("client registered with sessionID: {}", sessionId);
+        LOGGER.debug("{} sent following payload: {}", sessionId, payload);
+        Registration registration;
         
         try{
-        	subscription = mapper.readValue(payload, OrionSubscription.class);
+        	registration = Registration.parse(mapper, mapper.readTree(payload));
         }catch(IOException e){
-        	e.printStackTrace();
+        	LOGGER.error("Not able to parse subscription from {}", sessionId, e);
+        	sendError(sessionId, "Subscription not valid");
+        	return;
+        }catch(IllegalArgumentException e){
+        	LOGGER.debug("Options from {} not valid: {}", sessionId, e.getMessage());
+        	sendError(sessionId, "Subscription options not valid: "+e.getMessage());
+        	return;
         }
-        OutOfBandMessage message = new OutOfBandMessage();
+        OrionSubscription subscription = registration.getSubscription();
         //verify user token
-        String token = subscription.getToken();
-        try {
-        	JwtParser fwtparser = new JwtParser();
-        	Claims claim = fwtparser.parseJWT(token);
-        	LOGGER.info("client verified");
-        	String clientId = claim.get("clientId").toString();
-        	// Token valid
-        	String[] subscriptionResponse = connector.registerSubscription(subscription, sessionId,clientId);
-            message = new OutOfBandMessage(subscriptionResponse[0],subscriptionResponse[1]);
-            
-        } catch (Exception e) {
-        	e.printStackTrace();
-        	// Token invalid
-        	LOGGER.error("Client not verified: "+token);
-        	message = new OutOfBandMessage("error","401 - Token not verified");
+        String clientId = authenticator.clientIdOf(headerAccessor, subscription.getToken());
+        if(clientId==null){
+        	sendError(sessionId, "401 - Token not verified");
+        	return;
         }
         
-        
-        messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+        // Token valid. The reply is sent when the Context Broker has answered
+        connector.registerSubscriptionAsync(subscription, sessionId, clientId,
+        		subscriptionId -> registered(sessionId, subscriptionId, registration),
+        		subscriptionId -> unregistered(sessionId, subscriptionId)).whenComplete((subscriptionResponse, e) -> {
+        	OutOfBandMessage message;
+        	if(e==null){
+        		message = new OutOfBandMessage(subscriptionResponse[0],subscriptionResponse[1]);
+        	}else{
+        		message = asyncError(e);
+        	}
+        	messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+        	if(e==null && "subscriptionId".equals(subscriptionResponse[0])){
+        		sendLastValue(sessionId, subscriptionResponse[1], subscription);
+        	}
+        });
+    }
+    
+    
+    /**
+	 * Endpoint for registering to many entities in one frame
+	 * Every token is verified once, the entities are checked with one query to the Context Broker, and the
+	 * subscriptions are made with at most batch.concurrency calls at a time
+	 * The reply is one {@link OutOfBandMessage} of type registerBatch, with a JSON array holding the entityId and
+	 * either the subscriptionId or the error of every subscription, in the order sent
+	 * 
+	 * @param headerAccessor headers from client
+	 * @param payload from client, a JSON array of {@link dk.alexandra.orion.websocket.transports.OrionSubscription}
+	 */
+    @MessageMapping("/registerBatch")
+    public void registerSubscriptions(SimpMessageHeaderAccessor headerAccessor, String payload) {
+    	String sessionId = headerAccessor.getSessionId();
+    	List<Registration> registrations = new ArrayList<>();
+    	try{
+    		JsonNode tree = mapper.readTree(payload);
+    		if(tree==null || !tree.isArray()){
+    			throw new IllegalArgumentException("payload must be an array of subscriptions");
+    		}
+    		for(JsonNode node: tree){
+    			registrations.add(Registration.parse(mapper, node));
+    		}
+    	}catch(IOException e){
+    		LOGGER.error("Not able to parse subscriptions from {}", sessionId, e);
+    		sendError(sessionId, "Subscriptions not valid");
+    		return;
+    	}catch(IllegalArgumentException e){
+    		LOGGER.debug("Subscriptions from {} not valid: {}", sessionId, e.getMessage());
+    		sendError(sessionId, "Subscriptions not valid: "+e.getMessage());
+    		return;
+    	}
+    	if(registrations.size()>maxBatchSize){
+    		sendError(sessionId, "At most "+maxBatchSize+" subscriptions per batch");
+    		return;
+    	}
+    	LOGGER.debug("{} registering {} subscriptions", sessionId, registrations.size());
+    	
+    	//every token is only looked up once, dashboards send the same token with every subscription
+    	Map<String, String> verified = new HashMap<>();
+    	List<OrionSubscription> subscriptions = new ArrayList<>();
+    	List<String> clientIds = new ArrayList<>();
+    	List<Consumer<String>> setups = new ArrayList<>();
+    	for(Registration registration: registrations){
+    		String token = registration.getSubscription().getToken();
+    		String clientId = verified.computeIfAbsent(token==null ? "" : token, t -> {
+    			String id = authenticator.clientIdOf(headerAccessor, token);
+    			return id==null ? "" : id;
+    		});
+    		if(!clientId.isEmpty()){
+    			subscriptions.add(registration.getSubscription());
+    			clientIds.add(clientId);
+    			setups.add(subscriptionId -> registered(sessionId, subscriptionId, registration));
+    		}
+    	}
+    	
+    	connector.registerSubscriptionsAsync(subscriptions, sessionId, clientIds, setups,
+    			subscriptionId -> unregistered(sessionId, subscriptionId)).whenComplete((responses, e) -> {
+    		if(e!=null){
+    			messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", asyncError(e), createHeaders(sessionId));
+    			return;
+    		}
+    		ArrayNode results = mapper.createArrayNode();
+    		List<Registration> succeeded = new ArrayList<>();
+    		List<String> subscriptionIds = new ArrayList<>();
+    		int next = 0;
+    		for(Registration registration: registrations){
+    			OrionSubscription subscription = registration.getSubscription();
+    			ObjectNode result = results.addObject();
+    			result.put("entityId", subscription.getEntityId());
+    			String token = subscription.getToken();
+    			if(verified.get(token==null ? "" : token).isEmpty()){
+    				result.put("error", "401 - Token not verified");
+    				continue;
+    			}
+    			String[] response = responses.get(next++);
+    			if("subscriptionId".equals(response[0])){
+    				succeeded.add(registration);
+    				subscriptionIds.add(response[1]);
+    				result.put("subscriptionId", response[1]);
+    			}else{
+    				result.put("error", response[1]);
+    			}
+    		}
+    		OutOfBandMessage message = new OutOfBandMessage("registerBatch", results.toString());
+    		messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+    		for(int i=0; i<succeeded.size(); i++){
+    			sendLastValue(sessionId, subscriptionIds.get(i), succeeded.get(i).getSubscription());
+    		}
+    	});
+    }
+    
+    
+    /**
+	 * Method for setting up the delivery options of a subscription a client is being registered to
+	 * Called before the client is attached to the subscription, so the first notification is delivered with them
+	 * 
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param registration The subscription sent by the client
+	 */
+    private void registered(String sessionId, String subscriptionId, Registration registration){
+    	clientFilters.put(sessionId, subscriptionId, registration.getFilter());
+    	deltaEncoder.put(sessionId, subscriptionId, registration.isDelta());
+    	throttles.put(sessionId, subscriptionId, registration.getThrottle());
+    }
+    
+    
+    /**
+	 * Method for removing the delivery options of a subscription a client has been removed from
+	 * 
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 */
+    private void unregistered(String sessionId, String subscriptionId){
+    	clientFilters.remove(sessionId, subscriptionId);
+    	deltaEncoder.remove(sessionId, subscriptionId);
+    	throttles.remove(sessionId, subscriptionId);
+    }
+    
+    
+    private void sendError(String sessionId, String error){
+    	OutOfBandMessage message = new OutOfBandMessage("error", error);
+    	messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+    }
+    
+    
+    /**
+	 * Method for sending the current state of the entity to a client that has just registered,
+	 * so it does not have to wait for the entity to change
+	 * 
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param subscription The subscription registered
+	 */
+    private void sendLastValue(String sessionId, String subscriptionId, OrionSubscription subscription){
+    	if(subscription.isPattern()){
+    		return;
+    	}
+    	ContextElement element = connector.getLastValue(subscription.getEntityId());
+    	if(element!=null){
+    		LOGGER.debug("Sending last value of {} to {}", element.getId(), sessionId);
+    		deliver(sessionId, subscriptionId, Collections.singletonList(new Notification(element, subscriptionId)));
+    	}
     }
     
     
@@ -111,47 +326,140 @@ public class OrionController {
     public void unregisterSubscription(SimpMessageHeaderAccessor headerAccessor, String payload) {
     	String sessionId = headerAccessor.getSessionId(); // Session ID
     	OutOfBandMessage receivedMessage = null;
-    	OutOfBandMessage responseMessage = new OutOfBandMessage();
-    	String subscriptionId = null;
     	try{
     		receivedMessage= mapper.readValue(payload, OutOfBandMessage.class);
-    		subscriptionId = connector.removeSubscription(receivedMessage.getMessage(), sessionId);
         }catch(IOException e){
-        	e.printStackTrace();
+        	LOGGER.error("Not able to parse unregister message from {}", sessionId, e);
+        	OutOfBandMessage responseMessage = new OutOfBandMessage("error","Subscription not removed "+payload);
+        	messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", responseMessage, createHeaders(sessionId));
+        	return;
         }
     	
+    	String requestedId = receivedMessage.getMessage();
+    	connector.removeSubscriptionAsync(requestedId, sessionId).whenComplete((subscriptionId, e) -> {
+    		OutOfBandMessage responseMessage = new OutOfBandMessage();
+    		LOGGER.info("response from unsubscribe: {}", subscriptionId);
+    		if(e!=null){
+    			responseMessage = asyncError(e);
+    		}else if(subscriptionId==null){
+    			responseMessage.setType("error");
+    			responseMessage.setMessage("Subscription not removed "+requestedId);
+    		}else{
+    			unregistered(sessionId, subscriptionId);
+    			responseMessage.setType("removeSubscription");
+    			responseMessage.setMessage(subscriptionId);
+    		}
+    		messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", responseMessage, createHeaders(sessionId));
+    	});
     	
+    }
+    
+    
+    /**
+	 * Endpoint for removing many subscriptions in one frame
+	 * The reply is one {@link OutOfBandMessage} of type unregisterBatch, with a JSON array holding the subscriptionId
+	 * of every subscription and whether it was removed, in the order sent
+	 * 
+	 * @param headerAccessor headers from client
+	 * @param payload from client, a JSON array of subscriptionIds
+	 */
+    @MessageMapping("/unregisterBatch")
+    public void unregisterSubscriptions(SimpMessageHeaderAccessor headerAccessor, String payload) {
+    	String sessionId = headerAccessor.getSessionId();
+    	List<String> requestedIds;
+    	try{
+    		requestedIds = Arrays.asList(mapper.readValue(payload, String[].class));
+    	}catch(IOException e){
+    		LOGGER.error("Not able to parse unregister message from {}", sessionId, e);
+    		sendError(sessionId, "Subscriptions not removed "+payload);
+    		return;
+    	}
+    	if(requestedIds.size()>maxBatchSize){
+    		sendError(sessionId, "At most "+maxBatchSize+" subscriptions per batch");
+    		return;
+    	}
     	
-    	LOGGER.info("response from unsubscribe: "+subscriptionId);
-        if(subscriptionId==null){
-        	responseMessage.setType("error");
-        	responseMessage.setMessage("Subscription not removed "+receivedMessage.getMessage());
-        }else{
-        	responseMessage.setType("removeSubscription");
-        	responseMessage.setMessage(subscriptionId);
-        }
-        messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", responseMessage, createHeaders(sessionId));
-    	
+    	connector.removeSubscriptionsAsync(requestedIds, sessionId).whenComplete((removedIds, e) -> {
+    		if(e!=null){
+    			messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", asyncError(e), createHeaders(sessionId));
+    			return;
+    		}
+    		ArrayNode results = mapper.createArrayNode();
+    		for(int i=0; i<requestedIds.size(); i++){
+    			String subscriptionId = removedIds.get(i);
+    			if(subscriptionId!=null){
+    				unregistered(sessionId, subscriptionId);
+    			}
+    			results.addObject()
+    				.put("subscriptionId", requestedIds.get(i))
+    				.put("removed", subscriptionId!=null);
+    		}
+    		OutOfBandMessage message = new OutOfBandMessage("unregisterBatch", results.toString());
+    		messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+    	});
     }
     
     
     /**
-	 * Method for sending the recieved notification from Context Broker to correct client
+	 * Method for creating the error sent to a client when a call to the Context Broker did not complete
+	 * 
+	 * @param e The reason the call failed
 	 * 
-	 * @param notification from Context Broker. @see {@link dk.alexandra.orion.websocket.transports.Notification}
+	 * @return The message for the client
 	 */
-    private void sendNotification(Notification notification){
+    private OutOfBandMessage asyncError(Throwable e){
+    	Throwable cause = e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e;
+    	if(cause instanceof TimeoutException){
+    		LOGGER.error("Context Broker did not answer in time");
+    		return new OutOfBandMessage("error","Context Broker did not answer in time. Please try again");
+    	}
+    	if(cause instanceof RejectedExecutionException){
+    		return new OutOfBandMessage("error","Too many pending requests. Please try again");
+    	}
+    	LOGGER.error("Call to Context Broker failed", cause);
+    	return new OutOfBandMessage("error","Something went wrong. Please try again");
+    }
+    
+    
+    /**
+	 * Method for sending the recieved notifications from Context Broker to every client attached to the subscription
+	 * Notifications are queued per client, and queued notifications are sent to a client in one frame
+	 * 
+	 * @param subscriptionId The subscription the notifications belong to
+	 * @param notifications from Context Broker. @see {@link dk.alexandra.orion.websocket.transports.Notification}
+	 * 
+	 * @return true if a client on this node is attached to the subscription
+	 */
+    private boolean sendNotifications(String subscriptionId, List<Notification> notifications){
     	
-    	String sessionId = connector.getSubscriptionSessionId(notification.getSubscriptionId());
+    	Set<String> sessionIds = connector.getSubscriptionSessionIds(subscriptionId);
+    	metrics.routed(!sessionIds.isEmpty());
     	
-    	if(sessionId==null){
+    	if(sessionIds.isEmpty()){
     		//session not found, so we discard the message
-    		LOGGER.info("No Session id found in list. Ignoring..");
-    		return;
+    		LOGGER.debug("No Session id found in list. Ignoring..");
+    		return false;
+    	}
+    	for(String sessionId: sessionIds){
+    		LOGGER.debug("sending to: {}", sessionId);
+    		deliver(sessionId, subscriptionId, notifications);
+    	}
+    	return true;
+    }
+    
+    /**
+	 * Method for sending notifications to one client, with the filter, delta encoding and throttle it has asked for
+	 * 
+	 * @param sessionId The id of the client
+	 * @param subscriptionId The id of the subscription
+	 * @param notifications The notifications to send
+	 */
+    private void deliver(String sessionId, String subscriptionId, List<Notification> notifications){
+    	List<Notification> filtered = clientFilters.apply(sessionId, subscriptionId, notifications);
+    	List<Notification> changed = deltaEncoder.encode(sessionId, subscriptionId, filtered);
+    	if(!changed.isEmpty()){
+    		throttles.send(sessionId, subscriptionId, changed);
     	}
-    	LOGGER.info("sending to: "+sessionId);
-    	messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", notification, createHeaders(sessionId));
-    	
     }
     
     /**
@@ -161,7 +469,7 @@ public class OrionController {
 	 * 
 	 * @return The headers needed 
 	 */
-    private MessageHeaders createHeaders(String sessionId) {
+    static MessageHeaders createHeaders(String sessionId) {
         SimpMessageHeaderAccessor headerAccessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
         headerAccessor.setSessionId(sessionId);
         headerAccessor.setLeaveMutable(true);
@@ -177,17 +485,90 @@ public class OrionController {
 	 */
     @EventListener
     public void handleSubscribeEvent(SessionSubscribeEvent event) {
-        LOGGER.info("SubscribeEvent: "+event);
+        LOGGER.debug("SubscribeEvent: {}", event);
         StompHeaderAccessor headers = StompHeaderAccessor.wrap(event.getMessage());
         String sessionId = headers.getSessionId();
         
         OutOfBandMessage response = new OutOfBandMessage("sessionId",sessionId);
         messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", response, createHeaders(sessionId));
+        resumeSession(headers);
+    }
+    
+    
+    /**
+	 * Method for attaching a client that connected with a resume token to the subscriptions it had before
+	 * Done when the client subscribes, so it receives the reply. The reply is one {@link OutOfBandMessage} of type resumed,
+	 * with a JSON array holding the subscriptionId of every subscription resumed. Delivery options are not resumed,
+	 * a client registering a resumed subscription again gets its options without a new subscription at the Context Broker
+	 * 
+	 * @param headers The headers of the subscribe frame
+	 */
+    private void resumeSession(StompHeaderAccessor headers){
+    	Map<String, Object> attributes = headers.getSessionAttributes();
+    	String resumeToken = attributes==null ? null : (String) attributes.remove(RESUME_TOKEN);
+    	if(resumeToken==null){
+    		return;
+    	}
+    	String sessionId = headers.getSessionId();
+    	String clientId = authenticator.clientIdOf(headers, null);
+    	if(clientId==null){
+    		sendError(sessionId, "401 - Resuming requires a verified token at connect");
+    		return;
+    	}
+    	List<SharedSubscription> resumed = connector.resumeSession(resumeToken, sessionId, clientId);
+    	ArrayNode results = mapper.createArrayNode();
+    	for(SharedSubscription shared: resumed){
+    		results.add(shared.getSubscriptionId());
+    	}
+    	OutOfBandMessage message = new OutOfBandMessage("resumed", results.toString());
+    	messagingTemplate.convertAndSendToUser(sessionId,"/message/queue/orion", message, createHeaders(sessionId));
+    	for(SharedSubscription shared: resumed){
+    		sendLastValue(sessionId, shared.getSubscriptionId(), shared.getSubscription());
+    	}
     }
 	
+    
+    /**
+	 * EventListener for when a client connects
+	 * Keeps the resume token of the client, if given, until it subscribes 
+	 * 
+	 * @param event the connect event
+	 */
     @EventListener
     public void handleConnectEvent(SessionConnectEvent event) {
-    	//LOGGER.info("connection "+event);	
+    	StompHeaderAccessor headers = StompHeaderAccessor.wrap(event.getMessage());
+    	String resumeToken = headers.getFirstNativeHeader(RESUME_TOKEN);
+    	Map<String, Object> attributes = headers.getSessionAttributes();
+    	if(resumeToken!=null && !resumeToken.isEmpty() && attributes!=null){
+    		attributes.put(RESUME_TOKEN, resumeToken);
+    	}
+    }
+    
+    
+    /**
+	 * EventListener for when the middleware has started
+	 * Reports the time from the start of the JVM until traffic is served 
+	 * 
+	 * @param event the ready event
+	 */
+    @EventListener
+    public void handleReadyEvent(ApplicationReadyEvent event) {
+    	long startupTime = ManagementFactory.getRuntimeMXBean().getUptime();
+    	metrics.started(startupTime);
+    	LOGGER.info("Serving traffic {} ms after start, {} restored subscriptions waiting for clients", startupTime, connector.getJournal().getDormant());
+    }
+    
+    
+    /**
+	 * EventListener for when the middleware is stopped
+	 * Published before the sessions are closed, so the subscriptions are kept in the journal for the next start
+	 * 
+	 * @param event the closed event
+	 */
+    @EventListener
+    public void handleClosedEvent(ContextClosedEvent event) {
+    	LOGGER.info("Shutting down");
+    	connector.shutdown();
     }
     
     /**
@@ -198,18 +579,15 @@ public class OrionController {
 	 */
     @EventListener
     public void handleDisconnectEvent(SessionDisconnectEvent event){
-    	LOGGER.info("DisconnectEvent "+event);
+    	LOGGER.debug("DisconnectEvent {}", event);
     	StompHeaderAccessor headers = StompHeaderAccessor.wrap(event.getMessage());
         String sessionId = headers.getSessionId();
-        boolean res = connector.clientDisconnected(sessionId);
-        String str = "Client: "+sessionId+" was";
-        if(res){
-        	str+=" disconnected sucessfully";
-        }else{
-        	str+=" unsuccessfully disconnected";
-        }
-        
-        LOGGER.info(str);
+        int queued = connector.clientDisconnected(sessionId);
+        clientFilters.removeSession(sessionId);
+        deltaEncoder.removeSession(sessionId);
+        throttles.removeSession(sessionId);
+        wireFormats.remove(sessionId);
+        LOGGER.info("Client: {} disconnected, {} subscriptions queued for removal", sessionId, queued);
     }
     
     
@@ -218,36 +596,103 @@ public class OrionController {
 	 * Sends the sessionId back to the client 
 	 * 
 	 * @param res the string containing in the information
+	 * @param owner the node that made the subscription in cluster mode, null if none
 	 * 
 	 * @return A responseEntity to connecting client
 	 */
     @PostMapping(value = "/receiveNotifications")
-	public ResponseEntity<String> receiveNotification(@RequestBody String res) {
-    	
-    	JSONObject json = new JSONObject(res);
-    	String subscriptionId = json.getString("subscriptionId");
-    	JSONArray arr = json.getJSONArray("contextResponses");
-    	JSONObject element = ((JSONObject)arr.get(0)).getJSONObject("contextElement");
-    	
-    	
+	public ResponseEntity<String> receiveNotification(@RequestBody String res,
+			@RequestParam(value = ClusterRouter.OWNER_PARAM, required = false) String owner) {
+    	long start = System.nanoTime();
+    	List<Notification> notifications;
     	try {
-    		ContextElement elm = mapper.readValue(element.toString(), ContextElement.class);
-    		Notification not = new Notification();
-    		not.setSubscriptionId(subscriptionId);
-    		not.setElement(elm);
-    		LOGGER.info("Sending notification: "+not);
-    		sendNotification(not);
-    		
-    		
+    		notifications = notificationParser.parse(res, connector.getReconciler()::isOrphan);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.error("Not able to parse notification: {}", e.getMessage());
+			return new ResponseEntity<String>(res, HttpStatus.BAD_REQUEST);
 		}
+    	if(notifications==null){
+    		//nobody in the cluster subscribes to it, removed by the reconciler
+    		metrics.routed(false);
+    		return new ResponseEntity<String>(HttpStatus.OK);
+    	}
+    	if(notifications.isEmpty()){
+    		return new ResponseEntity<String>(res, HttpStatus.OK);
+    	}
+    	
+    	for(Notification not: notifications){
+    		connector.entityNotified(not.getElement());
+    		logSampled(not);
+    	}
+    	String subscriptionId = notifications.get(0).getSubscriptionId();
+    	sendNotifications(subscriptionId, notifications);
+    	if(clusterRouter!=null){
+    		clusterRouter.route(subscriptionId, res, owner);
+    	}
+    	metrics.notificationIngested(start);
     	
 		return new ResponseEntity<String>(res, HttpStatus.OK);
 	}
     
     
+    /**
+	 * Method for logging every notificationSampleRate'th notification at debug level
+	 * 
+	 * @param notification The notification received
+	 */
+    private void logSampled(Notification notification){
+    	if(notificationSampleRate>0 && LOGGER.isDebugEnabled() && notificationCount.incrementAndGet()%notificationSampleRate==0){
+    		LOGGER.debug("Sending notification (1 of {}): {}", notificationSampleRate, notification);
+    	}
+    }
+    
+    
+    /**
+	 * POST endpoint for recieving notifications forwarded by another node in cluster mode
+	 * 
+	 * @param res the notification as received by the other node
+	 * @param secret the secret shared by the nodes of the cluster
+	 * 
+	 * @return A responseEntity to the forwarding node
+	 */
+    @PostMapping(value = HttpClusterTransport.PATH)
+    public ResponseEntity<String> receiveForwardedNotification(@RequestBody String res,
+    		@RequestHeader(value = HttpClusterTransport.SECRET_HEADER, required = false) String secret) {
+    	if(clusterRouter==null){
+    		return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+    	}
+    	if(!clusterRouter.authenticate(secret)){
+    		LOGGER.warn("Rejected forwarded notification without a valid cluster secret");
+    		return new ResponseEntity<String>(HttpStatus.FORBIDDEN);
+    	}
+    	clusterRouter.notificationForwarded(res);
+    	return new ResponseEntity<String>(HttpStatus.OK);
+    }
+    
+    
+    /**
+	 * Method for delivering a notification forwarded by another node to the clients on this node
+	 * 
+	 * @param res the notification as received by the other node
+	 */
+    private void deliverForwarded(String res){
+    	List<Notification> notifications;
+    	try {
+    		notifications = notificationParser.parse(res);
+    	} catch (IOException e) {
+    		LOGGER.error("Not able to parse forwarded notification: {}", e.getMessage());
+    		return;
+    	}
+    	if(notifications.isEmpty()){
+    		return;
+    	}
+    	for(Notification not: notifications){
+    		connector.entityNotified(not.getElement());
+    	}
+    	sendNotifications(notifications.get(0).getSubscriptionId(), notifications);
+    }
+    
+    
     /**
 	 * Called after constructor
 	 * Initiates the connection to the Context Broker 
@@ -255,10 +700,14 @@ public class OrionController {
 	 */
     @PostConstruct
     private void initOrionClient(){
-    	BasicConfigurator.configure();
-    	
     	LOGGER.info("initializing Orion Context Broker client");
-    	connector = new Connector();
+    	connector = new Connector(metrics);
+    	metrics.bindGauges(connector, outboundQueues, deltaEncoder);
+    	if(clusterRouter!=null){
+    		connector.setReferenceNode(ClusterRouter.OWNER_PARAM, clusterRouter.getNodeId());
+    		clusterRouter.start(connector.getRegistry(), connector.getHttpClientPool(), this::deliverForwarded);
+    		connector.getReconciler().setOwnership(clusterRouter.knowsAllRoutes(), clusterRouter::isRouted);
+    	}
         
     }
 
@@ -0,0 +1,96 @@
+package dk.alexandra.organicity.webserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import dk.alexandra.organicity.filter.NotificationFilter;
+import dk.alexandra.orion.websocket.transports.OrionSubscription;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * A subscription sent by a client to /register or /registerBatch, with the delivery options it may carry
+ * besides the fields of {@link OrionSubscription}: filters, throttle (or minInterval) and delta
+ *
+ */
+class Registration {
+
+	private final OrionSubscription subscription;
+	private final NotificationFilter filter;
+	private final long throttle;
+	private final boolean delta;
+
+
+	private Registration(OrionSubscription subscription, NotificationFilter filter, long throttle, boolean delta){
+		this.subscription = subscription;
+		this.filter = filter;
+		this.throttle = throttle;
+		this.delta = delta;
+	}
+
+
+	/**
+	 * Method for reading a subscription sent by a client
+	 *
+	 * @param mapper The mapper to bind the subscription with
+	 * @param node The subscription as sent by the client
+	 *
+	 * @return The registration
+	 * @throws JsonProcessingException if the node is not a valid subscription
+	 * @throws IllegalArgumentException if the delivery options are not valid
+	 */
+	static Registration parse(ObjectMapper mapper, JsonNode node) throws JsonProcessingException{
+		if(!node.isObject()){
+			throw new IllegalArgumentException("subscription must be an object");
+		}
+		ObjectNode tree = ((ObjectNode) node).deepCopy();
+		JsonNode filters = tree.remove("filters");
+		JsonNode throttleField = tree.remove("throttle");
+		JsonNode minInterval = tree.remove("minInterval");
+		JsonNode delta = tree.remove("delta");
+		long throttle = parseThrottle(throttleField!=null ? throttleField : minInterval);
+		OrionSubscription subscription = mapper.treeToValue(tree, OrionSubscription.class);
+		NotificationFilter filter = NotificationFilter.compile(subscription.getAttributes(), filters);
+		return new Registration(subscription, filter, throttle, delta!=null && delta.asBoolean(false));
+	}
+
+
+	/**
+	 * Method for reading the throttle a client has asked for when registering
+	 *
+	 * @param throttle The throttle or minInterval field of the payload, in ms
+	 *
+	 * @return The minimum time between two sends, 0 if not throttled
+	 */
+	private static long parseThrottle(JsonNode throttle){
+		if(throttle==null || throttle.isNull()){
+			return 0;
+		}
+		if(!throttle.canConvertToLong() || throttle.asLong()<0){
+			throw new IllegalArgumentException("throttle must be a positive number of ms, got: "+throttle);
+		}
+		return throttle.asLong();
+	}
+
+
+	OrionSubscription getSubscription(){
+		return subscription;
+	}
+
+	NotificationFilter getFilter(){
+		return filter;
+	}
+
+	long getThrottle(){
+		return throttle;
+	}
+
+	boolean isDelta(){
+		return delta;
+	}
+
+}
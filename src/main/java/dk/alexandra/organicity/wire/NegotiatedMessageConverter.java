@@ -0,0 +1,67 @@
+package dk.alexandra.organicity.wire;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Writes the objects sent to a client in the binary format it has negotiated, see {@link WireFormats}
+ * The content type is application/octet-stream, so the frame is sent as a binary WebSocket message
+ * Returns null for clients using JSON, so the default converters registered after this one are used
+ *
+ */
+public class NegotiatedMessageConverter implements MessageConverter {
+
+	private final WireFormats formats;
+
+
+	public NegotiatedMessageConverter(WireFormats formats){
+		this.formats = formats;
+	}
+
+
+	@Override
+	public Object fromMessage(Message<?> message, Class<?> targetClass) {
+		//clients always send JSON
+		return null;
+	}
+
+
+	@Override
+	public Message<?> toMessage(Object payload, MessageHeaders headers) {
+		if(headers==null || payload instanceof String || payload instanceof byte[]){
+			return null;
+		}
+		WireFormat format = formats.get(SimpMessageHeaderAccessor.getSessionId(headers));
+		if(format==WireFormat.JSON){
+			return null;
+		}
+
+		byte[] bytes;
+		try{
+			bytes = format.getMapper().writeValueAsBytes(payload);
+		}catch(JsonProcessingException e){
+			throw new MessageConversionException("Not able to write "+format+": "+e.getMessage(), e);
+		}
+
+		MessageHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(headers, MessageHeaderAccessor.class);
+		if(accessor!=null && accessor.isMutable()){
+			accessor.setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_OCTET_STREAM);
+			return MessageBuilder.createMessage(bytes, accessor.getMessageHeaders());
+		}
+		return MessageBuilder.withPayload(bytes).copyHeaders(headers)
+				.setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_OCTET_STREAM).build();
+	}
+
+}
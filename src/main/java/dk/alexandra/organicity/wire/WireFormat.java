@@ -0,0 +1,57 @@
+package dk.alexandra.organicity.wire;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The encodings a client can ask for with the wire-format header of its CONNECT frame
+ *
+ */
+public enum WireFormat {
+
+	JSON(null),
+	CBOR(new CBORFactory()),
+	SMILE(new SmileFactory());
+
+
+	private final ObjectMapper mapper;
+
+
+	WireFormat(JsonFactory factory){
+		this.mapper = factory==null ? null : new ObjectMapper(factory);
+	}
+
+
+	/**
+	 * @return The mapper writing the binary encoding, null for JSON which is written by the default converters
+	 */
+	ObjectMapper getMapper(){
+		return mapper;
+	}
+
+
+	/**
+	 * Method for reading the wire-format header
+	 *
+	 * @param value The value of the header, may be null
+	 *
+	 * @return The format, JSON if the value is missing or unknown
+	 */
+	public static WireFormat of(String value){
+		if(value!=null){
+			for(WireFormat format: values()){
+				if(format.name().equalsIgnoreCase(value.trim())){
+					return format;
+				}
+			}
+		}
+		return JSON;
+	}
+
+}
@@ -0,0 +1,95 @@
+package dk.alexandra.organicity.wire;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * The wire format of every client, negotiated with the wire-format header of the CONNECT frame
+ * Binary formats are only accepted on the raw WebSocket endpoint, as SockJS can only carry text.
+ * Clients asking for an unknown format, or a binary format over SockJS, get JSON
+ * Registered in {@link dk.alexandra.organicity.config.WebSocketConfig} as interceptor on the clientInboundChannel
+ * and as handshake interceptor of the raw endpoint
+ *
+ */
+@Component
+public class WireFormats extends ChannelInterceptorAdapter implements HandshakeInterceptor {
+
+	protected static final Logger LOGGER = LogManager.getLogger(WireFormats.class);
+	public static final String HEADER = "wire-format";
+	private static final String BINARY_ATTRIBUTE = "wireFormat.binary";
+
+	private final ConcurrentHashMap<String, WireFormat> formats = new ConcurrentHashMap<>();
+
+
+	@Override
+	public Message<?> preSend(Message<?> message, MessageChannel channel) {
+		StompHeaderAccessor headers = StompHeaderAccessor.wrap(message);
+		if(StompCommand.CONNECT.equals(headers.getCommand())){
+			WireFormat format = WireFormat.of(headers.getFirstNativeHeader(HEADER));
+			if(format!=WireFormat.JSON){
+				Map<String, Object> attributes = headers.getSessionAttributes();
+				if(attributes!=null && Boolean.TRUE.equals(attributes.get(BINARY_ATTRIBUTE))){
+					LOGGER.debug("Client {} uses {}", headers.getSessionId(), format);
+					formats.put(headers.getSessionId(), format);
+				}else{
+					LOGGER.debug("Client {} asked for {} over SockJS, using JSON", headers.getSessionId(), format);
+				}
+			}
+		}else if(StompCommand.DISCONNECT.equals(headers.getCommand())){
+			formats.remove(headers.getSessionId());
+		}
+		return message;
+	}
+
+
+	@Override
+	public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Map<String, Object> attributes) {
+		attributes.put(BINARY_ATTRIBUTE, Boolean.TRUE);
+		return true;
+	}
+
+	@Override
+	public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Exception exception) {
+	}
+
+
+	/**
+	 * @param sessionId The id of the client
+	 *
+	 * @return The wire format of the client
+	 */
+	public WireFormat get(String sessionId){
+		if(sessionId==null){
+			return WireFormat.JSON;
+		}
+		return formats.getOrDefault(sessionId, WireFormat.JSON);
+	}
+
+	/**
+	 * Method for forgetting the format of a client that has disconnected
+	 *
+	 * @param sessionId The id of the client
+	 */
+	public void remove(String sessionId){
+		formats.remove(sessionId);
+	}
+
+}
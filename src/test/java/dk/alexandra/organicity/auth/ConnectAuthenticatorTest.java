@@ -0,0 +1,114 @@
+package dk.alexandra.organicity.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Binding the token of a CONNECT frame to the session of the client with the {@link ConnectAuthenticator}
+ *
+ */
+public class ConnectAuthenticatorTest {
+
+	private final TokenVerifier verifier = new StubVerifier(100, 60000);
+	private final ConnectAuthenticator authenticator = new ConnectAuthenticator(verifier);
+	private final Map<String, Object> sessionAttributes = new HashMap<>();
+	private final String token = StubVerifier.token("client-1", System.currentTimeMillis()+60000);
+
+
+	private Message<?> frame(StompCommand command, String header, String value){
+		StompHeaderAccessor accessor = StompHeaderAccessor.create(command);
+		accessor.setSessionId("session-1");
+		accessor.setSessionAttributes(sessionAttributes);
+		if(header!=null){
+			accessor.setNativeHeader(header, value);
+		}
+		return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+	}
+
+	private SimpMessageHeaderAccessor session(){
+		SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create();
+		accessor.setSessionId("session-1");
+		accessor.setSessionAttributes(sessionAttributes);
+		return accessor;
+	}
+
+
+	@Test
+	public void connectBindsTheClientId(){
+		Message<?> connect = frame(StompCommand.CONNECT, "token", token);
+		assertSame(connect, authenticator.preSend(connect, null));
+		assertEquals(1, verifier.getVerifications());
+
+		assertEquals("client-1", authenticator.clientIdOf(session(), token));
+		assertEquals("client-1", authenticator.clientIdOf(session(), null));
+		//taken from the session
+		assertEquals(1, verifier.getVerifications());
+	}
+
+	@Test
+	public void bearerTokensAreBound(){
+		authenticator.preSend(frame(StompCommand.CONNECT, "Authorization", "Bearer "+token), null);
+		assertEquals("client-1", authenticator.clientIdOf(session(), null));
+	}
+
+	@Test
+	public void mismatchedTokensAreVerified(){
+		authenticator.preSend(frame(StompCommand.CONNECT, "token", token), null);
+
+		assertNull(authenticator.clientIdOf(session(), "forged"));
+		String other = StubVerifier.token("client-2", System.currentTimeMillis()+60000);
+		assertEquals("client-2", authenticator.clientIdOf(session(), other));
+		assertEquals(3, verifier.getVerifications());
+		//still bound to the token of the CONNECT
+		assertEquals("client-1", authenticator.clientIdOf(session(), null));
+	}
+
+	@Test(expected = MessageDeliveryException.class)
+	public void connectWithInvalidTokenIsRefused(){
+		authenticator.preSend(frame(StompCommand.CONNECT, "token", "forged"), null);
+	}
+
+	@Test
+	public void connectWithoutTokenVerifiesEveryFrame(){
+		authenticator.preSend(frame(StompCommand.CONNECT, null, null), null);
+		assertNull(authenticator.clientIdOf(session(), null));
+		assertEquals("client-1", authenticator.clientIdOf(session(), token));
+		assertEquals("client-1", authenticator.clientIdOf(session(), token));
+		//cached by the verifier
+		assertEquals(1, verifier.getVerifications());
+	}
+
+	@Test
+	public void expiredBindingsAreNotUsed() throws Exception{
+		long exp = (System.currentTimeMillis()/1000+1)*1000;
+		authenticator.preSend(frame(StompCommand.CONNECT, "token", StubVerifier.token("client-1", exp)), null);
+		while(System.currentTimeMillis()<exp){
+			Thread.sleep(5);
+		}
+		assertNull(authenticator.clientIdOf(session(), null));
+	}
+
+	@Test
+	public void otherFramesAreNotVerified(){
+		Message<?> subscribe = frame(StompCommand.SUBSCRIBE, "token", "forged");
+		assertSame(subscribe, authenticator.preSend(subscribe, null));
+		assertEquals(0, verifier.getVerifications());
+	}
+
+}
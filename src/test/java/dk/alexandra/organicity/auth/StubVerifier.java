@@ -0,0 +1,42 @@
+package dk.alexandra.organicity.auth;
+
+import java.util.Date;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * A {@link TokenVerifier} for tokens of the form clientId:exp, with exp in ms since the epoch, or only clientId for a token without exp
+ * Any other token is not valid
+ *
+ */
+class StubVerifier extends TokenVerifier {
+
+	StubVerifier(long maxSize, long ttl){
+		super(maxSize, ttl);
+	}
+
+
+	static String token(String clientId, long expiresAt){
+		return clientId+":"+expiresAt;
+	}
+
+	@Override
+	Claims parse(String token) throws Exception{
+		if(!token.startsWith("client-")){
+			throw new IllegalArgumentException("Signature not valid");
+		}
+		String[] parts = token.split(":");
+		Claims claims = Jwts.claims();
+		claims.put("clientId", parts[0]);
+		if(parts.length>1){
+			claims.setExpiration(new Date(Long.parseLong(parts[1])));
+		}
+		return claims;
+	}
+
+}
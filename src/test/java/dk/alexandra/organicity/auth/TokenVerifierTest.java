@@ -0,0 +1,96 @@
+package dk.alexandra.organicity.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Verifying the tokens of users once with the {@link TokenVerifier}, until they expire
+ *
+ */
+public class TokenVerifierTest {
+
+	private final TokenVerifier verifier = new StubVerifier(100, 60000);
+
+
+	/**
+	 * @return The start of the next second, as exp is kept in seconds
+	 */
+	private static long nextSecond(){
+		return (System.currentTimeMillis()/1000+1)*1000;
+	}
+
+	private static void sleepUntil(long time) throws InterruptedException{
+		while(System.currentTimeMillis()<time){
+			Thread.sleep(Math.max(1, time-System.currentTimeMillis()));
+		}
+	}
+
+
+	@Test
+	public void cachedTokensAreNotVerifiedAgain(){
+		String token = StubVerifier.token("client-1", System.currentTimeMillis()+60000);
+		VerifiedToken verified = verifier.verify(token);
+		assertEquals("client-1", verified.getClientId());
+		assertEquals(1, verifier.getVerifications());
+
+		assertSame(verified, verifier.verify(token));
+		assertEquals(1, verifier.getVerifications());
+		assertEquals(1, verifier.getSize());
+	}
+
+	@Test
+	public void tokensExpireAtExp() throws Exception{
+		long exp = nextSecond();
+		String token = StubVerifier.token("client-1", exp);
+		VerifiedToken verified = verifier.verify(token);
+		assertFalse(verified.isExpired());
+		assertTrue(verifier.matches(verified, token));
+
+		sleepUntil(exp);
+		assertTrue(verified.isExpired());
+		assertFalse(verifier.matches(verified, token));
+		//verified again instead of taken from the cache
+		verifier.verify(token);
+		assertEquals(2, verifier.getVerifications());
+	}
+
+	@Test
+	public void tokensWithoutExpExpireAfterTheTtl() throws Exception{
+		TokenVerifier verifier = new StubVerifier(100, 50);
+		VerifiedToken verified = verifier.verify("client-1");
+		assertFalse(verified.isExpired());
+		Thread.sleep(60);
+		assertTrue(verified.isExpired());
+	}
+
+	@Test
+	public void invalidTokensAreNotCached(){
+		assertNull(verifier.verify("forged"));
+		assertNull(verifier.verify("forged"));
+		assertEquals(2, verifier.getVerifications());
+		assertEquals(0, verifier.getSize());
+		assertNull(verifier.verify(null));
+		assertNull(verifier.verify(""));
+		assertEquals(2, verifier.getVerifications());
+	}
+
+	@Test
+	public void onlyTheSameTokenMatches(){
+		String token = StubVerifier.token("client-1", System.currentTimeMillis()+60000);
+		VerifiedToken verified = verifier.verify(token);
+		assertTrue(verifier.matches(verified, token));
+		assertFalse(verifier.matches(verified, token+"0"));
+		assertFalse(verifier.matches(verified, null));
+		assertFalse(verifier.matches(null, token));
+	}
+
+}
@@ -0,0 +1,137 @@
+package dk.alexandra.organicity.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.alexandra.organicity.orion.SharedSubscription;
+import dk.alexandra.organicity.orion.SubscriptionRegistry;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Routing and forwarding notifications between several {@link ClusterRouter} nodes in one JVM over the {@link LoopbackClusterTransport}
+ *
+ */
+public class ClusterRouterTest {
+
+	private final List<Node> nodes = new ArrayList<>();
+
+
+	private Node start(String nodeId, RoutingTable routingTable){
+		Node node = new Node(nodeId, routingTable);
+		nodes.add(node);
+		return node;
+	}
+
+	@After
+	public void tearDown(){
+		for(Node node: nodes){
+			node.router.stop();
+		}
+	}
+
+
+	@Test
+	public void forwardsToTheNodesWithSessionsOnTheSubscription() throws InterruptedException{
+		RoutingTable routingTable = new InMemoryRoutingTable(true);
+		Node a = start("route-a", routingTable);
+		Node b = start("route-b", routingTable);
+		Node c = start("route-c", routingTable);
+		b.registry.register(new SharedSubscription("bus-1||", "sub-1", null), "session-b");
+		a.registry.register(new SharedSubscription("bus-1||", "sub-1", null), "session-a");
+
+		a.router.route("sub-1", "notification", null);
+		assertEquals("notification", b.next());
+		assertTrue(c.delivered.isEmpty());
+		//delivered by the receiving node itself
+		assertTrue(a.delivered.isEmpty());
+		assertTrue(a.router.isRouted("sub-1"));
+	}
+
+	@Test
+	public void forwardedNotificationsAreNotForwardedAgain() throws InterruptedException{
+		RoutingTable routingTable = new InMemoryRoutingTable(true);
+		Node a = start("again-a", routingTable);
+		Node b = start("again-b", routingTable);
+		a.registry.register(new SharedSubscription("bus-1||", "sub-1", null), "session-a");
+		b.registry.register(new SharedSubscription("bus-1||", "sub-1", null), "session-b");
+
+		a.router.route("sub-1", "notification", null);
+		assertEquals("notification", b.next());
+		assertNull(a.delivered.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void subscriptionsWithoutSessionsAreNotRouted() throws InterruptedException{
+		RoutingTable routingTable = new InMemoryRoutingTable(true);
+		Node a = start("removed-a", routingTable);
+		Node b = start("removed-b", routingTable);
+		b.registry.register(new SharedSubscription("bus-1||", "sub-1", null), "session-b");
+		b.registry.detach("sub-1", "session-b");
+
+		assertFalse(a.router.isRouted("sub-1"));
+		a.router.route("sub-1", "notification", null);
+		assertNull(b.delivered.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void withoutASharedTableOnlyTheOwnerGetsTheNotification() throws InterruptedException{
+		Node a = start("owner-a", new InMemoryRoutingTable(false));
+		Node b = start("owner-b", new InMemoryRoutingTable(false));
+		Node c = start("owner-c", new InMemoryRoutingTable(false));
+
+		a.router.route("sub-1", "notification", "owner-c");
+		assertEquals("notification", c.next());
+		a.router.route("sub-1", "without owner", null);
+		c.router.route("sub-1", "own", "owner-c");
+		assertNull(b.delivered.poll(100, TimeUnit.MILLISECONDS));
+		assertTrue(c.delivered.isEmpty());
+	}
+
+	@Test
+	public void stoppedNodesLeaveTheCluster(){
+		Node a = start("stop-a", new InMemoryRoutingTable(true));
+		Node b = start("stop-b", new InMemoryRoutingTable(true));
+		assertTrue(a.transport.getPeers().contains("stop-b"));
+		b.router.stop();
+		nodes.remove(b);
+		assertFalse(a.transport.getPeers().contains("stop-b"));
+	}
+
+
+
+	/**
+	 * One node of the cluster, with the notifications delivered to its sessions
+	 */
+	private static class Node {
+
+		final SubscriptionRegistry registry = new SubscriptionRegistry();
+		final LoopbackClusterTransport transport = new LoopbackClusterTransport();
+		final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+		final ClusterRouter router;
+
+		Node(String nodeId, RoutingTable routingTable){
+			router = new ClusterRouter(nodeId, transport, routingTable);
+			router.start(registry, null, delivered::add);
+		}
+
+		String next() throws InterruptedException{
+			return delivered.poll(5, TimeUnit.SECONDS);
+		}
+
+	}
+
+}
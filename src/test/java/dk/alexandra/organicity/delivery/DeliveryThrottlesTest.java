@@ -0,0 +1,128 @@
+package dk.alexandra.organicity.delivery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import dk.alexandra.organicity.broker.BrokerMode;
+import dk.alexandra.organicity.filter.ClientFilters;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Throttling the notifications of a client with the {@link DeliveryThrottles}, on a {@link TimerWheel} ticked by hand
+ *
+ */
+public class DeliveryThrottlesTest {
+
+	private static final String SESSION = "session-1";
+
+	private final List<Notification> sent = new ArrayList<>();
+	private final AtomicLong clock = new AtomicLong();
+	private TimerWheel wheel;
+	private DeliveryThrottles throttles;
+
+
+	@Before
+	public void setUp() throws Exception{
+		MessageChannel channel = new MessageChannel() {
+
+			@Override
+			public boolean send(Message<?> message, long timeout) {
+				sent.add((Notification) message.getPayload());
+				return true;
+			}
+
+			@Override
+			public boolean send(Message<?> message) {
+				return send(message, -1);
+			}
+		};
+		SessionOutboundQueues outboundQueues = new SessionOutboundQueues(100, OverflowPolicy.DROP_NEWEST, 100, 60000, BrokerMode.SIMPLE,
+				new SimpMessagingTemplate(channel), MiddlewareMetrics.inMemory(), new ClientFilters());
+		outboundQueues.decorate(new TextWebSocketHandler()).afterConnectionEstablished(new StubSession(SESSION));
+		wheel = new TimerWheel(50, 8, clock::get);
+		throttles = new DeliveryThrottles(wheel, outboundQueues);
+		throttles.put(SESSION, "sub-1", 60000);
+	}
+
+	private void send(String id, String name, String value){
+		List<Attributes> attributes = Arrays.asList(new Attributes(name, "float", value));
+		throttles.send(SESSION, "sub-1", Arrays.asList(new Notification(new ContextElement("bus", "false", id, attributes), "sub-1")));
+	}
+
+	private void tick(int ticks){
+		for(int i=0; i<ticks; i++){
+			clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+			wheel.tick();
+		}
+	}
+
+
+	@Test
+	public void sendsTheFirstNotificationAtOnce(){
+		send("bus-1", "speed", "10");
+		assertEquals(1, sent.size());
+		send("bus-1", "speed", "12");
+		assertEquals(1, sent.size());
+	}
+
+	@Test
+	public void mergesNotificationsWithinTheInterval(){
+		send("bus-1", "speed", "10");
+		send("bus-1", "speed", "12");
+		send("bus-2", "speed", "20");
+		send("bus-1", "line", "5");
+		//sent once 60 s have passed since the first
+		tick(1100);
+		assertEquals(1, sent.size());
+		tick(101);
+		assertEquals(3, sent.size());
+		Notification merged = sent.get(1);
+		assertEquals("bus-1", merged.getElement().getId());
+		assertEquals(2, merged.getElement().getAttributes().size());
+		assertEquals("12", merged.getElement().getAttributes().get(0).getValue());
+		assertEquals("bus-2", sent.get(2).getElement().getId());
+	}
+
+	@Test
+	public void cancelledThrottlesDropWhatIsPending(){
+		send("bus-1", "speed", "10");
+		send("bus-1", "speed", "12");
+		throttles.remove(SESSION, "sub-1");
+		tick(1201);
+		assertEquals(1, sent.size());
+		//not throttled any more
+		send("bus-1", "speed", "14");
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void replacedThrottlesSendWhatIsPending(){
+		send("bus-1", "speed", "10");
+		send("bus-1", "speed", "12");
+		throttles.put(SESSION, "sub-1", 100);
+		assertEquals(2, sent.size());
+		assertEquals("12", sent.get(1).getElement().getAttributes().get(0).getValue());
+		tick(1201);
+		assertEquals(2, sent.size());
+	}
+
+}
@@ -0,0 +1,169 @@
+package dk.alexandra.organicity.delivery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import dk.alexandra.organicity.broker.BrokerMode;
+import dk.alexandra.organicity.filter.ClientFilters;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.OutOfBandMessage;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Sending only changed attributes with the {@link DeltaEncoder}, and starting over when the client may have missed some
+ *
+ */
+public class DeltaEncoderTest {
+
+	private static final String SESSION = "session-1";
+
+	private final List<Message<?>> sent = new ArrayList<>();
+	private SessionOutboundQueues outboundQueues;
+	private DeltaEncoder encoder;
+
+
+	/**
+	 * Connects one client using delta encoding on sub-1, with one frame in flight at a time
+	 */
+	private void connect(int capacity, long maxAttributes) throws Exception{
+		MessageChannel channel = new MessageChannel() {
+
+			@Override
+			public boolean send(Message<?> message, long timeout) {
+				sent.add(message);
+				//subscribed, so the frame is in flight until written
+				outboundQueues.preSend(message, this);
+				return true;
+			}
+
+			@Override
+			public boolean send(Message<?> message) {
+				return send(message, -1);
+			}
+		};
+		outboundQueues = new SessionOutboundQueues(capacity, OverflowPolicy.DROP_NEWEST, 1, 60000, BrokerMode.SIMPLE,
+				new SimpMessagingTemplate(channel), MiddlewareMetrics.inMemory(), new ClientFilters());
+		outboundQueues.decorate(new TextWebSocketHandler()).afterConnectionEstablished(new StubSession(SESSION));
+
+		encoder = new DeltaEncoder(maxAttributes, outboundQueues);
+		encoder.start();
+		encoder.put(SESSION, "sub-1", true);
+	}
+
+	private List<Notification> deliver(String id, String... attributes){
+		List<Notification> encoded = encoder.encode(SESSION, "sub-1", notification(id, attributes));
+		outboundQueues.enqueue(SESSION, encoded);
+		return encoded;
+	}
+
+	/**
+	 * Writes the oldest frame in flight, so the next one is sent
+	 */
+	private void written(int frame){
+		outboundQueues.afterMessageHandled(sent.get(frame), null, null, null);
+	}
+
+	private static List<Notification> notification(String id, String... attributes){
+		List<Attributes> values = new ArrayList<>();
+		for(int i=0; i<attributes.length; i+=2){
+			values.add(new Attributes(attributes[i], "float", attributes[i+1]));
+		}
+		return Collections.singletonList(new Notification(new ContextElement("bus", "false", id, values), "sub-1"));
+	}
+
+	private static List<String> names(Notification notification){
+		List<String> names = new ArrayList<>();
+		for(Attributes attribute: notification.getElement().getAttributes()){
+			names.add(attribute.getName());
+		}
+		return names;
+	}
+
+
+	@Test
+	public void diffKeepsTheLastValuesSent(){
+		List<Attributes> delta = new ArrayList<>();
+		String[] first = DeltaEncoder.diff(null, notification("bus-1", "speed", "10", "line", "5").get(0).getElement().getAttributes(), delta);
+		assertArrayEquals(new String[]{"speed", "10", "line", "5"}, first);
+		assertEquals(2, delta.size());
+
+		delta.clear();
+		String[] unchanged = DeltaEncoder.diff(first, notification("bus-1", "speed", "10").get(0).getElement().getAttributes(), delta);
+		assertSame(first, unchanged);
+		assertTrue(delta.isEmpty());
+
+		String[] changed = DeltaEncoder.diff(first, notification("bus-1", "speed", "12", "heading", "N").get(0).getElement().getAttributes(), delta);
+		assertArrayEquals(new String[]{"speed", "12", "line", "5", "heading", "N"}, changed);
+		//the state may be read by another thread, so it is copied on write
+		assertArrayEquals(new String[]{"speed", "10", "line", "5"}, first);
+		assertEquals(2, delta.size());
+	}
+
+	@Test
+	public void sendsOnlyChangedAttributes() throws Exception{
+		connect(10, 100);
+		List<Notification> received = notification("bus-1", "speed", "10", "line", "5");
+		assertSame(received.get(0), encoder.encode(SESSION, "sub-1", received).get(0));
+		assertEquals(Arrays.asList("speed"), names(deliver("bus-1", "speed", "12", "line", "5").get(0)));
+		assertTrue(deliver("bus-1", "speed", "12", "line", "5").isEmpty());
+		//other subscriptions are sent as received
+		assertSame(received, encoder.encode(SESSION, "sub-2", received));
+	}
+
+	@Test
+	public void startsOverWhenNotificationsAreDropped() throws Exception{
+		connect(1, 100);
+		deliver("bus-1", "speed", "10");
+		deliver("bus-1", "speed", "12");
+		//one in flight and one queued, so this one is dropped
+		deliver("bus-2", "speed", "10");
+		assertEquals(1, outboundQueues.getDropped(SESSION));
+
+		//unchanged, but the client may have missed it
+		assertEquals(1, deliver("bus-1", "speed", "12").size());
+	}
+
+	@Test
+	public void resyncIsQueuedBehindTheNotificationsAlreadyQueued() throws Exception{
+		connect(10, 2);
+		deliver("bus-1", "speed", "10");
+		deliver("bus-2", "speed", "10");
+		//evicts bus-1
+		deliver("bus-3", "speed", "10");
+		assertEquals(1, encoder.getEvictions());
+		assertEquals(1, encoder.getResyncs());
+
+		for(int frame=0; frame<3; frame++){
+			written(frame);
+		}
+		assertEquals(4, sent.size());
+		assertEquals("bus-2", ((Notification) sent.get(1).getPayload()).getElement().getId());
+		OutOfBandMessage resync = (OutOfBandMessage) sent.get(2).getPayload();
+		assertEquals("resync", resync.getType());
+		assertEquals("bus-1", resync.getMessage());
+		assertEquals("bus-3", ((Notification) sent.get(3).getPayload()).getElement().getId());
+
+		//sent in full again
+		assertEquals(1, deliver("bus-1", "speed", "10").size());
+	}
+
+}
@@ -0,0 +1,364 @@
+package dk.alexandra.organicity.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.messaging.SubProtocolHandler;
+import org.springframework.web.socket.sockjs.frame.SockJsMessageCodec;
+import org.springframework.web.socket.sockjs.transport.SockJsServiceConfig;
+import org.springframework.web.socket.sockjs.transport.session.PollingSockJsSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.organicity.broker.BrokerMode;
+import dk.alexandra.organicity.filter.ClientFilters;
+import dk.alexandra.organicity.filter.NotificationFilter;
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Following the frames of the {@link SessionOutboundQueues} from the queue to the socket, with the simple and a relayed broker
+ *
+ */
+public class SessionOutboundQueuesTest {
+
+	private static final String SESSION = "session-1";
+
+	private final List<Message<?>> sent = new ArrayList<>();
+	private final List<Message<?>> handled = new ArrayList<>();
+	private final ClientFilters filters = new ClientFilters();
+	private SessionOutboundQueues outboundQueues;
+	private SubProtocolHandler stomp;
+	private WrittenFrames written;
+	private Buffer buffer;
+
+
+	private void connect(BrokerMode brokerMode, boolean subscribed, long frameTimeout, WebSocketSession session) throws Exception{
+		MessageChannel channel = new MessageChannel() {
+
+			@Override
+			public boolean send(Message<?> message, long timeout) {
+				sent.add(message);
+				if(subscribed && brokerMode!=BrokerMode.RELAY){
+					outboundQueues.preSend(message, this);
+				}
+				return true;
+			}
+
+			@Override
+			public boolean send(Message<?> message) {
+				return send(message, -1);
+			}
+		};
+		outboundQueues = new SessionOutboundQueues(10, OverflowPolicy.DROP_NEWEST, 2, frameTimeout, brokerMode,
+				new SimpMessagingTemplate(channel), MiddlewareMetrics.inMemory(), filters);
+		stomp = outboundQueues.track(new Encoder());
+		WebSocketHandler handler = new Handler();
+		outboundQueues.decorate(handler).afterConnectionEstablished(session);
+	}
+
+	private void enqueue(int count){
+		List<Notification> notifications = new ArrayList<>();
+		for(int i=0; i<count; i++){
+			notifications.add(new Notification(new ContextElement("bus", "false", "bus-"+i, new ArrayList<>()), "sub-1"));
+		}
+		outboundQueues.enqueue(SESSION, notifications);
+	}
+
+	private static List<Notification> speed(String id, String speed){
+		List<Attributes> attributes = Collections.singletonList(new Attributes("speed", "float", speed));
+		return Collections.singletonList(new Notification(new ContextElement("bus", "false", id, attributes), "sub-1"));
+	}
+
+	/**
+	 * @return The frame as sent back by a relayed broker, which only keeps the STOMP headers
+	 */
+	private static Message<?> relayed(Message<?> message){
+		StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+		accessor.setSessionId(SESSION);
+		accessor.setNativeHeader(SessionOutboundQueues.FRAME_HEADER,
+				NativeMessageHeaderAccessor.getFirstNativeHeader(SessionOutboundQueues.FRAME_HEADER, message.getHeaders()));
+		return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+	}
+
+
+	@Test
+	public void relayedFramesAreInFlightUntilWritten() throws Exception{
+		connect(BrokerMode.RELAY, true, 60000, new StubSession(SESSION));
+		enqueue(5);
+		assertEquals(2, sent.size());
+		assertEquals(2, outboundQueues.getInFlight(SESSION));
+		assertEquals(3, outboundQueues.getLag(SESSION));
+
+		Message<?> first = relayed(sent.get(0));
+		outboundQueues.preSend(first, null);
+		stomp.handleMessageToClient(buffer, first);
+		assertNull(NativeMessageHeaderAccessor.getFirstNativeHeader(SessionOutboundQueues.FRAME_HEADER, handled.get(0).getHeaders()));
+		//in the send buffer of Spring, not written yet
+		assertEquals(2, sent.size());
+
+		buffer.flush();
+		assertEquals(3, sent.size());
+		assertEquals(2, outboundQueues.getLag(SESSION));
+	}
+
+	@Test
+	public void relayedFramesAreReleasedOnce() throws Exception{
+		connect(BrokerMode.RELAY, true, 60000, new StubSession(SESSION));
+		enqueue(6);
+		Message<?> first = relayed(sent.get(0));
+		outboundQueues.preSend(first, null);
+		stomp.handleMessageToClient(buffer, first);
+		buffer.flush();
+		//failing after it was written, and sent back a second time by the broker
+		outboundQueues.afterMessageHandled(first, null, null, new IllegalStateException());
+		outboundQueues.preSend(first, null);
+		stomp.handleMessageToClient(buffer, first);
+		buffer.flush();
+		assertEquals(3, sent.size());
+		assertEquals(2, outboundQueues.getInFlight(SESSION));
+	}
+
+	@Test
+	public void framesNotSentBackByTheRelayExpire() throws Exception{
+		connect(BrokerMode.RELAY, true, 0, new StubSession(SESSION));
+		enqueue(5);
+		assertEquals(2, sent.size());
+		Thread.sleep(5);
+		outboundQueues.check();
+		assertEquals(4, sent.size());
+	}
+
+	@Test
+	public void framesReachingTheOutboundChannelDoNotExpire() throws Exception{
+		connect(BrokerMode.SIMPLE, true, 0, new StubSession(SESSION));
+		enqueue(5);
+		Thread.sleep(5);
+		outboundQueues.check();
+		assertEquals(2, sent.size());
+	}
+
+	@Test
+	public void framesForClientsNotSubscribedAreReleased() throws Exception{
+		connect(BrokerMode.SIMPLE, false, 60000, new StubSession(SESSION));
+		enqueue(5);
+		assertEquals(5, sent.size());
+		assertEquals(0, outboundQueues.getInFlight(SESSION));
+	}
+
+	@Test
+	public void framesNotSentByTheStompHandlerAreReleased() throws Exception{
+		connect(BrokerMode.SIMPLE, true, 60000, new StubSession(SESSION));
+		enqueue(5);
+		outboundQueues.track(new Encoder(){
+
+			@Override
+			public void handleMessageToClient(WebSocketSession session, Message<?> message) {
+				//e.g. not able to encode it
+			}
+
+		}).handleMessageToClient(buffer, sent.get(0));
+		assertEquals(3, sent.size());
+	}
+
+	@Test
+	public void onlyQueuedValuesAreTheDeltaBaseline() throws Exception{
+		filters.put(SESSION, "sub-1", NotificationFilter.compile(null,
+				new ObjectMapper().readTree("[{\"attribute\":\"speed\",\"op\":\"delta\",\"value\":5}]")));
+		connect(BrokerMode.SIMPLE, true, 60000, new StubSession(SESSION));
+		outboundQueues.enqueue(SESSION, speed("bus-1", "10"));
+		enqueue(1);
+		enqueue(10);
+		//the queue is full, so this one is dropped
+		outboundQueues.enqueue(SESSION, speed("bus-2", "10"));
+		assertEquals(10, outboundQueues.getLag(SESSION));
+		assertEquals(0, filters.apply(SESSION, "sub-1", speed("bus-1", "12")).size());
+		assertEquals(1, filters.apply(SESSION, "sub-1", speed("bus-2", "12")).size());
+	}
+
+	@Test
+	public void sockJsFramesAreInFlightUntilPolled() throws Exception{
+		CachingSession session = new CachingSession();
+		connect(BrokerMode.SIMPLE, true, 60000, session);
+		enqueue(5);
+		stomp.handleMessageToClient(buffer, sent.get(0));
+		stomp.handleMessageToClient(buffer, sent.get(1));
+		buffer.flush();
+		assertEquals(2, session.cached());
+		outboundQueues.check();
+		assertEquals(2, sent.size());
+
+		session.poll();
+		outboundQueues.check();
+		assertEquals(4, sent.size());
+		assertEquals(1, outboundQueues.getLag(SESSION));
+	}
+
+
+
+	/**
+	 * Stands in for the STOMP handler of Spring
+	 */
+	private class Encoder implements SubProtocolHandler {
+
+		@Override
+		public void handleMessageToClient(WebSocketSession session, Message<?> message) throws Exception {
+			handled.add(message);
+			session.sendMessage(new TextMessage("MESSAGE\n\n"+handled.size()));
+		}
+
+		@Override
+		public List<String> getSupportedProtocols() {
+			return Collections.singletonList("v12.stomp");
+		}
+
+		@Override
+		public void handleMessageFromClient(WebSocketSession session, WebSocketMessage<?> message, MessageChannel outputChannel) {
+		}
+
+		@Override
+		public String resolveSessionId(Message<?> message) {
+			return SESSION;
+		}
+
+		@Override
+		public void afterSessionStarted(WebSocketSession session, MessageChannel outputChannel) {
+		}
+
+		@Override
+		public void afterSessionEnded(WebSocketSession session, CloseStatus closeStatus, MessageChannel outputChannel) {
+		}
+
+	}
+
+	/**
+	 * Stands in for the send buffer of Spring, writing when flushed
+	 */
+	private static class Buffer extends WebSocketSessionDecorator {
+
+		private final List<WebSocketMessage<?>> buffered = new ArrayList<>();
+
+		Buffer(WebSocketSession session){
+			super(session);
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) {
+			buffered.add(message);
+		}
+
+		void flush() throws IOException{
+			List<WebSocketMessage<?>> flushed = new ArrayList<>(buffered);
+			buffered.clear();
+			for(WebSocketMessage<?> message: flushed){
+				getDelegate().sendMessage(message);
+			}
+		}
+
+	}
+
+	/**
+	 * Stands in for the SubProtocolWebSocketHandler of Spring
+	 */
+	private class Handler implements WebSocketHandler {
+
+		@Override
+		public void afterConnectionEstablished(WebSocketSession session) {
+			written = (WrittenFrames) session;
+			buffer = new Buffer(written);
+		}
+
+		@Override
+		public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) {
+		}
+
+		@Override
+		public void handleTransportError(WebSocketSession session, Throwable exception) {
+		}
+
+		@Override
+		public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) {
+		}
+
+		@Override
+		public boolean supportsPartialMessages() {
+			return false;
+		}
+
+	}
+
+	/**
+	 * A SockJS session over HTTP with no poll request waiting, so frames stay in its cache until polled
+	 */
+	private static class CachingSession extends PollingSockJsSession {
+
+		CachingSession(){
+			super(SESSION, new SockJsServiceConfig() {
+
+				@Override
+				public TaskScheduler getTaskScheduler() {
+					return null;
+				}
+
+				@Override
+				public int getStreamBytesLimit() {
+					return 128*1024;
+				}
+
+				@Override
+				public long getHeartbeatTime() {
+					return 25000;
+				}
+
+				@Override
+				public int getHttpMessageCacheSize() {
+					return 100;
+				}
+
+				@Override
+				public SockJsMessageCodec getMessageCodec() {
+					return null;
+				}
+			}, new TextWebSocketHandler(), new HashMap<>());
+		}
+
+		int cached(){
+			return getMessageCache().size();
+		}
+
+		void poll(){
+			getMessageCache().clear();
+		}
+
+	}
+
+}
@@ -0,0 +1,110 @@
+package dk.alexandra.organicity.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Running delayed tasks with the {@link TimerWheel}, ticked by hand
+ *
+ */
+public class TimerWheelTest {
+
+	private final AtomicLong clock = new AtomicLong();
+	private final List<String> ran = new ArrayList<>();
+
+
+	/**
+	 * Moves the clock one tick of 50 ms ahead and ticks the wheel
+	 */
+	private void tick(TimerWheel wheel, int ticks){
+		for(int i=0; i<ticks; i++){
+			clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+			wheel.tick();
+		}
+	}
+
+
+	@Test
+	public void delaysAreRoundedUpToWholeTicks(){
+		TimerWheel wheel = new TimerWheel(50, 8, clock::get);
+		wheel.schedule(() -> ran.add("100"), 100);
+		wheel.schedule(() -> ran.add("120"), 120);
+		wheel.schedule(() -> ran.add("0"), 0);
+		tick(wheel, 1);
+		assertEquals(1, ran.size());
+		tick(wheel, 1);
+		assertEquals("100", ran.get(1));
+		assertEquals(2, ran.size());
+		tick(wheel, 1);
+		assertEquals("120", ran.get(2));
+	}
+
+	@Test
+	public void tasksWaitForTheirRoundOfTheWheel(){
+		TimerWheel wheel = new TimerWheel(50, 4, clock::get);
+		wheel.schedule(() -> ran.add("late"), 500);
+		tick(wheel, 9);
+		assertTrue(ran.isEmpty());
+		tick(wheel, 1);
+		assertEquals(1, ran.size());
+	}
+
+	@Test
+	public void tasksCanScheduleThemselvesAgain(){
+		TimerWheel wheel = new TimerWheel(50, 4, clock::get);
+		wheel.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.add("run");
+				if(ran.size()<3){
+					wheel.schedule(this, 200);
+				}
+			}
+		}, 50);
+		tick(wheel, 1);
+		assertEquals(1, ran.size());
+		tick(wheel, 4);
+		assertEquals(2, ran.size());
+		tick(wheel, 8);
+		assertEquals(3, ran.size());
+	}
+
+	@Test
+	public void failingTasksDoNotStopTheWheel(){
+		TimerWheel wheel = new TimerWheel(50, 8, clock::get);
+		wheel.schedule(() -> {
+			throw new IllegalStateException("failing");
+		}, 50);
+		wheel.schedule(() -> ran.add("next"), 50);
+		tick(wheel, 1);
+		assertEquals(1, ran.size());
+	}
+
+	@Test
+	public void stoppedWheelsDoNotRunTasks() throws InterruptedException{
+		TimerWheel wheel = new TimerWheel(1, 8);
+		CountDownLatch running = new CountDownLatch(1);
+		wheel.schedule(running::countDown, 1);
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+
+		wheel.stop();
+		CountDownLatch stopped = new CountDownLatch(1);
+		wheel.schedule(stopped::countDown, 1);
+		assertFalse(stopped.await(100, TimeUnit.MILLISECONDS));
+	}
+
+}
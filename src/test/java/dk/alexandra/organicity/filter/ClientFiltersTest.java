@@ -0,0 +1,64 @@
+package dk.alexandra.organicity.filter;
+
+import static dk.alexandra.organicity.filter.NotificationFilterTest.notification;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Filtering by session and subscription with the {@link ClientFilters}
+ *
+ */
+public class ClientFiltersTest {
+
+	private final ClientFilters clientFilters = new ClientFilters();
+	private List<Notification> notifications;
+
+
+	@Before
+	public void setUp() throws IOException{
+		notifications = Arrays.asList(notification("room-1", "20", "40"), notification("room-2", "30", "40"));
+		clientFilters.put("session-1", "sub-1", NotificationFilter.compile(null,
+				new ObjectMapper().readTree("[{\"attribute\":\"temperature\",\"op\":\"delta\",\"value\":5}]")));
+	}
+
+
+	@Test
+	public void clientsWithoutAFilterGetTheSameList(){
+		assertSame(notifications, clientFilters.apply("session-2", "sub-1", notifications));
+		assertSame(notifications, clientFilters.apply("session-1", "sub-2", notifications));
+	}
+
+	@Test
+	public void deliveredIsRecordedForTheSessionAndSubscription(){
+		assertEquals(2, clientFilters.apply("session-1", "sub-1", notifications).size());
+		clientFilters.delivered("session-1", notifications.get(0));
+		clientFilters.delivered("session-2", notifications.get(1));
+		assertEquals(1, clientFilters.apply("session-1", "sub-1", notifications).size());
+	}
+
+	@Test
+	public void removedFiltersAreNotApplied(){
+		clientFilters.delivered("session-1", notifications.get(0));
+		clientFilters.remove("session-1", "sub-1");
+		assertSame(notifications, clientFilters.apply("session-1", "sub-1", notifications));
+		clientFilters.put("session-1", "sub-1", NotificationFilter.compile(new String[]{"temperature"}, null));
+		clientFilters.removeSession("session-1");
+		assertSame(notifications, clientFilters.apply("session-1", "sub-1", notifications));
+	}
+
+}
@@ -0,0 +1,56 @@
+package dk.alexandra.organicity.filter;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Holding back values close to the last one sent with the {@link DeltaPredicate}
+ *
+ */
+public class DeltaPredicateTest {
+
+	private final DeltaPredicate predicate = new DeltaPredicate("temperature", "0.5");
+
+
+	@Test
+	public void sendsTheFirstValueOfEveryEntity(){
+		predicate.delivered("room-1", "20");
+		assertTrue(predicate.test("room-2", "20"));
+	}
+
+	@Test
+	public void holdsBackValuesWithinTheDelta(){
+		predicate.delivered("room-1", "20");
+		assertFalse(predicate.test("room-1", "20.5"));
+		assertTrue(predicate.test("room-1", "19.4"));
+	}
+
+	@Test
+	public void onlyValuesDeliveredAreTheBaseline(){
+		predicate.delivered("room-1", "20");
+		//passed, but not queued for the client
+		assertTrue(predicate.test("room-1", "21"));
+		assertFalse(predicate.test("room-1", "20.2"));
+		predicate.delivered("room-1", "21");
+		assertTrue(predicate.test("room-1", "20.2"));
+	}
+
+	@Test
+	public void comparesTextByEquality(){
+		predicate.delivered("door-1", "open");
+		assertFalse(predicate.test("door-1", "open"));
+		assertTrue(predicate.test("door-1", "closed"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeDeltas(){
+		new DeltaPredicate("temperature", "-1");
+	}
+
+}
@@ -0,0 +1,104 @@
+package dk.alexandra.organicity.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+import dk.alexandra.orion.websocket.transports.pojo.Attributes;
+import dk.alexandra.orion.websocket.transports.pojo.ContextElement;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Compiling and applying the {@link NotificationFilter} of a client
+ *
+ */
+public class NotificationFilterTest {
+
+	private static JsonNode filters(String json) throws IOException{
+		return new ObjectMapper().readTree(json);
+	}
+
+	static Notification notification(String id, String temperature, String humidity){
+		ContextElement element = new ContextElement("room", "false", id, Arrays.asList(
+				new Attributes("temperature", "float", temperature), new Attributes("humidity", "float", humidity)));
+		return new Notification(element, "sub-1");
+	}
+
+
+	@Test
+	public void noFilterWithoutProjectionOrConditions(){
+		assertNull(NotificationFilter.compile(null, null));
+		assertNull(NotificationFilter.compile(new String[0], null));
+	}
+
+	@Test
+	public void projectsOnACopy(){
+		NotificationFilter filter = NotificationFilter.compile(new String[]{"temperature"}, null);
+		Notification received = notification("room-1", "20", "40");
+		Notification projected = filter.apply(received);
+		assertEquals(1, projected.getElement().getAttributes().size());
+		assertEquals("temperature", projected.getElement().getAttributes().get(0).getName());
+		assertEquals(2, received.getElement().getAttributes().size());
+	}
+
+	@Test
+	public void keepsTheNotificationWhenEveryAttributeIsProjected(){
+		NotificationFilter filter = NotificationFilter.compile(new String[]{"temperature", "humidity"}, null);
+		Notification received = notification("room-1", "20", "40");
+		assertSame(received, filter.apply(received));
+	}
+
+	@Test
+	public void dropsNotificationsWithoutProjectedAttributes(){
+		NotificationFilter filter = NotificationFilter.compile(new String[]{"pressure"}, null);
+		assertNull(filter.apply(notification("room-1", "20", "40")));
+	}
+
+	@Test
+	public void sendsOnlyWhenEveryConditionHolds() throws IOException{
+		NotificationFilter filter = NotificationFilter.compile(null, filters("[{\"attribute\":\"temperature\",\"op\":\"gt\",\"value\":25},"
+				+"{\"attribute\":\"humidity\",\"op\":\"lt\",\"value\":50},{\"attribute\":\"pressure\",\"op\":\"gt\",\"value\":1000}]"));
+		assertNull(filter.apply(notification("room-1", "20", "40")));
+		assertNull(filter.apply(notification("room-1", "30", "60")));
+		assertEquals("room-1", filter.apply(notification("room-1", "30", "40")).getElement().getId());
+	}
+
+	@Test
+	public void deltaBaselineIsRecordedOnlyWhenDelivered() throws IOException{
+		NotificationFilter filter = NotificationFilter.compile(null, filters("[{\"attribute\":\"temperature\",\"op\":\"delta\",\"value\":1}]"));
+		Notification first = notification("room-1", "20", "40");
+		filter.delivered(filter.apply(first));
+		assertNull(filter.apply(notification("room-1", "20.5", "40")));
+		//passes, but is dropped before it is queued
+		filter.apply(notification("room-1", "22", "40"));
+		assertNull(filter.apply(notification("room-1", "20.5", "40")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsDeltaOnAttributesNotSent() throws IOException{
+		NotificationFilter.compile(new String[]{"humidity"}, filters("[{\"attribute\":\"temperature\",\"op\":\"delta\",\"value\":1}]"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsFiltersThatAreNotAnArray() throws IOException{
+		NotificationFilter.compile(null, filters("{\"attribute\":\"temperature\",\"op\":\"gt\",\"value\":25}"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsIncompleteFilters() throws IOException{
+		NotificationFilter.compile(null, filters("[{\"attribute\":\"temperature\",\"op\":\"gt\"}]"));
+	}
+
+}
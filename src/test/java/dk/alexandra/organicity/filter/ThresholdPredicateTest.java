@@ -0,0 +1,52 @@
+package dk.alexandra.organicity.filter;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Comparing attribute values with the {@link ThresholdPredicate}
+ *
+ */
+public class ThresholdPredicateTest {
+
+	@Test
+	public void comparesNumbers(){
+		assertTrue(new ThresholdPredicate("temperature", "gt", "25").test("room-1", "25.5"));
+		assertFalse(new ThresholdPredicate("temperature", "gt", "25").test("room-1", "25"));
+		assertTrue(new ThresholdPredicate("temperature", "gte", "25").test("room-1", " 25 "));
+		assertTrue(new ThresholdPredicate("temperature", "lt", "25").test("room-1", "-3"));
+		assertFalse(new ThresholdPredicate("temperature", "lte", "25").test("room-1", "26"));
+		assertTrue(new ThresholdPredicate("temperature", "eq", "25").test("room-1", "25.0"));
+		assertTrue(new ThresholdPredicate("temperature", "ne", "25").test("room-1", "24"));
+	}
+
+	@Test
+	public void valuesThatAreNotNumbersFailNumericConditions(){
+		assertFalse(new ThresholdPredicate("temperature", "gt", "25").test("room-1", "hot"));
+		assertFalse(new ThresholdPredicate("temperature", "gt", "25").test("room-1", null));
+	}
+
+	@Test
+	public void comparesTextWithEqAndNe(){
+		assertTrue(new ThresholdPredicate("status", "eq", "open").test("door-1", "open"));
+		assertFalse(new ThresholdPredicate("status", "eq", "open").test("door-1", "closed"));
+		assertTrue(new ThresholdPredicate("status", "ne", "open").test("door-1", "closed"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTextWithNumericOperators(){
+		new ThresholdPredicate("status", "gt", "open");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownOperators(){
+		new ThresholdPredicate("temperature", "between", "25");
+	}
+
+}
@@ -0,0 +1,127 @@
+package dk.alexandra.organicity.orion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Removing unused subscriptions in the background with the {@link DisconnectReaper}
+ *
+ */
+public class DisconnectReaperTest {
+
+	private final OrionTaskExecutor taskExecutor = new OrionTaskExecutor(new Properties());
+	private final List<Long> attempts = new CopyOnWriteArrayList<>();
+	private DisconnectReaper reaper;
+
+
+	/**
+	 * Creates a reaper which is only run by the tests
+	 */
+	private void start(int batchSize, int maxAttempts, long retryDelay, Predicate<String> unsubscribe){
+		Properties properties = new Properties();
+		properties.setProperty("reaper.interval", "600000");
+		properties.setProperty("reaper.batchSize", String.valueOf(batchSize));
+		properties.setProperty("reaper.concurrency", "2");
+		properties.setProperty("reaper.maxAttempts", String.valueOf(maxAttempts));
+		properties.setProperty("reaper.retryDelay", String.valueOf(retryDelay));
+		reaper = new DisconnectReaper(properties, taskExecutor, subscriptionId -> {
+			attempts.add(System.nanoTime());
+			return unsubscribe.test(subscriptionId);
+		});
+	}
+
+	@After
+	public void tearDown(){
+		reaper.shutdown();
+		taskExecutor.shutdown();
+	}
+
+	/**
+	 * Reaps as the timer of the reaper would, until nothing is pending
+	 */
+	private void reapAll() throws InterruptedException{
+		long deadline = System.currentTimeMillis()+5000;
+		while(reaper.getPending()>0 && System.currentTimeMillis()<deadline){
+			reaper.reap();
+			Thread.sleep(2);
+		}
+		assertEquals(0, reaper.getPending());
+	}
+
+	private long millisBetween(int first, int second){
+		return TimeUnit.NANOSECONDS.toMillis(attempts.get(second)-attempts.get(first));
+	}
+
+
+	@Test
+	public void subscriptionsAreQueuedOnce() throws Exception{
+		List<String> removed = new CopyOnWriteArrayList<>();
+		start(10, 5, 10, removed::add);
+		reaper.submit(Arrays.asList("sub-1", "sub-2"));
+		reaper.submit(Arrays.asList("sub-2"));
+		assertEquals(2, reaper.getPending());
+		reapAll();
+		assertEquals(2, removed.size());
+		assertTrue(removed.containsAll(Arrays.asList("sub-1", "sub-2")));
+	}
+
+	@Test
+	public void atMostBatchSizeAreRemovedAtATime() throws Exception{
+		start(2, 5, 10, subscriptionId -> true);
+		reaper.submit(Arrays.asList("sub-1", "sub-2", "sub-3", "sub-4", "sub-5"));
+		reaper.reap();
+		long deadline = System.currentTimeMillis()+5000;
+		while(reaper.getPending()>3 && System.currentTimeMillis()<deadline){
+			Thread.sleep(2);
+		}
+		assertEquals(3, reaper.getPending());
+		assertEquals(2, attempts.size());
+	}
+
+	@Test
+	public void failedRemovalsAreRetriedWithADoublingDelay() throws Exception{
+		start(10, 5, 50, subscriptionId -> attempts.size()>3);
+		reaper.submit(Arrays.asList("sub-1"));
+		reapAll();
+		assertEquals(4, attempts.size());
+		assertTrue("first retry after "+millisBetween(0, 1), millisBetween(0, 1)>=50);
+		assertTrue("second retry after "+millisBetween(1, 2), millisBetween(1, 2)>=100);
+		assertTrue("third retry after "+millisBetween(2, 3), millisBetween(2, 3)>=200);
+	}
+
+	@Test
+	public void removalIsGivenUpAfterMaxAttempts() throws Exception{
+		start(10, 3, 5, subscriptionId -> false);
+		reaper.submit(Arrays.asList("sub-1"));
+		reapAll();
+		assertEquals(3, attempts.size());
+	}
+
+	@Test
+	public void failingRemovalsAreRetried() throws Exception{
+		start(10, 2, 5, subscriptionId -> {
+			if(attempts.size()==1){
+				throw new IllegalStateException("Context Broker not reachable");
+			}
+			return true;
+		});
+		reaper.submit(Arrays.asList("sub-1"));
+		reapAll();
+		assertEquals(2, attempts.size());
+	}
+
+}
@@ -0,0 +1,88 @@
+package dk.alexandra.organicity.orion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.orion.websocket.transports.OrionSubscription;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Forgetting the resume tokens of the {@link SubscriptionJournal} once their subscriptions are gone
+ *
+ */
+public class SubscriptionJournalTest {
+
+	private File file;
+	private SubscriptionJournal journal;
+
+
+	@Before
+	public void setUp() throws IOException{
+		file = File.createTempFile("subscriptions", ".journal");
+		Properties properties = new Properties();
+		properties.setProperty("journal.file", file.getPath());
+		journal = new SubscriptionJournal(properties, new ObjectMapper());
+		journal.load(expired -> {});
+	}
+
+	@After
+	public void tearDown(){
+		journal.close();
+		file.delete();
+	}
+
+
+	private static SharedSubscription subscription(String subscriptionId){
+		return new SharedSubscription("key-"+subscriptionId, subscriptionId, new OrionSubscription());
+	}
+
+
+	@Test
+	public void removedSubscriptionsAreForgottenByTheirToken(){
+		SharedSubscription first = subscription("sub-1");
+		SharedSubscription second = subscription("sub-2");
+		journal.resume("session-1", "token", "alice");
+		journal.subscriptionAdded(first);
+		journal.subscriptionAdded(second);
+		journal.attached("session-1", "sub-1", "alice");
+		journal.attached("session-1", "sub-2", "alice");
+		assertEquals(1, journal.getResumeTokens());
+
+		journal.subscriptionRemoved(first);
+		assertEquals(Collections.singletonList("sub-2"), journal.resume("session-2", "token", "alice"));
+		journal.subscriptionRemoved(second);
+		assertEquals(0, journal.getResumeTokens());
+		assertTrue(journal.resume("session-3", "token", "alice").isEmpty());
+	}
+
+	@Test
+	public void closedSessionForgetsTokenWithoutLiveSubscriptions(){
+		journal.resume("session-1", "kept", "alice");
+		journal.subscriptionAdded(subscription("sub-1"));
+		journal.attached("session-1", "sub-1", "alice");
+		//removed before the attach was recorded
+		journal.resume("session-2", "dropped", "bob");
+		journal.attached("session-2", "sub-gone", "bob");
+		assertEquals(2, journal.getResumeTokens());
+
+		journal.sessionClosed("session-1");
+		journal.sessionClosed("session-2");
+		assertEquals(1, journal.getResumeTokens());
+		assertEquals(Collections.singletonList("sub-1"), journal.resume("session-3", "kept", "alice"));
+	}
+
+}
@@ -0,0 +1,172 @@
+package dk.alexandra.organicity.orion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Finding and removing the subscriptions nobody uses with the {@link SubscriptionReconciler}
+ *
+ */
+public class SubscriptionReconcilerTest {
+
+	private static final long GRACE = 100;
+
+	private final SubscriptionRegistry registry = new SubscriptionRegistry();
+	private final List<String> unsubscribed = new CopyOnWriteArrayList<>();
+	private final List<CompletableFuture<Boolean>> renewals = new CopyOnWriteArrayList<>();
+	private List<String> listed = Collections.emptyList();
+	private OrionTaskExecutor taskExecutor;
+	private DisconnectReaper reaper;
+	private SubscriptionReconciler reconciler;
+
+
+	@Before
+	public void setUp(){
+		Properties properties = new Properties();
+		properties.setProperty("lease.orphanGrace", String.valueOf(GRACE));
+		properties.setProperty("lease.renewInterval", "0");
+		properties.setProperty("lease.reconcileInterval", "0");
+		//reaped by the tests
+		properties.setProperty("reaper.interval", "600000");
+		taskExecutor = new OrionTaskExecutor(properties);
+		reaper = new DisconnectReaper(properties, taskExecutor, unsubscribed::add);
+		reconciler = new SubscriptionReconciler(properties, registry, reaper, subscriptionId -> {
+			CompletableFuture<Boolean> renewal = new CompletableFuture<>();
+			renewals.add(renewal);
+			return renewal;
+		}, () -> listed, "sub-retained"::equals);
+	}
+
+	@After
+	public void tearDown(){
+		reconciler.shutdown();
+		reaper.shutdown();
+		taskExecutor.shutdown();
+	}
+
+
+	private void register(String subscriptionId){
+		registry.register(new SharedSubscription("key-"+subscriptionId, subscriptionId, null), "session-1");
+	}
+
+
+	@Test
+	public void unknownSubscriptionsAreRemovedAfterTheGrace() throws Exception{
+		//the first notification may arrive before the subscription is registered
+		assertFalse(reconciler.isOrphan("sub-1"));
+		assertTrue(reconciler.isOrphan("sub-1"));
+		assertFalse(reconciler.isOrphan("sub-2"));
+		reconciler.collect();
+		assertEquals(0, reaper.getPending());
+
+		register("sub-2");
+		Thread.sleep(GRACE+10);
+		reconciler.collect();
+		assertEquals(1, reaper.getPending());
+		assertEquals(0, reconciler.getSuspects());
+		reaper.reap();
+		long deadline = System.currentTimeMillis()+5000;
+		while(reaper.getPending()>0 && System.currentTimeMillis()<deadline){
+			Thread.sleep(5);
+		}
+		assertEquals(Arrays.asList("sub-1"), unsubscribed);
+	}
+
+	@Test
+	public void knownSubscriptionsAreNotSuspected(){
+		register("sub-1");
+		assertFalse(reconciler.isOrphan("sub-1"));
+		assertFalse(reconciler.isOrphan("sub-retained"));
+		assertFalse(reconciler.isOrphan("sub-retained"));
+		assertEquals(0, reconciler.getSuspects());
+	}
+
+	@Test
+	public void suspectsAreCapped(){
+		for(int i=0; i<10000; i++){
+			assertFalse(reconciler.isOrphan("sub-"+i));
+		}
+		//not tracked, so its notifications are ignored until the next reconciliation
+		assertTrue(reconciler.isOrphan("sub-10000"));
+		assertEquals(10000, reconciler.getSuspects());
+	}
+
+	@Test
+	public void subscriptionsOwnedElsewhereAreKept() throws Exception{
+		reconciler.setOwnership(true, "sub-2"::equals);
+		assertFalse(reconciler.isOrphan("sub-2"));
+		assertFalse(reconciler.isOrphan("sub-2"));
+		assertFalse(reconciler.isOrphan("sub-1"));
+		assertEquals(1, reconciler.getSuspects());
+
+		//owned by another node during the grace
+		reconciler.setOwnership(true, subscriptionId -> true);
+		Thread.sleep(GRACE+10);
+		reconciler.collect();
+		assertEquals(0, reaper.getPending());
+	}
+
+	@Test
+	public void nothingIsRemovedWithoutOrphanRemoval() throws Exception{
+		assertFalse(reconciler.isOrphan("sub-1"));
+		reconciler.setOwnership(false, subscriptionId -> false);
+		assertFalse(reconciler.isOrphan("sub-1"));
+		listed = Arrays.asList("sub-2");
+		reconciler.reconcile();
+		Thread.sleep(GRACE+10);
+		reconciler.collect();
+		assertEquals(0, reaper.getPending());
+		assertEquals(0, reconciler.getSuspects());
+	}
+
+	@Test
+	public void reconcilingSuspectsTheUnknownSubscriptions(){
+		register("sub-1");
+		listed = Arrays.asList("sub-1", "sub-2", "sub-retained");
+		reconciler.reconcile();
+		assertEquals(1, reconciler.getSuspects());
+		assertTrue(reconciler.isOrphan("sub-2"));
+	}
+
+	@Test
+	public void renewingDoesNotWaitForTheContextBroker() throws Exception{
+		List<String> subscriptionIds = new ArrayList<>();
+		for(int i=0; i<3; i++){
+			register("sub-"+i);
+			subscriptionIds.add("sub-"+i);
+		}
+		CompletableFuture<Void> round = reconciler.renewAll();
+		assertNotNull(round);
+		assertFalse(round.isDone());
+		//the previous round is still running
+		assertNull(reconciler.renewAll());
+
+		for(CompletableFuture<Boolean> renewal: renewals){
+			renewal.complete(true);
+		}
+		round.get(5, TimeUnit.SECONDS);
+		assertEquals(subscriptionIds.size(), renewals.size());
+		assertNotNull(reconciler.renewAll());
+	}
+
+}
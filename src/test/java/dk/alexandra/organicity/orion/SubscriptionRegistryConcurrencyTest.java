@@ -0,0 +1,225 @@
+package dk.alexandra.organicity.orion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Registers, unregisters and looks up sessions from many threads at once, and checks that no route is lost or left stale
+ *
+ */
+public class SubscriptionRegistryConcurrencyTest {
+
+	private static final int THREADS = 8;
+	private static final int SESSIONS_PER_THREAD = 20;
+	private static final int KEYS = 16;
+	private static final int OPERATIONS = 20000;
+
+	private SubscriptionRegistry registry;
+	private ExecutorService executor;
+	private final AtomicLong nextId = new AtomicLong();
+	private final Map<String, AtomicInteger> liveByKey = new ConcurrentHashMap<>();
+	private final AtomicInteger duplicates = new AtomicInteger();
+	//the sessions that have asked for a key, recorded before they are attached
+	private final Map<String, Set<String>> attaching = new ConcurrentHashMap<>();
+
+
+	@Before
+	public void setUp(){
+		registry = new SubscriptionRegistry();
+		executor = Executors.newCachedThreadPool();
+		registry.addListener(new SubscriptionRegistryListener(){
+
+			@Override
+			public void subscriptionAdded(SharedSubscription shared) {
+				if(liveByKey.computeIfAbsent(shared.getKey(), k -> new AtomicInteger()).incrementAndGet()>1){
+					duplicates.incrementAndGet();
+				}
+			}
+
+			@Override
+			public void subscriptionRemoved(SharedSubscription shared) {
+				liveByKey.get(shared.getKey()).decrementAndGet();
+			}
+
+		});
+	}
+
+	@After
+	public void tearDown(){
+		executor.shutdownNow();
+	}
+
+
+	@Test
+	public void parallelRegisterUnregisterAndNotify() throws Exception{
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong lookups = new AtomicLong();
+		Future<?> notifier = executor.submit(() -> {
+			Random random = new Random();
+			while(running.get()){
+				//as a notification would, every session found must have asked for the key of the subscription
+				for(SharedSubscription shared: registry.getSubscriptions().values()){
+					for(String sessionId: registry.getSessionIds(shared.getSubscriptionId())){
+						assertTrue(sessionId+" routed from "+shared.getKey(), attaching.get(shared.getKey()).contains(sessionId));
+					}
+				}
+				registry.getSessionIds("sub-"+random.nextInt(100));
+				lookups.incrementAndGet();
+			}
+		});
+
+		List<Future<Map<String, Set<String>>>> workers = new ArrayList<>();
+		for(int t=0; t<THREADS; t++){
+			int thread = t;
+			workers.add(executor.submit(() -> work(thread)));
+		}
+		Map<String, Set<String>> expected = new HashMap<>();
+		for(Future<Map<String, Set<String>>> worker: workers){
+			expected.putAll(worker.get(60, TimeUnit.SECONDS));
+		}
+		running.set(false);
+		notifier.get(10, TimeUnit.SECONDS);
+
+		assertEquals("more than one subscription per key at a time", 0, duplicates.get());
+		assertTrue(lookups.get()>0);
+		//no lost routes: every attachment a session made is still routed to it
+		for(Map.Entry<String, Set<String>> session: expected.entrySet()){
+			assertEquals(session.getValue(), registry.getSubscriptionIds(session.getKey()));
+			for(String subscriptionId: session.getValue()){
+				assertTrue(registry.getSessionIds(subscriptionId).contains(session.getKey()));
+			}
+		}
+		//no stale routes: every subscription left has sessions, all of them expected, and is the only one for its key
+		Set<String> keys = new HashSet<>();
+		for(SharedSubscription shared: registry.getSubscriptions().values()){
+			assertFalse(shared.getSessionIds().isEmpty());
+			assertTrue(keys.add(shared.getKey()));
+			for(String sessionId: shared.getSessionIds()){
+				assertTrue(expected.get(sessionId).contains(shared.getSubscriptionId()));
+			}
+		}
+		assertEquals(0, registry.getCreating());
+	}
+
+	private Map<String, Set<String>> work(int thread) throws Exception{
+		Random random = new Random(thread);
+		Map<String, Set<String>> attached = new HashMap<>();
+		for(int i=0; i<SESSIONS_PER_THREAD; i++){
+			attached.put("session-"+thread+"-"+i, new HashSet<>());
+		}
+		List<String> sessionIds = new ArrayList<>(attached.keySet());
+		for(int i=0; i<OPERATIONS; i++){
+			String sessionId = sessionIds.get(random.nextInt(sessionIds.size()));
+			Set<String> subscriptionIds = attached.get(sessionId);
+			int operation = random.nextInt(10);
+			if(operation<5){
+				String key = "key-"+random.nextInt(KEYS);
+				attaching.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(sessionId);
+				SharedSubscription shared = registry.attachOrCreate(key, sessionId,
+						() -> new SharedSubscription(key, "sub-"+nextId.incrementAndGet(), null));
+				assertNotNull(shared);
+				assertEquals(key, shared.getKey());
+				subscriptionIds.add(shared.getSubscriptionId());
+			}else if(operation<9){
+				if(!subscriptionIds.isEmpty()){
+					String subscriptionId = subscriptionIds.iterator().next();
+					assertTrue(registry.detach(subscriptionId, sessionId)>=0);
+					subscriptionIds.remove(subscriptionId);
+				}
+			}else{
+				registry.removeSession(sessionId);
+				subscriptionIds.clear();
+			}
+		}
+		return attached;
+	}
+
+
+	@Test
+	public void slowCreateBlocksNeitherOtherKeysNorCreatesTwice() throws Exception{
+		String slowKey = "slow";
+		String otherKey = null;
+		//a key on the same lock stripe, so holding the stripe during the create would block it
+		for(int i=0; otherKey==null; i++){
+			if(registry.lockFor("other-"+i)==registry.lockFor(slowKey)){
+				otherKey = "other-"+i;
+			}
+		}
+		CountDownLatch creating = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger creates = new AtomicInteger();
+		SubscriptionRegistry.SubscriptionFactory slow = () -> {
+			creates.incrementAndGet();
+			creating.countDown();
+			try{
+				release.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			return new SharedSubscription(slowKey, "sub-slow", null);
+		};
+
+		Future<SharedSubscription> first = executor.submit(() -> registry.attachOrCreate(slowKey, "session-1", slow));
+		assertTrue(creating.await(10, TimeUnit.SECONDS));
+		Future<SharedSubscription> second = executor.submit(() -> registry.attachOrCreate(slowKey, "session-2", slow));
+
+		String key = otherKey;
+		Future<SharedSubscription> other = executor.submit(() -> registry.attachOrCreate(key, "session-3",
+				() -> new SharedSubscription(key, "sub-other", null)));
+		assertEquals("sub-other", other.get(5, TimeUnit.SECONDS).getSubscriptionId());
+		assertFalse(second.isDone());
+
+		release.countDown();
+		SharedSubscription shared = first.get(10, TimeUnit.SECONDS);
+		assertSame(shared, second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, creates.get());
+		assertEquals(2, registry.getSessionIds("sub-slow").size());
+	}
+
+
+	@Test
+	public void setupIsDoneBeforeTheSessionIsRouted() throws Exception{
+		List<String> setUp = new ArrayList<>();
+		SubscriptionRegistry.SubscriptionFactory create = () -> new SharedSubscription("key", "sub-0", null);
+		for(String sessionId: new String[]{"session-1", "session-2"}){
+			registry.attachOrCreate("key", sessionId, create, subscriptionId -> {
+				//notifications routed from now on must find the options of the session
+				assertFalse(registry.getSessionIds(subscriptionId).contains(sessionId));
+				setUp.add(subscriptionId+"/"+sessionId);
+			});
+		}
+		assertEquals(2, setUp.size());
+		assertEquals("sub-0/session-1", setUp.get(0));
+		assertEquals("sub-0/session-2", setUp.get(1));
+		assertEquals(2, registry.getSessionIds("sub-0").size());
+	}
+
+}
@@ -0,0 +1,174 @@
+package dk.alexandra.organicity.orion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import dk.alexandra.organicity.metrics.MiddlewareMetrics;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Refreshing the token of the middleware with the {@link TokenManager} against a stub token endpoint
+ *
+ */
+public class TokenManagerTest {
+
+	private static final String PATH = "/realms/organicity/protocol/openid-connect/token";
+
+	private HttpServer server;
+	private HttpClientPool httpClientPool;
+	private TokenManager tokenManager;
+	private final List<Long> requests = new CopyOnWriteArrayList<>();
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile CountDownLatch answer = new CountDownLatch(0);
+
+
+	@Before
+	public void setUp() throws Exception{
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext(PATH, this::token);
+		server.start();
+
+		Properties properties = new Properties();
+		properties.setProperty("tokenUrl", "http://localhost:"+server.getAddress().getPort());
+		properties.setProperty("clientId", "middleware");
+		properties.setProperty("clientSecret", "secret");
+		properties.setProperty("token.retryInitial", "50");
+		properties.setProperty("token.retryMax", "100");
+		httpClientPool = new HttpClientPool(properties, SSLContext.getDefault());
+		tokenManager = new TokenManager(properties, httpClientPool, MiddlewareMetrics.inMemory());
+	}
+
+	@After
+	public void tearDown(){
+		tokenManager.shutdown();
+		httpClientPool.close();
+		server.stop(0);
+	}
+
+
+	/**
+	 * Answers with an error while failures are left, else with a new token
+	 */
+	private void token(HttpExchange exchange) throws IOException{
+		requests.add(System.nanoTime());
+		try{
+			answer.await(5, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		String body = failures.getAndDecrement()>0 ? "{\"error\":\"unauthorized_client\",\"error_description\":\"not now\"}"
+				: "{\"access_token\":\"token-"+requests.size()+"\",\"expires_in\":300}";
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+
+	private String awaitToken() throws InterruptedException{
+		long deadline = System.currentTimeMillis()+5000;
+		while(System.currentTimeMillis()<deadline){
+			String token = tokenManager.getToken();
+			if(token!=null){
+				return token;
+			}
+			Thread.sleep(5);
+		}
+		return null;
+	}
+
+
+	@Test
+	public void failedRefreshesAreRetriedWithBackoff() throws Exception{
+		failures.set(3);
+		tokenManager.start(5000);
+		assertNull(tokenManager.getToken());
+
+		assertEquals("token-4", awaitToken());
+		assertEquals(4, requests.size());
+		long first = TimeUnit.NANOSECONDS.toMillis(requests.get(1)-requests.get(0));
+		long second = TimeUnit.NANOSECONDS.toMillis(requests.get(2)-requests.get(1));
+		long third = TimeUnit.NANOSECONDS.toMillis(requests.get(3)-requests.get(2));
+		assertTrue("first retry after "+first, first>=45);
+		assertTrue("second retry after "+second, second>=95);
+		//at most token.retryMax
+		assertTrue("third retry after "+third, third>=95 && third<1000);
+	}
+
+	@Test
+	public void callersDoNotRefreshWhileARetryIsScheduled() throws Exception{
+		failures.set(1);
+		tokenManager.start(5000);
+		for(int i=0; i<10; i++){
+			tokenManager.getToken();
+			tokenManager.rejected(null);
+		}
+		assertEquals(1, requests.size());
+		assertEquals("token-2", awaitToken());
+	}
+
+	@Test
+	public void concurrentRefreshesJoinTheRunningOne() throws Exception{
+		answer = new CountDownLatch(1);
+		CompletableFuture<String> first = tokenManager.refresh();
+		CompletableFuture<String> second = tokenManager.refresh();
+		assertSame(first, second);
+		answer.countDown();
+		assertEquals("token-1", first.get(5, TimeUnit.SECONDS));
+		assertEquals(1, requests.size());
+
+		assertEquals("token-2", tokenManager.refresh().get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void onlyTheCurrentTokenCanBeRejected() throws Exception{
+		tokenManager.start(5000);
+		assertEquals("token-1", tokenManager.getToken());
+
+		tokenManager.rejected("token-0");
+		Thread.sleep(100);
+		assertEquals(1, requests.size());
+
+		tokenManager.rejected("token-1");
+		long deadline = System.currentTimeMillis()+5000;
+		while(!"token-2".equals(tokenManager.getToken()) && System.currentTimeMillis()<deadline){
+			Thread.sleep(5);
+		}
+		assertEquals("token-2", tokenManager.getToken());
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void failedRefreshesCompleteExceptionally() throws Exception{
+		failures.set(1);
+		tokenManager.refresh().get(5, TimeUnit.SECONDS);
+	}
+
+}
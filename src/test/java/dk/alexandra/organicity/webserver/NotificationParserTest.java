@@ -0,0 +1,70 @@
+package dk.alexandra.organicity.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.alexandra.orion.websocket.transports.Notification;
+
+
+/**
+ *
+ * @author Morten Skov
+ *
+ * Reading notifications from the Context Broker with the {@link NotificationParser}
+ *
+ */
+public class NotificationParserTest {
+
+	private final NotificationParser parser = new NotificationParser(new ObjectMapper());
+
+
+	private static String element(String id){
+		return "{\"contextElement\":{\"type\":\"bus\",\"isPattern\":\"false\",\"id\":\""+id+"\","
+				+"\"attributes\":[{\"name\":\"speed\",\"type\":\"float\",\"value\":\"42\"}]},"
+				+"\"statusCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}";
+	}
+
+
+	@Test
+	public void readsEveryElement() throws IOException{
+		List<Notification> notifications = parser.parse("{\"subscriptionId\":\"sub-1\",\"originator\":\"localhost\","
+				+"\"contextResponses\":["+element("bus-1")+","+element("bus-2")+"]}");
+		assertEquals(2, notifications.size());
+		assertEquals("bus-2", notifications.get(1).getElement().getId());
+		assertEquals("sub-1", notifications.get(1).getSubscriptionId());
+	}
+
+	@Test
+	public void skipsElementsThatAreNotObjects() throws IOException{
+		List<Notification> notifications = parser.parse("{\"contextResponses\":["+element("bus-1")+",null,42,[1,{}],"
+				+element("bus-2")+"],\"subscriptionId\":\"sub-1\"}");
+		assertEquals(2, notifications.size());
+		assertEquals("bus-1", notifications.get(0).getElement().getId());
+		assertEquals("bus-2", notifications.get(1).getElement().getId());
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnTruncatedPayload() throws IOException{
+		parser.parse("{\"subscriptionId\":\"sub-1\",\"contextResponses\":["+element("bus-1")+",");
+	}
+
+	@Test
+	public void skipsUnwantedSubscriptionsBeforeTheElements() throws IOException{
+		//a truncated payload, so reading the elements would fail
+		assertNull(parser.parse("{\"subscriptionId\":\"sub-1\",\"contextResponses\":["+element("bus-1")+",", "sub-1"::equals));
+		assertEquals(1, parser.parse("{\"subscriptionId\":\"sub-2\",\"contextResponses\":["+element("bus-1")+"]}", "sub-1"::equals).size());
+	}
+
+	@Test
+	public void skipsUnwantedSubscriptionsSentAfterTheElements() throws IOException{
+		assertNull(parser.parse("{\"contextResponses\":["+element("bus-1")+"],\"subscriptionId\":\"sub-1\"}", "sub-1"::equals));
+	}
+
+}